@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2014 Eric Butler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tapchatapp.android.client;
+
+import com.google.common.base.Charsets;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.tapchatapp.android.client.message.BacklogCompleteMessage;
+import com.tapchatapp.android.client.message.BufferMsgMessage;
+import com.tapchatapp.android.client.message.EndOfBacklogMessage;
+import com.tapchatapp.android.client.message.MakeBufferMessage;
+import com.tapchatapp.android.client.message.MakeServerMessage;
+import com.tapchatapp.android.client.message.Message;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+import retrofit.client.Header;
+import retrofit.client.Response;
+import retrofit.mime.TypedByteArray;
+
+/**
+ * Loads an interleaved backlog for several connections and checks how it is partitioned and handed to the service.
+ */
+public class OobLoaderTest extends TestCase {
+    private static final int CONNECTIONS = 6;
+    private static final int BUFFERS     = 3;
+    private static final int EVENTS      = 3000;
+
+    private static final long SELECTED_CID = 4;
+    private static final long SELECTED_BID = 42;
+
+    private final List<List<List<Message>>> mRounds =
+        Collections.synchronizedList(new ArrayList<List<List<Message>>>());
+    private final CountDownLatch mDone = new CountDownLatch(1);
+    private volatile boolean mCompleted;
+    private volatile Exception mError;
+
+    public void testMultipleConnections() throws Exception {
+        final String json = createBacklog();
+        TapchatAPI api = new TapchatAPI() {
+            @Override public void login(LoginBody body, retrofit.Callback<LoginResult> callback) { }
+
+            @Override public Response oobInclude(String path) {
+                return new Response("http://localhost/" + path, 200, "OK", Collections.<Header>emptyList(),
+                    new TypedByteArray("application/json", json.getBytes(Charsets.UTF_8)));
+            }
+
+            @Override public Response backlog(long cid, long bid, long beforeId, int count) {
+                throw new UnsupportedOperationException();
+            }
+        };
+
+        Gson gson = new GsonBuilder().registerTypeAdapterFactory(new MessageTypeAdapterFactory()).create();
+        OobLoader loader = new OobLoader(api, gson, new OobLoader.Callback() {
+            @Override public void onBacklogMessages(List<List<Message>> partitions) throws Exception {
+                List<List<Message>> round = new ArrayList<>();
+                for (List<Message> messages : partitions) {
+                    round.add(new ArrayList<>(messages));
+                }
+                mRounds.add(round);
+            }
+
+            @Override public void onBacklogComplete() throws Exception {
+                mCompleted = true;
+                mDone.countDown();
+            }
+
+            @Override public void onBacklogError(Exception ex) {
+                mError = ex;
+                mDone.countDown();
+            }
+        });
+
+        try {
+            loader.load("/chat/oob-loader/test", SELECTED_CID, SELECTED_BID);
+            assertTrue(mDone.await(30, TimeUnit.SECONDS));
+        } finally {
+            loader.shutdown();
+        }
+
+        assertNull(mError);
+        assertTrue(mCompleted);
+
+        List<Message> applied = new ArrayList<>();
+        int maxPartitions = 0;
+        for (List<List<Message>> round : mRounds) {
+            maxPartitions = Math.max(maxPartitions, round.size());
+            Set<Long> roundCids = new HashSet<>();
+            for (List<Message> messages : round) {
+                assertFalse("Empty partition", messages.isEmpty());
+                Long cid = messages.get(0).cid;
+                assertTrue("Two partitions for one connection", roundCids.add(cid));
+                for (Message message : messages) {
+                    assertEquals("Partition mixes connections", cid, message.cid);
+                    if (message.cid == null || (message.bid == null && !(message instanceof EndOfBacklogMessage))) {
+                        assertEquals("Connection message shares its round", 1, round.size());
+                        assertEquals("Connection message shares its partition", 1, messages.size());
+                    }
+                }
+                applied.addAll(messages);
+            }
+        }
+        assertTrue("Connections were never handed over together", maxPartitions > 1);
+        assertEquals(1 + CONNECTIONS * (BUFFERS + 2) + EVENTS, applied.size());
+
+        // backlog_complete has no cid, so it must come after everything that was before it.
+        assertTrue(applied.get(applied.size() - 1) instanceof BacklogCompleteMessage);
+
+        Map<Long, Long> lastEids = new HashMap<>();
+        Set<Long> madeServers = new HashSet<>();
+        Set<Long> madeBuffers = new HashSet<>();
+        Set<Long> finishedConnections = new HashSet<>();
+        boolean otherSelectedCidEvents = false;
+        for (Message message : applied) {
+            if (message.cid == null) {
+                continue;
+            }
+            assertFalse("Message after end_of_backlog", finishedConnections.contains(message.cid));
+            if (message instanceof MakeServerMessage) {
+                madeServers.add(message.cid);
+            } else if (message instanceof MakeBufferMessage) {
+                assertTrue("Buffer before its connection", madeServers.contains(message.cid));
+                madeBuffers.add(message.bid);
+            } else if (message instanceof EndOfBacklogMessage) {
+                finishedConnections.add(message.cid);
+            } else {
+                assertTrue("Event before its buffer", madeBuffers.contains(message.bid));
+                Long lastEid = lastEids.put(message.bid, message.eid);
+                assertTrue("Events out of order", lastEid == null || lastEid < message.eid);
+
+                if (message.cid == SELECTED_CID) {
+                    if (message.bid != SELECTED_BID) {
+                        otherSelectedCidEvents = true;
+                    } else {
+                        assertFalse("Selected buffer wasn't applied first", otherSelectedCidEvents);
+                    }
+                }
+            }
+        }
+        assertEquals(CONNECTIONS, finishedConnections.size());
+    }
+
+    private static String createBacklog() {
+        StringBuilder json = new StringBuilder("[");
+        for (int cid = 1; cid <= CONNECTIONS; cid++) {
+            json.append(String.format("{\"type\":\"%s\",\"cid\":%d,\"name\":\"net%d\",\"nick\":\"me\"," +
+                "\"hostname\":\"irc%d.example.com\",\"port\":6667},", MakeServerMessage.TYPE, cid, cid, cid));
+            for (int buffer = 0; buffer < BUFFERS; buffer++) {
+                json.append(String.format("{\"type\":\"%s\",\"cid\":%d,\"bid\":%d,\"name\":\"#chan%d\"," +
+                    "\"buffer_type\":\"channel\"},", MakeBufferMessage.TYPE, cid, cid * 10 + buffer, buffer));
+            }
+        }
+        // Connections and buffers take turns, the way the bouncer interleaves them.
+        for (int i = 0; i < EVENTS; i++) {
+            int cid = 1 + i % CONNECTIONS;
+            int bid = cid * 10 + (i / CONNECTIONS) % BUFFERS;
+            json.append(String.format("{\"type\":\"%s\",\"cid\":%d,\"bid\":%d,\"eid\":%d,\"from\":\"nick%d\"," +
+                "\"msg\":\"line %d\",\"is_backlog\":true},", BufferMsgMessage.TYPE, cid, bid, 1000 + i, cid, i));
+        }
+        for (int cid = 1; cid <= CONNECTIONS; cid++) {
+            json.append(String.format("{\"type\":\"%s\",\"cid\":%d},", EndOfBacklogMessage.TYPE, cid));
+        }
+        json.append(String.format("{\"type\":\"%s\"}]", BacklogCompleteMessage.TYPE));
+        return json.toString();
+    }
+}
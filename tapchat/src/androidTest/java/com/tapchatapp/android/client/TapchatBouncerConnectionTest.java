@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2014 Eric Butler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tapchatapp.android.client;
+
+import com.google.common.base.Charsets;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.tapchatapp.android.client.message.BufferMsgMessage;
+import com.tapchatapp.android.client.message.Message;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Decodes frames the way a bouncer that supports compression sends them, and the plain ones any bouncer sends.
+ */
+public class TapchatBouncerConnectionTest extends TestCase {
+    private static final String MESSAGE = "{\"type\":\"buffer_msg\",\"cid\":1,\"bid\":2,\"eid\":3,\"from\":\"nick\"," +
+        "\"msg\":\"héllo\"}";
+    private static final String BATCH = "[" + MESSAGE + ",{\"type\":\"buffer_msg\",\"cid\":1,\"bid\":2,\"eid\":4," +
+        "\"from\":\"nick\",\"msg\":\"again\"}]";
+
+    private final Gson mGson = new GsonBuilder().registerTypeAdapterFactory(new MessageTypeAdapterFactory()).create();
+    private final List<Message> mMessages = new ArrayList<>();
+    private final List<Exception> mErrors = new ArrayList<>();
+
+    private final TapchatBouncerConnection.Callback mCallback = new TapchatBouncerConnection.Callback() {
+        @Override public void onBouncerConnect() { }
+
+        @Override public void onBouncerDisconnect() { }
+
+        @Override public void onBouncerReceiveMessage(Message message) {
+            mMessages.add(message);
+        }
+
+        @Override public void onBouncerError(Exception ex) {
+            mErrors.add(ex);
+        }
+    };
+
+    public void testTextFrame() throws Exception {
+        TapchatBouncerConnection.receive(mGson, new StringReader(MESSAGE), mCallback);
+        assertMessages(3);
+    }
+
+    public void testPlainBinaryFrame() throws Exception {
+        TapchatBouncerConnection.receive(mGson, MESSAGE.getBytes(Charsets.UTF_8), mCallback);
+        assertMessages(3);
+    }
+
+    public void testGzipFrame() throws Exception {
+        TapchatBouncerConnection.receive(mGson, gzip(MESSAGE), mCallback);
+        assertMessages(3);
+    }
+
+    public void testZlibFrame() throws Exception {
+        TapchatBouncerConnection.receive(mGson, zlib(MESSAGE), mCallback);
+        assertMessages(3);
+    }
+
+    public void testBatches() throws Exception {
+        TapchatBouncerConnection.receive(mGson, new StringReader(BATCH), mCallback);
+        TapchatBouncerConnection.receive(mGson, gzip(BATCH), mCallback);
+        TapchatBouncerConnection.receive(mGson, zlib(BATCH), mCallback);
+        assertMessages(3, 4, 3, 4, 3, 4);
+    }
+
+    public void testBrokenFramesAreReported() throws Exception {
+        byte[] gzip = gzip(BATCH);
+        byte[] truncated = Arrays.copyOf(gzip, gzip.length / 2);
+        byte[] zlib = zlib(BATCH);
+        byte[] corrupt = Arrays.copyOf(zlib, zlib.length);
+        for (int i = 2; i < corrupt.length; i++) {
+            corrupt[i] ^= 0x5a;
+        }
+
+        TapchatBouncerConnection.receive(mGson, truncated, mCallback);
+        TapchatBouncerConnection.receive(mGson, corrupt, mCallback);
+        TapchatBouncerConnection.receive(mGson, new StringReader("{\"type\":\"buffer_msg\",\"eid\":"), mCallback);
+        TapchatBouncerConnection.receive(mGson, new StringReader("[" + MESSAGE + ",{]"), mCallback);
+
+        assertEquals(4, mErrors.size());
+    }
+
+    private void assertMessages(long... eids) {
+        assertTrue(mErrors.toString(), mErrors.isEmpty());
+        assertEquals(eids.length, mMessages.size());
+        for (int i = 0; i < eids.length; i++) {
+            BufferMsgMessage message = (BufferMsgMessage) mMessages.get(i);
+            assertEquals(eids[i], message.eid);
+            assertEquals(1L, (long) message.cid);
+            assertEquals(2L, (long) message.bid);
+        }
+        assertEquals("héllo", ((BufferMsgMessage) mMessages.get(0)).msg);
+    }
+
+    private static byte[] gzip(String json) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        write(new GZIPOutputStream(bytes), json);
+        return bytes.toByteArray();
+    }
+
+    private static byte[] zlib(String json) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        write(new DeflaterOutputStream(bytes), json);
+        return bytes.toByteArray();
+    }
+
+    private static void write(OutputStream out, String json) throws IOException {
+        try {
+            out.write(json.getBytes(Charsets.UTF_8));
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2014 Eric Butler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tapchatapp.android.client.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import junit.framework.TestCase;
+
+/**
+ * Feeds eids in the orders the bouncer can send them and checks which ones the window reports as new.
+ */
+public class EidWindowTest extends TestCase {
+    private static final long EID = 1400000000000000L;
+
+    private final EidWindow mWindow = new EidWindow();
+
+    public void testInOrder() throws Exception {
+        for (int i = 0; i < EidWindow.CAPACITY * 3; i++) {
+            assertTrue(mWindow.add(EID + i));
+        }
+        for (int i = EidWindow.CAPACITY * 2; i < EidWindow.CAPACITY * 3; i++) {
+            assertFalse(mWindow.add(EID + i));
+        }
+    }
+
+    public void testOutOfOrder() throws Exception {
+        List<Long> eids = new ArrayList<>();
+        for (int i = 0; i < EidWindow.CAPACITY; i++) {
+            eids.add(EID + i * 1000);
+        }
+        Collections.shuffle(eids, new Random(1));
+
+        for (long eid : eids) {
+            assertTrue(mWindow.add(eid));
+        }
+        for (long eid : eids) {
+            assertFalse(mWindow.add(eid));
+        }
+    }
+
+    public void testDuplicates() throws Exception {
+        assertTrue(mWindow.add(EID + 20));
+        assertFalse(mWindow.add(EID + 20));
+        assertTrue(mWindow.add(EID + 10));
+        assertTrue(mWindow.add(EID + 30));
+        assertFalse(mWindow.add(EID + 10));
+        assertFalse(mWindow.add(EID + 20));
+        assertFalse(mWindow.add(EID + 30));
+    }
+
+    public void testEvictedBelowWindow() throws Exception {
+        // Fill the window with every other eid.
+        for (int i = 0; i < EidWindow.CAPACITY; i++) {
+            assertTrue(mWindow.add(EID + i * 2));
+        }
+
+        // Once full, anything older than what is kept counts as seen, even if it never was.
+        assertFalse(mWindow.add(EID - 1));
+
+        // Filling a gap pushes out the oldest, which then falls below the window.
+        assertTrue(mWindow.add(EID + 3));
+        assertFalse(mWindow.add(EID));
+        assertFalse(mWindow.add(EID + 1));
+        assertFalse(mWindow.add(EID + 3));
+        assertTrue(mWindow.add(EID + 5));
+
+        // So does appending.
+        assertTrue(mWindow.add(EID + EidWindow.CAPACITY * 2));
+        assertFalse(mWindow.add(EID + 2));
+        assertTrue(mWindow.add(EID + 7));
+    }
+
+    public void testMatchesSortedSet() throws Exception {
+        Random random = new Random(2);
+        TreeSet<Long> kept = new TreeSet<>();
+        long next = EID;
+        for (int i = 0; i < 50000; i++) {
+            // Mostly new eids, with some late and repeated ones mixed in.
+            next += random.nextInt(5);
+            long eid = next - ((random.nextInt(4) == 0) ? random.nextInt(EidWindow.CAPACITY * 4) : 0);
+
+            boolean expected;
+            if (kept.contains(eid) || (kept.size() == EidWindow.CAPACITY && eid < kept.first())) {
+                expected = false;
+            } else {
+                kept.add(eid);
+                if (kept.size() > EidWindow.CAPACITY) {
+                    kept.pollFirst();
+                }
+                expected = true;
+            }
+            assertEquals(String.valueOf(eid), expected, mWindow.add(eid));
+        }
+    }
+}
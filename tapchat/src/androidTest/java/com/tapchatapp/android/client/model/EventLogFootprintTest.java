@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2014 Eric Butler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tapchatapp.android.client.model;
+
+import com.google.common.base.Supplier;
+import com.google.gson.Gson;
+import com.tapchatapp.android.client.message.BufferEventMessage;
+import com.tapchatapp.android.client.message.BufferMsgMessage;
+import com.tapchatapp.android.client.message.JoinedChannelMessage;
+import com.tapchatapp.android.client.message.PartedChannelMessage;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks what EventLog keeps per event for a mix of chat lines and presence changes parsed the same way the bouncer's
+ * are: one row per message, one copy of each repeated string, and the same groups a BufferEvent per message made.
+ */
+public class EventLogFootprintTest extends TestCase {
+    private static final int COUNT = 20000;
+    private static final int NICKS = 200;
+
+    public void testRepeatedStringsAreShared() throws Exception {
+        final List<BufferEventMessage> messages = createMessages();
+        EventLog log = new EventLog(COUNT, 1, 2, 0);
+        for (BufferEventMessage message : messages) {
+            log.add(message);
+        }
+        assertEquals(COUNT, log.size());
+
+        // Parsing gave every message its own copy of the nick.
+        Map<String, String> parsed = new HashMap<>();
+        int copies = 0;
+        for (BufferEventMessage message : messages) {
+            String name = (message.from != null) ? message.from : message.nick;
+            String first = parsed.put(name, name);
+            if (first != null && first != name) {
+                copies++;
+            }
+        }
+        assertTrue(copies > COUNT - NICKS * 2);
+
+        final Map<String, String> pooled = new HashMap<>();
+        final int[] rows = new int[1];
+        log.visitNewest(COUNT, new Buffer.EventVisitor() {
+            @Override public void visit(String type, long eid, Long time, boolean highlight, boolean self, String nick,
+                                        String from, Object text, Object[] extras) {
+                BufferEventMessage message = messages.get(rows[0]++);
+                assertEquals(message.eid, eid);
+                // The text is kept as it came, everything that repeats is shared.
+                assertSame(message.msg, text);
+                assertPooled(pooled, nick);
+                assertPooled(pooled, from);
+                if (extras != null) {
+                    for (Object extra : extras) {
+                        if (extra instanceof String) {
+                            assertPooled(pooled, (String) extra);
+                        }
+                    }
+                }
+            }
+        });
+        assertEquals(COUNT, rows[0]);
+        assertTrue(pooled.size() < NICKS * 3);
+    }
+
+    public void testGroupsMatchBufferEvents() throws Exception {
+        List<BufferEventMessage> messages = createMessages();
+        EventLog log = new EventLog(COUNT, 1, 2, 0);
+        List<BufferEvent> events = new ArrayList<>();
+        BufferEvent last = null;
+        for (BufferEventMessage message : messages) {
+            log.add(message);
+
+            BufferEventItem item = new BufferEventItem<>(message);
+            if (last != null && last.shouldMerge(item)) {
+                last.addItem(item);
+            } else {
+                last = new BufferEvent(item);
+                events.add(last);
+            }
+        }
+
+        List<BufferEvent> snapshot = log.getSnapshot();
+        assertEquals(events.size(), snapshot.size());
+        assertTrue(snapshot.size() < COUNT);
+        for (int i = 0; i < events.size(); i++) {
+            BufferEvent expected = events.get(i);
+            BufferEvent actual = snapshot.get(i);
+            assertEquals(expected.getItems().size(), actual.getItems().size());
+            assertEquals(expected.getFirstItem().getMessage().eid, actual.getFirstItem().getMessage().eid);
+        }
+    }
+
+    public void testMergedGroupIsExtended() throws Exception {
+        EventLog log = new EventLog(Buffer.MAX_EVENTS, 1, 2, 0);
+        Gson gson = new Gson();
+        long eid = 1400000000000000L;
+
+        BufferEvent previous = null;
+        for (int i = 0; i < 100; i++) {
+            log.add(gson.fromJson(String.format(
+                "{\"eid\":%d,\"type\":\"joined_channel\",\"nick\":\"user%d\",\"chan\":\"#tapchat\"}", eid + i, i),
+                JoinedChannelMessage.class));
+            Supplier<BufferEvent> supplier = log.getLastSupplier();
+            BufferEvent event = supplier.get();
+            assertEquals(i + 1, event.getItems().size());
+            if (previous != null) {
+                // Only the new row is built, the rest is carried over from the last time.
+                assertSame(previous.getItems().get(0), event.getItems().get(0));
+            }
+            previous = event;
+        }
+        assertEquals(1, log.getSnapshot().size());
+    }
+
+    private static void assertPooled(Map<String, String> pooled, String value) {
+        if (value != null) {
+            String first = pooled.put(value, value);
+            assertTrue(value, first == null || first == value);
+        }
+    }
+
+    // Parses the messages from JSON, so that every string is its own copy like it is when read off the socket.
+    private static List<BufferEventMessage> createMessages() {
+        Gson gson = new Gson();
+        Random random = new Random(1);
+        List<BufferEventMessage> messages = new ArrayList<>(COUNT);
+        long eid = 1400000000000000L;
+        for (int i = 0; i < COUNT; i++) {
+            String nick = "user" + random.nextInt(NICKS);
+            eid += 1000 + random.nextInt(5000000);
+            long time = eid / 1000000;
+            int kind = random.nextInt(10);
+            BufferEventMessage message;
+            if (kind < 7) {
+                message = gson.fromJson(String.format("{\"cid\":1,\"bid\":2,\"eid\":%d,\"type\":\"buffer_msg\"," +
+                    "\"time\":%d,\"highlight\":false,\"from\":\"%s\",\"msg\":\"message %d lorem ipsum dolor\"," +
+                    "\"chan\":\"#tapchat\"}", eid, time, nick, i), BufferMsgMessage.class);
+            } else if (kind < 9) {
+                message = gson.fromJson(String.format("{\"cid\":1,\"bid\":2,\"eid\":%d,\"type\":\"joined_channel\"," +
+                    "\"time\":%d,\"nick\":\"%s\",\"hostmask\":\"~%s@host.example.com\",\"chan\":\"#tapchat\"}",
+                    eid, time, nick, nick), JoinedChannelMessage.class);
+            } else {
+                message = gson.fromJson(String.format("{\"cid\":1,\"bid\":2,\"eid\":%d,\"type\":\"parted_channel\"," +
+                    "\"time\":%d,\"nick\":\"%s\",\"msg\":\"bye\",\"hostmask\":\"~%s@host.example.com\"," +
+                    "\"chan\":\"#tapchat\"}", eid, time, nick, nick), PartedChannelMessage.class);
+            }
+            messages.add(message);
+        }
+        return messages;
+    }
+}
@@ -48,6 +48,8 @@ public class TapchatApp extends Application {
     public static final String PREF_SHOW_ARCHIVED       = "com.tapchatapp.android.pref_show_archived";
     public static final String PREF_NOTIFICATIONS       = "com.tapchatapp.android.pref_notifications";
     public static final String PREF_SELECTED_CONNECTION = "com.tapchat.android.pref_selected_connection";
+    public static final String PREF_SELECTED_BUFFER_CID = "com.tapchatapp.android.pref_selected_buffer_cid";
+    public static final String PREF_SELECTED_BUFFER_BID = "com.tapchatapp.android.pref_selected_buffer_bid";
     public static final String PREF_DEBUG               = "com.tapchatapp.android.pref_debug";
 
     public static final String ACTION_MESSAGE_NOTIFY       = "com.tapchatapp.android.ACTION_MESSAGE_NOTIFY";
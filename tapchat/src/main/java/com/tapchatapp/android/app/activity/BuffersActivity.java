@@ -173,7 +173,7 @@ public class BuffersActivity extends TapchatServiceFragmentActivity {
 
     @Subscribe public void onServiceStateChanged(ServiceStateChangedEvent event) {
         final TapchatService service = event.getService();
-        if (service.getConnectionState() != TapchatService.STATE_LOADED) {
+        if (!service.isModelAvailable()) {
             return;
         }
 
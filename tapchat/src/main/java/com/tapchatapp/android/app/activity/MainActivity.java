@@ -158,6 +158,10 @@ public class MainActivity extends TapchatServiceFragmentActivity {
                  return true;
              }
 
+             case R.id.search:
+                 startActivity(new Intent(this, SearchActivity.class));
+                 return true;
+
              case R.id.preferences:
                  startActivity(new Intent(this, PreferencesActivity.class));
                  return true;
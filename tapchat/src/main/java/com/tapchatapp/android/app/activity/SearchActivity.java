@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2014 Eric Butler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tapchatapp.android.app.activity;
+
+import android.content.Intent;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.os.Handler;
+import android.text.format.DateUtils;
+import android.view.LayoutInflater;
+import android.view.MenuItem;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AdapterView;
+import android.widget.ArrayAdapter;
+import android.widget.EditText;
+import android.widget.ListView;
+import android.widget.TextView;
+
+import com.tapchatapp.android.R;
+import com.tapchatapp.android.app.TapchatAnalytics;
+import com.tapchatapp.android.client.SearchIndex;
+import com.tapchatapp.android.client.TapchatService;
+import com.tapchatapp.android.client.model.Buffer;
+import com.tapchatapp.android.client.model.Connection;
+
+import java.util.List;
+
+import javax.inject.Inject;
+
+import butterknife.ButterKnife;
+import butterknife.InjectView;
+import butterknife.OnItemClick;
+import butterknife.OnTextChanged;
+
+public class SearchActivity extends TapchatServiceActivity {
+
+    public static final String EXTRA_CID = "com.tapchatapp.android.EXTRA_CID";
+    public static final String EXTRA_BID = "com.tapchatapp.android.EXTRA_BID";
+
+    private static final long SEARCH_DELAY = 250;
+
+    @Inject TapchatAnalytics mAnalytics;
+
+    @InjectView(R.id.query) EditText mQueryEditText;
+    @InjectView(android.R.id.list) ListView mListView;
+    @InjectView(android.R.id.empty) TextView mEmptyTextView;
+
+    private final Handler mHandler = new Handler();
+
+    private long mConnectionId;
+    private long mBufferId;
+
+    private ResultAdapter mAdapter;
+    private AsyncTask<?, ?, ?> mSearchTask;
+
+    @Override public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+
+        setContentView(R.layout.activity_search);
+        ButterKnife.inject(this);
+
+        mConnectionId = getIntent().getLongExtra(EXTRA_CID, -1);
+        mBufferId     = getIntent().getLongExtra(EXTRA_BID, -1);
+
+        mAdapter = new ResultAdapter();
+        mListView.setAdapter(mAdapter);
+        mListView.setEmptyView(mEmptyTextView);
+
+        setTitle(R.string.search);
+
+        mAnalytics.trackScreenView("search");
+    }
+
+    @Override public void onServiceConnected(TapchatService service) {
+        super.onServiceConnected(service);
+
+        Connection connection = service.getConnection(mConnectionId);
+        if (connection != null) {
+            Buffer buffer = connection.getBuffer(mBufferId);
+            String scope = (buffer != null) ? buffer.getDisplayName() : connection.getName();
+            setTitle(getString(R.string.search_in_format, scope));
+        }
+
+        search();
+    }
+
+    @Override protected void onDestroy() {
+        super.onDestroy();
+        mHandler.removeCallbacks(mSearchRunnable);
+        if (mSearchTask != null) {
+            mSearchTask.cancel(false);
+        }
+    }
+
+    @Override public boolean onOptionsItemSelected(MenuItem item) {
+        if (item.getItemId() == android.R.id.home) {
+            finish();
+            return true;
+        }
+        return false;
+    }
+
+    @OnTextChanged(R.id.query) public void onTextChangedQuery() {
+        mHandler.removeCallbacks(mSearchRunnable);
+        mHandler.postDelayed(mSearchRunnable, SEARCH_DELAY);
+    }
+
+    @OnItemClick(android.R.id.list) public void onItemClickResult(int position) {
+        SearchIndex.Result result = mAdapter.getItem(position);
+        Intent intent = new Intent(this, BuffersActivity.class);
+        intent.setFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP);
+        intent.setData(Uri.parse(String.format("tapchat://%s/%s", result.cid, result.bid)));
+        startActivity(intent);
+    }
+
+    private final Runnable mSearchRunnable = new Runnable() {
+        @Override public void run() {
+            search();
+        }
+    };
+
+    private void search() {
+        final TapchatService service = getService();
+        if (service == null) {
+            return;
+        }
+
+        if (mSearchTask != null) {
+            mSearchTask.cancel(false);
+        }
+
+        final String query = mQueryEditText.getText().toString();
+        mEmptyTextView.setText(query.trim().isEmpty() ? null : getString(R.string.no_results));
+
+        mSearchTask = new AsyncTask<Void, Void, List<SearchIndex.Result>>() {
+            @Override protected List<SearchIndex.Result> doInBackground(Void... params) {
+                return service.getSearchIndex().search(query, mConnectionId, mBufferId, SearchIndex.DEFAULT_LIMIT);
+            }
+
+            @Override protected void onPostExecute(List<SearchIndex.Result> results) {
+                if (isCancelled()) {
+                    return;
+                }
+                mAdapter.setNotifyOnChange(false);
+                mAdapter.clear();
+                mAdapter.addAll(results);
+                mAdapter.notifyDataSetChanged();
+            }
+        }.execute();
+    }
+
+    private String getBufferName(SearchIndex.Result result) {
+        TapchatService service = getService();
+        Connection connection = (service != null) ? service.getConnection(result.cid) : null;
+        if (connection == null) {
+            return null;
+        }
+        Buffer buffer = connection.getBuffer(result.bid);
+        return (buffer != null) ? buffer.getDisplayName() : connection.getName();
+    }
+
+    private class ResultAdapter extends ArrayAdapter<SearchIndex.Result> {
+        ResultAdapter() {
+            super(SearchActivity.this, 0);
+        }
+
+        @Override public View getView(int position, View convertView, ViewGroup parent) {
+            if (convertView == null) {
+                convertView = LayoutInflater.from(getContext()).inflate(R.layout.search_result, parent, false);
+            }
+
+            SearchIndex.Result result = getItem(position);
+
+            TextView text1 = (TextView) convertView.findViewById(android.R.id.text1);
+            TextView text2 = (TextView) convertView.findViewById(android.R.id.text2);
+
+            if (result.nick != null) {
+                text1.setText(String.format("<%s> %s", result.nick, result.msg));
+            } else {
+                text1.setText(result.msg);
+            }
+
+            CharSequence time = DateUtils.getRelativeTimeSpanString(result.time);
+            String bufferName = getBufferName(result);
+            text2.setText((bufferName != null) ? bufferName + " · " + time : time);
+
+            return convertView;
+        }
+    }
+}
@@ -16,18 +16,23 @@
 
 package com.tapchatapp.android.app.event;
 
+import com.google.common.base.Supplier;
 import com.tapchatapp.android.client.model.Buffer;
 import com.tapchatapp.android.client.model.BufferEvent;
 
 public class BufferLineAddedEvent extends BaseBufferEvent {
-    private final BufferEvent mBufferEvent;
+    private final Supplier<BufferEvent> mBufferEvent;
 
-    public BufferLineAddedEvent(Buffer buffer, BufferEvent bufferEvent) {
+    public BufferLineAddedEvent(Buffer buffer, Supplier<BufferEvent> bufferEvent) {
         super(buffer.getConnection(), buffer);
         mBufferEvent = bufferEvent;
     }
 
+    /**
+     * Builds the event the line was added to, the first time it's asked for. Returns null if the buffer has already
+     * dropped it.
+     */
     public BufferEvent getBufferEvent() {
-        return mBufferEvent;
+        return mBufferEvent.get();
     }
 }
@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2014 Eric Butler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tapchatapp.android.app.event;
+
+import com.tapchatapp.android.client.TapchatService;
+
+public class LoadingProgressEvent extends BaseServiceEvent {
+    private final int mLoadedConnections;
+    private final int mTotalConnections;
+
+    public LoadingProgressEvent(TapchatService service, int loadedConnections, int totalConnections) {
+        super(service);
+        mLoadedConnections = loadedConnections;
+        mTotalConnections  = totalConnections;
+    }
+
+    public int getLoadedConnections() {
+        return mLoadedConnections;
+    }
+
+    public int getTotalConnections() {
+        return mTotalConnections;
+    }
+}
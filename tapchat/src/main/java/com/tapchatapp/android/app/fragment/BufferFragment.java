@@ -26,7 +26,9 @@ import android.graphics.Color;
 import android.graphics.Typeface;
 import android.graphics.drawable.ColorDrawable;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.text.ClipboardManager;
 import android.text.Spannable;
 import android.text.SpannableString;
@@ -53,6 +55,7 @@ import com.squareup.otto.Bus;
 import com.squareup.otto.Subscribe;
 import com.tapchatapp.android.R;
 import com.tapchatapp.android.app.TapchatApp;
+import com.tapchatapp.android.app.activity.SearchActivity;
 import com.tapchatapp.android.app.event.BufferChangedEvent;
 import com.tapchatapp.android.app.event.BufferLineAddedEvent;
 import com.tapchatapp.android.app.event.BufferRemovedEvent;
@@ -71,6 +74,7 @@ import com.tapchatapp.android.app.ui.ConnectionStatusBar;
 import com.tapchatapp.android.app.ui.FilterableListAdapter;
 
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.regex.Matcher;
@@ -87,6 +91,12 @@ public class BufferFragment extends ListFragment {
     public static final String ARG_CONNECTION_ID = "com.tapchatapp.android.arg_connection_id";
     public static final String ARG_BUFFER_ID = "com.tapchatapp.android.arg_buffer_id";
 
+    private static final int OLDER_EVENTS_PAGE_SIZE   = 100;
+    private static final int OLDER_EVENTS_THRESHOLD   = 5;
+    private static final int OLDER_EVENTS_WINDOW      = 2 * OLDER_EVENTS_PAGE_SIZE;
+    private static final int MAX_OLDER_EVENTS         = 5 * OLDER_EVENTS_PAGE_SIZE;
+    private static final long OLDER_EVENTS_RETRY_DELAY = 5000;
+
     private static final Pattern URL_PATTERN = Pattern.compile("\\(?\\bhttps?://[-A-Za-z0-9+&@#/%?=~_()|!:,.;]*[-A-Za-z0-9+&@#/%=~_()|]");
 
     protected long mBufferId;
@@ -95,13 +105,25 @@ public class BufferFragment extends ListFragment {
 
     protected Buffer mBuffer;
 
-    private int mConnectionState;
+    private boolean mModelAvailable;
     private long mConnectionId;
 
     private BufferEventRenderer mRenderer;
     private BufferEventRenderer mMenuRenderer;
     private ConnectionStatusBar mStatusBar;
 
+    // Events paged in from the event store or the bouncer, older than anything the buffer keeps in memory. At most
+    // MAX_OLDER_EVENTS are kept around the rows on screen. While the ones between them and the buffer's backlog are
+    // dropped, only these are shown, and the dropped ones are read back from the event store when scrolled to.
+    private final List<BufferEvent> mOlderEvents = new ArrayList<>();
+    private boolean mOlderEventsDetached;
+    private boolean mLoadingEvents;
+    private boolean mNoOlderEvents;
+    private long mLoadEventsRetryAt;
+
+    // Backlog generation the list was last filled from, or -1 to refill it on the next update.
+    private long mBacklogGeneration = -1;
+
     @Inject Bus mBus;
 
     public static BufferFragment create(int type, long connectionId, long bufferId) {
@@ -181,6 +203,7 @@ public class BufferFragment extends ListFragment {
     @Override public void onPrepareOptionsMenu(Menu menu) {
         boolean hasBuffer = mBuffer != null && (!(mBuffer instanceof ConsoleBuffer));
         boolean isArchived = (hasBuffer && mBuffer.isArchived());
+        menu.findItem(R.id.search).setVisible(mBuffer != null);
         menu.findItem(R.id.archive).setVisible(hasBuffer && !isArchived);
         menu.findItem(R.id.unarchive).setVisible(hasBuffer && isArchived);
         menu.findItem(R.id.delete).setVisible(hasBuffer);
@@ -188,7 +211,14 @@ public class BufferFragment extends ListFragment {
     }
 
     @Override public boolean onOptionsItemSelected(MenuItem item) {
-        if (item.getItemId() == R.id.archive) {
+        if (item.getItemId() == R.id.search) {
+            Intent intent = new Intent(getActivity(), SearchActivity.class);
+            intent.putExtra(SearchActivity.EXTRA_CID, mConnection.getId());
+            intent.putExtra(SearchActivity.EXTRA_BID, mBuffer.getId());
+            startActivity(intent);
+            return true;
+
+        } else if (item.getItemId() == R.id.archive) {
             mBuffer.archive();
             TapchatApp.goHome(getActivity(), mConnection.getId());
             return true;
@@ -231,6 +261,25 @@ public class BufferFragment extends ListFragment {
         listView.setStackFromBottom(true);
         listView.setTranscriptMode(AbsListView.TRANSCRIPT_MODE_NORMAL);
         listView.setSmoothScrollbarEnabled(false);
+        listView.setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override public void onScrollStateChanged(AbsListView view, int scrollState) {
+                if (scrollState == SCROLL_STATE_IDLE) {
+                    trimOlderEvents();
+                }
+            }
+
+            @Override public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+                if (totalItemCount == 0) {
+                    return;
+                }
+                if (firstVisibleItem <= OLDER_EVENTS_THRESHOLD) {
+                    loadOlderEvents();
+                } else if (mOlderEventsDetached
+                        && firstVisibleItem + visibleItemCount >= totalItemCount - OLDER_EVENTS_THRESHOLD) {
+                    loadNewerEvents();
+                }
+            }
+        });
 //        listView.setCacheColorHint(Color.TRANSPARENT);
 
         LayoutParams params = new LayoutParams(MATCH_PARENT, 0);
@@ -277,15 +326,18 @@ public class BufferFragment extends ListFragment {
     @Subscribe public void onServiceStateChanged(ServiceStateChangedEvent event) {
         TapchatService service = event.getService();
 
-        if (service.getConnectionState() == TapchatService.STATE_LOADED) {
-            if (mConnection == null && mBuffer == null) {
+        if (service.isModelAvailable()) {
+            if (mConnection == null || mBuffer == null) {
+                boolean isLoaded = (service.getConnectionState() == TapchatService.STATE_LOADED);
+
+                // A buffer from the saved snapshot may be gone by the time the bouncer catches up.
                 mConnection = service.getConnection(mConnectionId);
-                if (mConnection == null) {
+                if (mConnection == null && isLoaded) {
                     throw new IllegalStateException("Connection not found. " + mConnectionId + " connections: " + service.getConnections());
                 }
 
-                mBuffer = mConnection.getBuffer(mBufferId);
-                if (mBuffer == null) {
+                mBuffer = (mConnection != null) ? mConnection.getBuffer(mBufferId) : null;
+                if (mBuffer == null && isLoaded) {
                     throw new IllegalStateException("Buffer not found. " + mBufferId + " buffers: " + mConnection.getBuffers());
                 }
             }
@@ -294,7 +346,8 @@ public class BufferFragment extends ListFragment {
             mBuffer     = null;
         }
 
-        mConnectionState = service.getConnectionState();
+        mModelAvailable = service.isModelAvailable();
+        mBacklogGeneration = -1;
         updateUI();
     }
 
@@ -312,13 +365,23 @@ public class BufferFragment extends ListFragment {
     }
 
     @Subscribe public void onBufferLineAdded(final BufferLineAddedEvent event) {
-        if (event.getBuffer().getId() != mBufferId || mConnectionState != TapchatService.STATE_LOADED) {
+        if (event.getBuffer().getId() != mBufferId || !mModelAvailable) {
+            return;
+        }
+
+        // Shown once the list is scrolled back down to the backlog.
+        if (mOlderEventsDetached) {
             return;
         }
 
         BufferEventListAdapter adapter = (BufferEventListAdapter) getListAdapter();
-        if (adapter != null && !adapter.contains(event.getBufferEvent())) {
-            adapter.addItem(event.getBufferEvent());
+        BufferEvent bufferEvent = (adapter != null) ? event.getBufferEvent() : null;
+        if (bufferEvent != null) {
+            // A message merged into the last event comes as a new copy of it, which replaces the one we have.
+            if (adapter.contains(bufferEvent)) {
+                adapter.removeItem(bufferEvent);
+            }
+            adapter.addItem(bufferEvent);
         }
     }
 
@@ -403,12 +466,14 @@ public class BufferFragment extends ListFragment {
             return;
         }
 
-        if (mConnectionState == TapchatService.STATE_LOADED && mBuffer != null) {
+        if (mModelAvailable && mBuffer != null) {
+            long generation = mBuffer.getBacklogGeneration();
             if (getListAdapter() == null) {
-                setListAdapter(new BufferEventListAdapter(mBuffer.getBacklog()));
-            } else {
-                ((BufferEventListAdapter) getListAdapter()).updateItems(mBuffer.getBacklog());
+                setListAdapter(new BufferEventListAdapter(getEvents()));
+            } else if (generation != mBacklogGeneration) {
+                ((BufferEventListAdapter) getListAdapter()).updateItems(getEvents());
             }
+            mBacklogGeneration = generation;
 
             getView().findViewById(R.id.text_entry).setEnabled(mBuffer.isActive());
             getView().findViewById(R.id.send_button).setEnabled(mBuffer.isActive());
@@ -419,12 +484,193 @@ public class BufferFragment extends ListFragment {
         }
     }
 
+    private List<BufferEvent> getEvents() {
+        if (mOlderEventsDetached) {
+            return new ArrayList<>(mOlderEvents);
+        }
+
+        List<BufferEvent> backlog = mBuffer.getBacklog();
+        if (mOlderEvents.isEmpty()) {
+            return backlog;
+        }
+
+        // Keep what the buffer dropped from memory since the older events were loaded, so there's no gap.
+        BufferEventListAdapter adapter = (BufferEventListAdapter) getListAdapter();
+        if (adapter != null) {
+            long lastOlderEid = mOlderEvents.get(mOlderEvents.size() - 1).getLastItem().getEid();
+            long firstBacklogEid = !backlog.isEmpty() ? backlog.get(0).getFirstItem().getEid() : Long.MAX_VALUE;
+            for (int i = 0; i < adapter.getCount(); i++) {
+                BufferEvent event = adapter.getItem(i);
+                long eid = event.getFirstItem().getEid();
+                if (eid > lastOlderEid && eid < firstBacklogEid) {
+                    mOlderEvents.add(event);
+                }
+            }
+        }
+
+        List<BufferEvent> events = new ArrayList<>(mOlderEvents.size() + backlog.size());
+        events.addAll(mOlderEvents);
+        events.addAll(backlog);
+        return events;
+    }
+
+    private boolean canLoadEvents() {
+        BufferEventListAdapter adapter = (BufferEventListAdapter) getListAdapter();
+        return mBuffer != null && adapter != null && adapter.getCount() > 0 && !mLoadingEvents
+            && SystemClock.elapsedRealtime() >= mLoadEventsRetryAt;
+    }
+
+    private void loadOlderEvents() {
+        if (!canLoadEvents() || mNoOlderEvents) {
+            return;
+        }
+
+        final Buffer buffer = mBuffer;
+        final long beforeEid = ((BufferEventListAdapter) getListAdapter()).getItem(0).getFirstItem().getEid();
+        mLoadingEvents = true;
+
+        new AsyncTask<Void, Void, List<BufferEvent>>() {
+            @Override protected List<BufferEvent> doInBackground(Void... params) {
+                try {
+                    return buffer.loadOlderEvents(beforeEid, OLDER_EVENTS_PAGE_SIZE);
+                } catch (Exception ex) {
+                    Log.e("BufferFragment", "Failed to load older events", ex);
+                    return null;
+                }
+            }
+
+            @Override protected void onPostExecute(List<BufferEvent> events) {
+                mLoadingEvents = false;
+                if (events == null) {
+                    // Try again once the network had a moment, rather than on every scroll.
+                    mLoadEventsRetryAt = SystemClock.elapsedRealtime() + OLDER_EVENTS_RETRY_DELAY;
+                    return;
+                }
+                if (getView() == null || mBuffer != buffer) {
+                    return;
+                }
+                if (events.isEmpty()) {
+                    mNoOlderEvents = true;
+                    return;
+                }
+
+                // Keep the rows that are on screen where they are.
+                ListView listView = getListView();
+                int position = listView.getFirstVisiblePosition();
+                View firstView = listView.getChildAt(0);
+                int top = (firstView != null) ? firstView.getTop() : 0;
+
+                mOlderEvents.addAll(0, events);
+
+                // Drop what is now far below the screen. It's in the event store and is read back when scrolled to.
+                int excess = mOlderEvents.size() - MAX_OLDER_EVENTS;
+                if (excess > 0) {
+                    mOlderEvents.subList(mOlderEvents.size() - excess, mOlderEvents.size()).clear();
+                    mOlderEventsDetached = true;
+                }
+
+                mBacklogGeneration = -1;
+                updateUI();
+                listView.setSelectionFromTop(position + events.size(), top);
+            }
+        }.execute();
+    }
+
+    private void loadNewerEvents() {
+        if (!canLoadEvents() || mOlderEvents.isEmpty()) {
+            return;
+        }
+
+        final Buffer buffer = mBuffer;
+        final long afterEid = mOlderEvents.get(mOlderEvents.size() - 1).getLastItem().getEid();
+        mLoadingEvents = true;
+
+        new AsyncTask<Void, Void, List<BufferEvent>>() {
+            @Override protected List<BufferEvent> doInBackground(Void... params) {
+                try {
+                    return buffer.loadNewerEvents(afterEid, OLDER_EVENTS_PAGE_SIZE);
+                } catch (Exception ex) {
+                    Log.e("BufferFragment", "Failed to load newer events", ex);
+                    return null;
+                }
+            }
+
+            @Override protected void onPostExecute(List<BufferEvent> events) {
+                mLoadingEvents = false;
+                if (events == null) {
+                    mLoadEventsRetryAt = SystemClock.elapsedRealtime() + OLDER_EVENTS_RETRY_DELAY;
+                    return;
+                }
+                if (getView() == null || mBuffer != buffer || !mOlderEventsDetached) {
+                    return;
+                }
+
+                // Once the events reach the buffer's backlog, the rest comes from there.
+                List<BufferEvent> backlog = buffer.getBacklog();
+                long firstBacklogEid = !backlog.isEmpty() ? backlog.get(0).getFirstItem().getEid() : Long.MAX_VALUE;
+                boolean reachedBacklog = events.isEmpty();
+                for (BufferEvent event : events) {
+                    if (event.getFirstItem().getEid() >= firstBacklogEid) {
+                        reachedBacklog = true;
+                        break;
+                    }
+                    mOlderEvents.add(event);
+                }
+                if (reachedBacklog) {
+                    mOlderEventsDetached = false;
+                }
+
+                ListView listView = getListView();
+                int position = listView.getFirstVisiblePosition();
+                View firstView = listView.getChildAt(0);
+                int top = (firstView != null) ? firstView.getTop() : 0;
+
+                int excess = mOlderEvents.size() - MAX_OLDER_EVENTS;
+                if (excess > 0) {
+                    mOlderEvents.subList(0, excess).clear();
+                    mNoOlderEvents = false;
+                    position -= excess;
+                }
+
+                mBacklogGeneration = -1;
+                updateUI();
+                listView.setSelectionFromTop(Math.max(0, position), top);
+            }
+        }.execute();
+    }
+
+    /**
+     * Drops older events that are well above the rows on screen. They are paged in again when scrolled back up to.
+     */
+    private void trimOlderEvents() {
+        if (getView() == null || mLoadingEvents) {
+            return;
+        }
+
+        ListView listView = getListView();
+        int position = listView.getFirstVisiblePosition();
+        int count = Math.min(mOlderEvents.size(), position - OLDER_EVENTS_WINDOW);
+        if (count < OLDER_EVENTS_PAGE_SIZE) {
+            return;
+        }
+
+        View firstView = listView.getChildAt(0);
+        int top = (firstView != null) ? firstView.getTop() : 0;
+
+        mOlderEvents.subList(0, count).clear();
+        mNoOlderEvents = false;
+
+        mBacklogGeneration = -1;
+        updateUI();
+        listView.setSelectionFromTop(position - count, top);
+    }
+
     private class BufferEventListAdapter extends FilterableListAdapter<BufferEvent> {
         private int mHighlightBgColor;
         private SimpleDateFormat mDateFormat = new SimpleDateFormat("MMMM d, yyyy");
 
-        private BufferEventListAdapter(BufferEvent[] items) {
-            super(Buffer.MAX_EVENTS);
+        private BufferEventListAdapter(List<BufferEvent> items) {
+            super();
 
             TypedArray typedArray = getActivity().obtainStyledAttributes(R.styleable.Tapchat);
             mHighlightBgColor = typedArray.getColor(R.styleable.Tapchat_highlightBgColor, Color.TRANSPARENT);
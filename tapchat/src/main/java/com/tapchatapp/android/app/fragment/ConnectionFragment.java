@@ -62,7 +62,7 @@ public class ConnectionFragment extends ListFragment {
     private long mConnectionId;
     private int mListHighlightTextColor;
     private int mListTextColor;
-    private int mServiceState;
+    private boolean mModelAvailable;
 
     private Connection mConnection;
     private ConnectionStatusBar mStatusBar;
@@ -140,8 +140,8 @@ public class ConnectionFragment extends ListFragment {
 
     @Subscribe public void onServiceStateChanged(ServiceStateChangedEvent event) {
         TapchatService service = event.getService();
-        mServiceState = service.getConnectionState();
-        if (mServiceState == TapchatService.STATE_LOADED) {
+        mModelAvailable = service.isModelAvailable();
+        if (mModelAvailable) {
             if (mConnection == null) {
                 mConnection = service.getConnection(mConnectionId);
             }
@@ -160,7 +160,7 @@ public class ConnectionFragment extends ListFragment {
     }
 
     @Subscribe public void onBufferAdded(BufferAddedEvent event) {
-        if (event.getConnection().getId() != mConnectionId || mServiceState != TapchatService.STATE_LOADED) {
+        if (event.getConnection().getId() != mConnectionId || !mModelAvailable) {
             return;
         }
 
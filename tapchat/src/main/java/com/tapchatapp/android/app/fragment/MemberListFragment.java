@@ -26,15 +26,19 @@ import android.widget.TextView;
 import com.squareup.otto.Bus;
 import com.squareup.otto.Subscribe;
 import com.tapchatapp.android.R;
+import com.tapchatapp.android.app.event.BaseBufferEvent;
+import com.tapchatapp.android.app.event.MemberAddedEvent;
+import com.tapchatapp.android.app.event.MemberChangedEvent;
+import com.tapchatapp.android.app.event.MemberRemovedEvent;
+import com.tapchatapp.android.app.event.MembersReloadedEvent;
 import com.tapchatapp.android.app.event.ServiceStateChangedEvent;
-import com.tapchatapp.android.app.ui.FilterableListAdapter;
+import com.tapchatapp.android.app.ui.SortedListAdapter;
 import com.tapchatapp.android.app.TapchatApp;
 import com.tapchatapp.android.client.TapchatService;
 import com.tapchatapp.android.client.model.ChannelBuffer;
 import com.tapchatapp.android.client.model.Member;
 
 import java.util.Comparator;
-import java.util.List;
 
 import javax.inject.Inject;
 
@@ -84,38 +88,93 @@ public class MemberListFragment extends ListFragment {
             if (mChannel == null) {
                 throw new IllegalStateException("Channel buffer not found. " + connectionId + " " + bufferId);
             }
+
+            updateView();
         }
+    }
 
-        updateView();
+    @Subscribe public void onMemberAdded(MemberAddedEvent event) {
+        MemberListAdapter adapter = getAdapter(event);
+        if (adapter != null) {
+            adapter.addItem(event.getMember());
+            updateTitle();
+        }
+    }
+
+    @Subscribe public void onMemberRemoved(MemberRemovedEvent event) {
+        MemberListAdapter adapter = getAdapter(event);
+        if (adapter != null) {
+            adapter.removeItem(event.getMember());
+            updateTitle();
+        }
+    }
+
+    @Subscribe public void onMemberChanged(MemberChangedEvent event) {
+        MemberListAdapter adapter = getAdapter(event);
+        if (adapter != null) {
+            adapter.changeItem(event.getOldMember(), event.getMember());
+        }
+    }
+
+    @Subscribe public void onMembersReloaded(MembersReloadedEvent event) {
+        if (getAdapter(event) != null) {
+            updateView();
+        }
+    }
+
+    /**
+     * Returns the adapter if the event is for this channel and the list has been filled, otherwise null.
+     */
+    private MemberListAdapter getAdapter(BaseBufferEvent event) {
+        if (mChannel == null || event.getBuffer() != mChannel) {
+            return null;
+        }
+        return (MemberListAdapter) getListAdapter();
     }
 
     private void updateView() {
-        if (getView() == null) {
+        if (getView() == null || mChannel == null) {
             return;
         }
 
-        if (mChannel != null) {
-            int numMembers = mChannel.getMembers().size();
-            String title = getResources().getQuantityString(R.plurals.channel_members_format, numMembers, String.valueOf(numMembers), mChannel.getName());
-            getActivity().setTitle(title);
-
-            if (getListAdapter() == null) {
-                setListAdapter(new MemberListAdapter(mChannel.getMembers()));
-            } else {
-                ((MemberListAdapter) getListAdapter()).updateItems(mChannel.getMembers());
-            }
+        MemberListAdapter adapter = (MemberListAdapter) getListAdapter();
+        if (adapter == null) {
+            adapter = new MemberListAdapter();
+            setListAdapter(adapter);
         }
+        adapter.setItems(mChannel.getMembers());
+
+        updateTitle();
+    }
+
+    private void updateTitle() {
+        int numMembers = getListAdapter().getCount();
+        String title = getResources().getQuantityString(R.plurals.channel_members_format, numMembers, String.valueOf(numMembers), mChannel.getName());
+        getActivity().setTitle(title);
     }
 
-    private class MemberListAdapter extends FilterableListAdapter<Member> {
-        private MemberListAdapter(List<Member> members) {
-            updateItems(members);
+    private static class MemberListAdapter extends SortedListAdapter<Member> {
+        private static final Comparator<Member> COMPARATOR = new Comparator<Member>() {
+            @Override
+            public int compare(Member member, Member member1) {
+                int weight1 = getMemberWeight(member);
+                int weight2 = getMemberWeight(member1);
+                if (weight1 != weight2) {
+                    return (weight1 > weight2) ? -1 : 1;
+                }
+                int result = member.getNick().compareToIgnoreCase(member1.getNick());
+                return (result != 0) ? result : member.getNick().compareTo(member1.getNick());
+            }
+        };
+
+        private MemberListAdapter() {
+            super(COMPARATOR);
         }
 
         @Override
         public View getView(int position, View convertView, ViewGroup group) {
             if (convertView == null) {
-                convertView = View.inflate(getActivity(), android.R.layout.simple_list_item_1, null);
+                convertView = View.inflate(group.getContext(), android.R.layout.simple_list_item_1, null);
             }
 
             Member member = getItem(position);
@@ -125,29 +184,15 @@ public class MemberListFragment extends ListFragment {
             return convertView;
         }
 
-        @Override protected Comparator<? super Member> getComparator() {
-            return new Comparator<Member>() {
-                @Override
-                public int compare(Member member, Member member1) {
-                    Integer weight1 = getMemberWeight(member);
-                    Integer weight2 = getMemberWeight(member1);
-                    if (weight1.equals(weight2)) {
-                        return member.getNick().compareToIgnoreCase(member1.getNick());
-                    } else {
-                        return weight2.compareTo(weight1);
-                    }
-                }
-            };
-        }
-
-        private int getMemberWeight(Member member) {
-            int weight = 0;
+        private static int getMemberWeight(Member member) {
             if (member.isOp()) {
-                weight += 2;
+                return 3;
+            } else if (member.isHalfOp()) {
+                return 2;
             } else if (member.isVoiced()) {
-                weight += 1;
+                return 1;
             }
-            return weight;
+            return 0;
         }
     }
 }
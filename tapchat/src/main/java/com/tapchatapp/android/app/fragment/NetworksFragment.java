@@ -156,7 +156,7 @@ public class NetworksFragment extends ListFragment {
 
     @Subscribe public void onServiceStateChanged(ServiceStateChangedEvent event) {
         final TapchatService service = event.getService();
-        if (service.getConnectionState() == TapchatService.STATE_LOADED) {
+        if (service.isModelAvailable()) {
             if (getView() != null) {
                 setListShown(true);
             }
@@ -32,7 +32,6 @@ import android.util.Pair;
 import com.google.common.base.Function;
 import com.google.common.base.Joiner;
 import com.google.common.base.Predicate;
-import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.tapchatapp.android.R;
 import com.tapchatapp.android.client.message.AwayMessage;
@@ -51,6 +50,7 @@ import com.tapchatapp.android.client.message.ConnectingMessage;
 import com.tapchatapp.android.client.message.ConnectingRetryMessage;
 import com.tapchatapp.android.client.message.JoinedChannelMessage;
 import com.tapchatapp.android.client.message.KickedChannelMessage;
+import com.tapchatapp.android.client.message.MessageType;
 import com.tapchatapp.android.client.message.NickchangeMessage;
 import com.tapchatapp.android.client.message.NoticeMessage;
 import com.tapchatapp.android.client.message.PartedChannelMessage;
@@ -79,8 +79,6 @@ import static com.google.common.collect.Lists.newArrayList;
 
 public class BufferEventRenderer {
 
-    private static final List<String> PRESENCE_TYPES = ImmutableList.of("joined_channel", "parted_channel", "quit");
-
     private Context mContext;
 
     private boolean mIncludeTimestamp;
@@ -117,7 +115,7 @@ public class BufferEventRenderer {
             for (BufferEventItem item : event.getItems()) {
                 BufferEventMessage message = item.getMessage();
                 String type = message.type;
-                if (PRESENCE_TYPES.contains(type)) {
+                if (message.getMessageType().is(MessageType.PRESENCE)) {
                     presenceChanges.put(message.nick, type);
 
                 } else if (type.equals("nickchange")) {
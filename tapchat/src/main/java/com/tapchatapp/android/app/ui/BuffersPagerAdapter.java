@@ -52,7 +52,7 @@ public class BuffersPagerAdapter extends TapchatFragmentStatePagerAdapter {
 
     private ArrayList<BufferInfo> mBuffers = new ArrayList<>();
 
-    private int mConnectionState;
+    private boolean mModelAvailable;
 
     @Inject Bus mBus;
 
@@ -93,12 +93,15 @@ public class BuffersPagerAdapter extends TapchatFragmentStatePagerAdapter {
     @Subscribe public void onServiceStateChanged(ServiceStateChangedEvent event) {
         TapchatService service = event.getService();
 
-        mConnectionState = service.getConnectionState();
-        if (mConnectionState != TapchatService.STATE_LOADED) {
+        mModelAvailable = service.isModelAvailable();
+        if (!mModelAvailable) {
             return;
         }
 
         Connection connection = service.getConnection(mConnectionId);
+        if (connection == null) {
+            return;
+        }
 
         final ArrayList<BufferInfo> buffers = new ArrayList<>();
 
@@ -123,7 +126,7 @@ public class BuffersPagerAdapter extends TapchatFragmentStatePagerAdapter {
             return;
         }
 
-        if (mConnectionState != TapchatService.STATE_LOADED) {
+        if (!mModelAvailable) {
             return;
         }
 
@@ -148,7 +151,7 @@ public class BuffersPagerAdapter extends TapchatFragmentStatePagerAdapter {
             return;
         }
 
-        if (mConnectionState != TapchatService.STATE_LOADED) {
+        if (!mModelAvailable) {
             return;
         }
 
@@ -188,7 +191,7 @@ public class BuffersPagerAdapter extends TapchatFragmentStatePagerAdapter {
             return;
         }
 
-        if (mConnectionState != TapchatService.STATE_LOADED) {
+        if (!mModelAvailable) {
             return;
         }
 
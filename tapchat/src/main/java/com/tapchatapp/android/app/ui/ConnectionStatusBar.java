@@ -30,7 +30,6 @@ import com.tapchatapp.android.app.event.ConnectionChangedEvent;
 import com.tapchatapp.android.app.event.ServiceStateChangedEvent;
 import com.tapchatapp.android.app.TapchatApp;
 import com.tapchatapp.android.client.model.Connection;
-import com.tapchatapp.android.client.TapchatService;
 
 public class ConnectionStatusBar {
 
@@ -64,7 +63,7 @@ public class ConnectionStatusBar {
 
     @Subscribe
     public void onServiceStateChanged(ServiceStateChangedEvent event) {
-        if (mConnection == null && event.getService().getConnectionState() == TapchatService.STATE_LOADED) {
+        if (mConnection == null && event.getService().isModelAvailable()) {
             mConnection = event.getService().getConnection(mConnectionId);
             if (mConnection == null) {
                 return; // FIXME: Throw error?
@@ -52,7 +52,7 @@ public class ConnectionsPagerAdapter extends TapchatFragmentStatePagerAdapter {
 
     private ArrayList<ConnectionInfo> mConnections = new ArrayList<>();
 
-    private int mServiceState;
+    private boolean mModelAvailable;
     private boolean mIsLoaded;
 
     @Inject Bus mBus;
@@ -130,9 +130,9 @@ public class ConnectionsPagerAdapter extends TapchatFragmentStatePagerAdapter {
     @Subscribe public void onServiceStateChanged(ServiceStateChangedEvent event) {
         final TapchatService service = event.getService();
 
-        mServiceState = service.getConnectionState();
+        mModelAvailable = service.isModelAvailable();
 
-        if (mServiceState != TapchatService.STATE_LOADED) {
+        if (!mModelAvailable) {
             postNotifyDataSetChanged();
             return;
         }
@@ -150,7 +150,7 @@ public class ConnectionsPagerAdapter extends TapchatFragmentStatePagerAdapter {
     @Subscribe public void onConnectionAdded(ConnectionAddedEvent event) {
         final Connection connection = event.getConnection();
 
-        if (mServiceState != TapchatService.STATE_LOADED) {
+        if (!mModelAvailable) {
             return;
         }
 
@@ -226,7 +226,7 @@ public class ConnectionsPagerAdapter extends TapchatFragmentStatePagerAdapter {
     }
 
     private void postNotifyDataSetChanged() {
-        if (mServiceState == TapchatService.STATE_LOADED) {
+        if (mModelAvailable) {
             mIsLoaded = true;
         }
         notifyDataSetChanged();
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2014 Eric Butler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tapchatapp.android.app.ui;
+
+import android.widget.BaseAdapter;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Keeps its items sorted as they are added, removed and changed one at a time, using binary search instead of
+ * sorting everything again. The comparator has to be a total order: two different items must never compare as equal.
+ * Like other adapters, only use it from the main thread.
+ */
+public abstract class SortedListAdapter<T> extends BaseAdapter {
+
+    private final Comparator<? super T> mComparator;
+
+    private List<T> mItems = new ArrayList<>();
+
+    protected SortedListAdapter(Comparator<? super T> comparator) {
+        mComparator = comparator;
+    }
+
+    @Override public int getCount() {
+        return mItems.size();
+    }
+
+    @Override public T getItem(int position) {
+        return mItems.get(position);
+    }
+
+    @Override public long getItemId(int position) {
+        return position;
+    }
+
+    public void setItems(Collection<T> items) {
+        List<T> sorted = new ArrayList<>(items);
+        Collections.sort(sorted, mComparator);
+        mItems = sorted;
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Adds the item, or replaces the one that sorts in the same place.
+     */
+    public void addItem(T item) {
+        int index = Collections.binarySearch(mItems, item, mComparator);
+        if (index >= 0) {
+            mItems.set(index, item);
+        } else {
+            mItems.add(-index - 1, item);
+        }
+        notifyDataSetChanged();
+    }
+
+    public void removeItem(T item) {
+        int index = Collections.binarySearch(mItems, item, mComparator);
+        if (index >= 0) {
+            mItems.remove(index);
+            notifyDataSetChanged();
+        }
+    }
+
+    /**
+     * Replaces oldItem with newItem, moving it if it now sorts somewhere else.
+     */
+    public void changeItem(T oldItem, T newItem) {
+        int oldIndex = Collections.binarySearch(mItems, oldItem, mComparator);
+        if (oldIndex < 0) {
+            addItem(newItem);
+            return;
+        }
+
+        // An away change, for example, leaves the item where it is.
+        if (isInPlace(oldIndex, newItem)) {
+            mItems.set(oldIndex, newItem);
+        } else {
+            mItems.remove(oldIndex);
+            int newIndex = Collections.binarySearch(mItems, newItem, mComparator);
+            if (newIndex >= 0) {
+                mItems.set(newIndex, newItem);
+            } else {
+                mItems.add(-newIndex - 1, newItem);
+            }
+        }
+        notifyDataSetChanged();
+    }
+
+    private boolean isInPlace(int index, T item) {
+        return (index == 0 || mComparator.compare(mItems.get(index - 1), item) < 0)
+            && (index == mItems.size() - 1 || mComparator.compare(item, mItems.get(index + 1)) < 0);
+    }
+}
@@ -27,6 +27,7 @@ import com.squareup.otto.Bus;
 import com.squareup.otto.Subscribe;
 import com.tapchatapp.android.R;
 import com.tapchatapp.android.app.activity.WelcomeActivity;
+import com.tapchatapp.android.app.event.LoadingProgressEvent;
 import com.tapchatapp.android.app.event.ServiceErrorEvent;
 import com.tapchatapp.android.app.event.ServiceStateChangedEvent;
 import com.tapchatapp.android.app.TapchatApp;
@@ -102,6 +103,13 @@ public class TapchatServiceStatusBar implements View.OnClickListener {
         }
     }
 
+    @Subscribe public void onLoadingProgress(LoadingProgressEvent event) {
+        if (event.getService().getConnectionState() == TapchatService.STATE_LOADING && event.getTotalConnections() > 0) {
+            showStatusText(mActivity.getString(R.string.tapchat_syncing_progress, event.getLoadedConnections(),
+                event.getTotalConnections()));
+        }
+    }
+
     @Subscribe public void onServiceError(ServiceErrorEvent event) {
         final Exception error = event.getError();
 
@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2014 Eric Butler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tapchatapp.android.client;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
+import com.tapchatapp.android.client.message.Message;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Parses a JSON array of messages using several threads.
+ *
+ * The calling thread only scans the text for the boundaries between top-level elements and cuts it into chunks of
+ * whole elements. The chunks are deserialized on the worker pool and the results are handed back on the calling
+ * thread in their original order.
+ */
+public class BacklogParser {
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    public static interface Listener {
+        void onMessage(Message message) throws Exception;
+        boolean isCancelled();
+    }
+
+    private final Gson mGson;
+    private final ExecutorService mWorkers;
+    private final int mMaxInFlight;
+
+    public BacklogParser(Gson gson, ExecutorService workers, int workerCount) {
+        mGson = gson;
+        mWorkers = workers;
+        mMaxInFlight = workerCount * 2;
+    }
+
+    public void parse(Reader reader, Listener listener) throws Exception {
+        ArrayDeque<Future<List<Message>>> inFlight = new ArrayDeque<>();
+        try {
+            split(reader, listener, inFlight);
+            while (!inFlight.isEmpty() && !listener.isCancelled()) {
+                deliver(inFlight.pollFirst(), listener);
+            }
+        } finally {
+            for (Future<List<Message>> future : inFlight) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    private void split(Reader reader, Listener listener, ArrayDeque<Future<List<Message>>> inFlight) throws Exception {
+        char[] buffer = new char[8192];
+        StringBuilder chunk = newChunk();
+        int depth = 0;
+        boolean started = false;
+        boolean inString = false;
+        boolean escaped = false;
+
+        int count;
+        while ((count = reader.read(buffer)) != -1) {
+            for (int i = 0; i < count; i++) {
+                char c = buffer[i];
+
+                if (!started) {
+                    if (c == '[') {
+                        started = true;
+                        depth = 1;
+                    } else if (!Character.isWhitespace(c)) {
+                        throw new IOException("Expected a JSON array but found '" + c + "'");
+                    }
+                    continue;
+                }
+
+                if (inString) {
+                    chunk.append(c);
+                    if (escaped) {
+                        escaped = false;
+                    } else if (c == '\\') {
+                        escaped = true;
+                    } else if (c == '"') {
+                        inString = false;
+                    }
+                    continue;
+                }
+
+                switch (c) {
+                    case '"':
+                        inString = true;
+                        break;
+                    case '{':
+                    case '[':
+                        depth++;
+                        break;
+                    case '}':
+                        depth--;
+                        break;
+                    case ']':
+                        if (--depth == 0) {
+                            if (chunk.length() > 1) {
+                                submit(chunk, inFlight, listener);
+                            }
+                            return;
+                        }
+                        break;
+                    case ',':
+                        if (depth == 1 && chunk.length() >= CHUNK_SIZE) {
+                            submit(chunk, inFlight, listener);
+                            chunk = newChunk();
+                            continue;
+                        }
+                        break;
+                }
+                chunk.append(c);
+            }
+
+            if (listener.isCancelled()) {
+                return;
+            }
+        }
+
+        throw new EOFException("Backlog ended before the end of the array");
+    }
+
+    private void submit(StringBuilder chunk, ArrayDeque<Future<List<Message>>> inFlight, Listener listener) throws Exception {
+        final String text = chunk.append(']').toString();
+        inFlight.addLast(mWorkers.submit(new Callable<List<Message>>() {
+            @Override public List<Message> call() throws Exception {
+                return parseChunk(text);
+            }
+        }));
+
+        while (inFlight.size() >= mMaxInFlight) {
+            deliver(inFlight.pollFirst(), listener);
+        }
+    }
+
+    private void deliver(Future<List<Message>> future, Listener listener) throws Exception {
+        List<Message> messages;
+        try {
+            messages = future.get();
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            throw (cause instanceof Exception) ? (Exception) cause : ex;
+        }
+
+        for (Message message : messages) {
+            if (listener.isCancelled()) {
+                return;
+            }
+            listener.onMessage(message);
+        }
+    }
+
+    private List<Message> parseChunk(String text) throws IOException {
+        List<Message> messages = new ArrayList<>();
+        JsonReader reader = new JsonReader(new StringReader(text));
+        reader.beginArray();
+        while (reader.hasNext()) {
+            messages.add((Message) mGson.fromJson(reader, Message.class));
+        }
+        reader.endArray();
+        return messages;
+    }
+
+    private static StringBuilder newChunk() {
+        StringBuilder chunk = new StringBuilder(CHUNK_SIZE + 4096);
+        chunk.append('[');
+        return chunk;
+    }
+}
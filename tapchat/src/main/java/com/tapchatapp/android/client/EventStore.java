@@ -0,0 +1,508 @@
+/*
+ * Copyright (C) 2014 Eric Butler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tapchatapp.android.client;
+
+import android.util.Log;
+
+import com.google.common.base.Charsets;
+import com.google.gson.Gson;
+import com.tapchatapp.android.client.message.BufferEventMessage;
+import com.tapchatapp.android.client.message.Message;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Keeps every rendered event of every buffer on disk so scrollback isn't limited to what fits in memory.
+ *
+ * Each buffer has a directory of segments. A segment is a data file with the JSON of its events and an index file of
+ * (eid, offset) pairs in ascending eid order, named after its first eid. New events are appended to the newest
+ * segment, history fetched from the bouncer becomes a new segment in front of the oldest one.
+ *
+ * All file access happens on a single background thread. Appends are queued and written in batches.
+ */
+public class EventStore {
+
+    private static final String TAG = "EventStore";
+
+    private static final String DATA_SUFFIX  = ".log";
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final int INDEX_ENTRY_SIZE = 16;
+
+    private static final long MAX_SEGMENT_SIZE = 1024 * 1024;
+    private static final int MAX_SEGMENTS      = 16;
+
+    private final Gson mGson;
+    private final File mDir;
+
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override public Thread newThread(Runnable runnable) {
+            return new Thread(runnable, "TapchatEventStore");
+        }
+    });
+
+    private final Object mPendingLock = new Object();
+    private Map<BufferKey, List<Message>> mPending = new LinkedHashMap<>();
+    private boolean mFlushScheduled;
+
+    // Only touched on the executor thread.
+    private final Map<BufferKey, BufferLog> mLogs = new HashMap<>();
+
+    public EventStore(Gson gson, File dir) {
+        mGson = gson;
+        mDir = dir;
+    }
+
+    public void append(long cid, long bid, BufferEventMessage message) {
+        synchronized (mPendingLock) {
+            BufferKey key = new BufferKey(cid, bid);
+            List<Message> messages = mPending.get(key);
+            if (messages == null) {
+                messages = new ArrayList<>();
+                mPending.put(key, messages);
+            }
+            messages.add(message);
+
+            if (mFlushScheduled) {
+                return;
+            }
+            mFlushScheduled = true;
+        }
+
+        mExecutor.execute(new Runnable() {
+            @Override public void run() {
+                flushPending();
+            }
+        });
+    }
+
+    /**
+     * Returns up to count events older than the given eid, oldest first. Blocks, so don't call it on the main thread.
+     */
+    public List<BufferEventMessage> readBefore(final long cid, final long bid, final long beforeEid, final int count) throws Exception {
+        return await(new Callable<List<BufferEventMessage>>() {
+            @Override public List<BufferEventMessage> call() throws Exception {
+                flushPending();
+                return getLog(new BufferKey(cid, bid)).readBefore(beforeEid, count);
+            }
+        });
+    }
+
+    /**
+     * Returns up to count events newer than the given eid, oldest first. Blocks, so don't call it on the main thread.
+     */
+    public List<BufferEventMessage> readAfter(final long cid, final long bid, final long afterEid, final int count) throws Exception {
+        return await(new Callable<List<BufferEventMessage>>() {
+            @Override public List<BufferEventMessage> call() throws Exception {
+                flushPending();
+                return getLog(new BufferKey(cid, bid)).readAfter(afterEid, count);
+            }
+        });
+    }
+
+    /**
+     * Same as readBefore(), without blocking: the events are handed to the callback on the store's thread. If reading
+     * fails the callback isn't called.
+     */
+    public void readBefore(final long cid, final long bid, final long beforeEid, final int count,
+                           final ReadCallback callback) {
+        mExecutor.execute(new Runnable() {
+            @Override public void run() {
+                BufferKey key = new BufferKey(cid, bid);
+                List<BufferEventMessage> messages;
+                try {
+                    flushPending();
+                    messages = getLog(key).readBefore(beforeEid, count);
+                } catch (Exception ex) {
+                    Log.e(TAG, "Failed to read events for " + key, ex);
+                    return;
+                }
+                callback.onRead(messages);
+            }
+        });
+    }
+
+    /**
+     * Stores events that are older than anything stored for the buffer so far, for example history from the bouncer.
+     */
+    public void prepend(final long cid, final long bid, final List<BufferEventMessage> messages) throws Exception {
+        await(new Callable<Void>() {
+            @Override public Void call() throws Exception {
+                flushPending();
+                getLog(new BufferKey(cid, bid)).prepend(messages);
+                return null;
+            }
+        });
+    }
+
+    public void deleteBuffer(final long cid, final long bid) {
+        mExecutor.execute(new Runnable() {
+            @Override public void run() {
+                BufferKey key = new BufferKey(cid, bid);
+                synchronized (mPendingLock) {
+                    mPending.remove(key);
+                }
+                mLogs.remove(key);
+                deleteRecursive(getBufferDir(key));
+            }
+        });
+    }
+
+    public void deleteConnection(final long cid) {
+        mExecutor.execute(new Runnable() {
+            @Override public void run() {
+                synchronized (mPendingLock) {
+                    removeConnection(mPending.keySet(), cid);
+                }
+                removeConnection(mLogs.keySet(), cid);
+                deleteRecursive(new File(mDir, String.valueOf(cid)));
+            }
+        });
+    }
+
+    public void clear() {
+        synchronized (mPendingLock) {
+            mPending.clear();
+        }
+        mExecutor.execute(new Runnable() {
+            @Override public void run() {
+                mLogs.clear();
+                deleteRecursive(mDir);
+            }
+        });
+    }
+
+    public void shutdown() {
+        mExecutor.execute(new Runnable() {
+            @Override public void run() {
+                flushPending();
+            }
+        });
+        mExecutor.shutdown();
+    }
+
+    public interface ReadCallback {
+        void onRead(List<BufferEventMessage> messages);
+    }
+
+    private <T> T await(Callable<T> callable) throws Exception {
+        try {
+            return mExecutor.submit(callable).get();
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            throw (cause instanceof Exception) ? (Exception) cause : ex;
+        }
+    }
+
+    private void flushPending() {
+        Map<BufferKey, List<Message>> pending;
+        synchronized (mPendingLock) {
+            pending = mPending;
+            mPending = new LinkedHashMap<>();
+            mFlushScheduled = false;
+        }
+
+        for (Map.Entry<BufferKey, List<Message>> entry : pending.entrySet()) {
+            try {
+                getLog(entry.getKey()).append(entry.getValue());
+            } catch (IOException ex) {
+                Log.e(TAG, "Failed to store events for " + entry.getKey(), ex);
+            }
+        }
+    }
+
+    private BufferLog getLog(BufferKey key) {
+        BufferLog log = mLogs.get(key);
+        if (log == null) {
+            log = new BufferLog(getBufferDir(key));
+            mLogs.put(key, log);
+        }
+        return log;
+    }
+
+    private File getBufferDir(BufferKey key) {
+        return new File(new File(mDir, String.valueOf(key.mCid)), String.valueOf(key.mBid));
+    }
+
+    private static void removeConnection(Set<BufferKey> keys, long cid) {
+        Iterator<BufferKey> iterator = keys.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().mCid == cid) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private static void deleteRecursive(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursive(child);
+            }
+        }
+        file.delete();
+    }
+
+    private class BufferLog {
+        private final File mBufferDir;
+        private final List<Long> mSegments = new ArrayList<>(); // First eids, ascending
+        private long mLastEid = -1;
+
+        BufferLog(File bufferDir) {
+            mBufferDir = bufferDir;
+
+            String[] names = bufferDir.list();
+            if (names != null) {
+                for (String name : names) {
+                    if (name.endsWith(INDEX_SUFFIX)) {
+                        try {
+                            mSegments.add(Long.parseLong(name.substring(0, name.length() - INDEX_SUFFIX.length())));
+                        } catch (NumberFormatException ex) {
+                            // Not ours
+                        }
+                    }
+                }
+                Collections.sort(mSegments);
+            }
+
+            if (!mSegments.isEmpty()) {
+                try {
+                    mLastEid = readLastEid(mSegments.get(mSegments.size() - 1));
+                } catch (IOException ex) {
+                    Log.e(TAG, "Failed to read " + bufferDir, ex);
+                }
+            }
+        }
+
+        void append(List<Message> messages) throws IOException {
+            List<Message> newMessages = new ArrayList<>(messages.size());
+            for (Message message : messages) {
+                // Events we already have, for example when the backlog is sent again after reconnecting.
+                if (message.eid > mLastEid) {
+                    newMessages.add(message);
+                    mLastEid = message.eid;
+                }
+            }
+            if (newMessages.isEmpty()) {
+                return;
+            }
+
+            if (mSegments.isEmpty() || getDataFile(mSegments.get(mSegments.size() - 1)).length() >= MAX_SEGMENT_SIZE) {
+                mSegments.add(newMessages.get(0).eid);
+                trim();
+            }
+            write(mSegments.get(mSegments.size() - 1), newMessages);
+        }
+
+        void prepend(List<BufferEventMessage> messages) throws IOException {
+            long firstStoredEid = mSegments.isEmpty() ? Long.MAX_VALUE : mSegments.get(0);
+
+            List<Message> olderMessages = new ArrayList<>(messages.size());
+            long lastEid = -1;
+            for (Message message : messages) {
+                if (message.eid < firstStoredEid && message.eid > lastEid) {
+                    olderMessages.add(message);
+                    lastEid = message.eid;
+                }
+            }
+            if (olderMessages.isEmpty()) {
+                return;
+            }
+
+            long firstEid = olderMessages.get(0).eid;
+            mSegments.add(0, firstEid);
+            write(firstEid, olderMessages);
+            if (mLastEid < lastEid) {
+                mLastEid = lastEid;
+            }
+        }
+
+        List<BufferEventMessage> readBefore(long beforeEid, int count) throws IOException {
+            List<BufferEventMessage> messages = new ArrayList<>();
+            for (int i = mSegments.size() - 1; i >= 0 && messages.size() < count; i--) {
+                long segment = mSegments.get(i);
+                if (segment >= beforeEid) {
+                    continue;
+                }
+                messages.addAll(0, readSegment(segment, beforeEid, false, count - messages.size()));
+            }
+            return messages;
+        }
+
+        List<BufferEventMessage> readAfter(long afterEid, int count) throws IOException {
+            List<BufferEventMessage> messages = new ArrayList<>();
+            for (int i = 0; i < mSegments.size() && messages.size() < count; i++) {
+                // The next segment starts at or before afterEid, so this one has nothing newer.
+                if (i + 1 < mSegments.size() && mSegments.get(i + 1) <= afterEid) {
+                    continue;
+                }
+                messages.addAll(readSegment(mSegments.get(i), afterEid, true, count - messages.size()));
+            }
+            return messages;
+        }
+
+        /**
+         * Reads up to count events just before eid, or just after it if after is set.
+         */
+        private List<BufferEventMessage> readSegment(long segment, long eid, boolean after, int count) throws IOException {
+            RandomAccessFile index = new RandomAccessFile(getIndexFile(segment), "r");
+            try {
+                RandomAccessFile data = new RandomAccessFile(getDataFile(segment), "r");
+                try {
+                    // Find the first entry past eid, or at it when reading backwards. Everything in front is older.
+                    int entryCount = (int) (index.length() / INDEX_ENTRY_SIZE);
+                    int low = 0;
+                    int high = entryCount;
+                    while (low < high) {
+                        int mid = (low + high) >>> 1;
+                        index.seek((long) mid * INDEX_ENTRY_SIZE);
+                        long entryEid = index.readLong();
+                        if (after ? entryEid <= eid : entryEid < eid) {
+                            low = mid + 1;
+                        } else {
+                            high = mid;
+                        }
+                    }
+
+                    int first = after ? low : Math.max(0, low - count);
+                    int end = after ? Math.min(entryCount, low + count) : low;
+                    List<BufferEventMessage> messages = new ArrayList<>(end - first);
+                    for (int i = first; i < end; i++) {
+                        index.seek((long) i * INDEX_ENTRY_SIZE + 8);
+                        data.seek(index.readLong());
+                        byte[] json = new byte[data.readInt()];
+                        data.readFully(json);
+
+                        Message message = mGson.fromJson(new String(json, Charsets.UTF_8), Message.class);
+                        if (message instanceof BufferEventMessage) {
+                            message.is_backlog = true;
+                            messages.add((BufferEventMessage) message);
+                        }
+                    }
+                    return messages;
+                } finally {
+                    data.close();
+                }
+            } finally {
+                index.close();
+            }
+        }
+
+        private void write(long segment, List<Message> messages) throws IOException {
+            mBufferDir.mkdirs();
+
+            File dataFile = getDataFile(segment);
+            long offset = dataFile.length();
+
+            DataOutputStream data = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(dataFile, true)));
+            DataOutputStream index = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(getIndexFile(segment), true)));
+            try {
+                // The data goes out first, so the index never points past the end of it.
+                long[] offsets = new long[messages.size()];
+                for (int i = 0; i < messages.size(); i++) {
+                    byte[] json = mGson.toJson(messages.get(i)).getBytes(Charsets.UTF_8);
+                    offsets[i] = offset;
+                    data.writeInt(json.length);
+                    data.write(json);
+                    offset += 4 + json.length;
+                }
+                data.flush();
+
+                for (int i = 0; i < messages.size(); i++) {
+                    index.writeLong(messages.get(i).eid);
+                    index.writeLong(offsets[i]);
+                }
+            } finally {
+                data.close();
+                index.close();
+            }
+        }
+
+        private void trim() {
+            while (mSegments.size() > MAX_SEGMENTS) {
+                long segment = mSegments.remove(0);
+                getDataFile(segment).delete();
+                getIndexFile(segment).delete();
+            }
+        }
+
+        private long readLastEid(long segment) throws IOException {
+            RandomAccessFile index = new RandomAccessFile(getIndexFile(segment), "r");
+            try {
+                long entries = index.length() / INDEX_ENTRY_SIZE;
+                if (entries == 0) {
+                    return -1;
+                }
+                index.seek((entries - 1) * INDEX_ENTRY_SIZE);
+                return index.readLong();
+            } finally {
+                index.close();
+            }
+        }
+
+        private File getDataFile(long segment) {
+            return new File(mBufferDir, segment + DATA_SUFFIX);
+        }
+
+        private File getIndexFile(long segment) {
+            return new File(mBufferDir, segment + INDEX_SUFFIX);
+        }
+    }
+
+    private static class BufferKey {
+        private final long mCid;
+        private final long mBid;
+
+        BufferKey(long cid, long bid) {
+            mCid = cid;
+            mBid = bid;
+        }
+
+        @Override public boolean equals(Object o) {
+            if (!(o instanceof BufferKey)) {
+                return false;
+            }
+            BufferKey other = (BufferKey) o;
+            return mCid == other.mCid && mBid == other.mBid;
+        }
+
+        @Override public int hashCode() {
+            return (int) (mCid ^ (mCid >>> 32)) * 31 + (int) (mBid ^ (mBid >>> 32));
+        }
+
+        @Override public String toString() {
+            return mCid + "/" + mBid;
+        }
+    }
+}
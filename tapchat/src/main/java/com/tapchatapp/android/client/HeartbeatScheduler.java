@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2014 Eric Butler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tapchatapp.android.client;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+/**
+ * Decides when {@link TapchatService} sends a heartbeat.
+ *
+ * Nothing is scheduled until something changes. While the user is reading a buffer changes go out quickly, otherwise
+ * they are held for longer. With the screen off they are held until the radio is woken up anyway, either by traffic
+ * from the bouncer or by a request being sent, with a long upper bound.
+ */
+public class HeartbeatScheduler {
+
+    private static final long ACTIVE_DELAY     = 2000;
+    private static final long IDLE_DELAY       = 10 * 1000;
+    private static final long SCREEN_OFF_DELAY = 60 * 1000;
+
+    public static interface Callback {
+        void onHeartbeat();
+    }
+
+    private final Handler mHandler;
+    private final Callback mCallback;
+
+    private final Runnable mHeartbeatRunnable = new Runnable() {
+        @Override public void run() {
+            synchronized (HeartbeatScheduler.this) {
+                if (!mScheduled) {
+                    return;
+                }
+                mScheduled = false;
+                mHeartbeatCount++;
+            }
+            mCallback.onHeartbeat();
+        }
+    };
+
+    private boolean mRunning;
+    private boolean mScheduled;
+    private boolean mActive;
+    private boolean mScreenOn = true;
+    private long mDueAt;
+
+    private long mHeartbeatCount;
+    private long mPiggybackCount;
+
+    public HeartbeatScheduler(Looper looper, Callback callback) {
+        mHandler = new Handler(looper);
+        mCallback = callback;
+    }
+
+    public synchronized void start() {
+        mRunning = true;
+    }
+
+    public synchronized void stop() {
+        mRunning = false;
+        mScheduled = false;
+        mHandler.removeCallbacks(mHeartbeatRunnable);
+    }
+
+    public synchronized void setActive(boolean active) {
+        mActive = active;
+        reschedule();
+    }
+
+    public synchronized void setScreenOn(boolean screenOn) {
+        mScreenOn = screenOn;
+        reschedule();
+    }
+
+    public synchronized void onChanged() {
+        if (!mRunning) {
+            return;
+        }
+
+        long dueAt = SystemClock.elapsedRealtime() + getDelay();
+        if (!mScheduled || dueAt < mDueAt) {
+            scheduleAt(dueAt);
+        }
+    }
+
+    /**
+     * Called when data arrives from the bouncer. With the screen off the radio is awake now, so this is the cheapest
+     * time to send anything that's waiting.
+     */
+    public synchronized void onNetworkActivity() {
+        if (mScheduled && !mScreenOn) {
+            scheduleAt(SystemClock.elapsedRealtime());
+        }
+    }
+
+    /**
+     * Sends a waiting heartbeat right away so that it goes out along with another request. Must be called on the
+     * scheduler's looper.
+     */
+    public void flush() {
+        synchronized (this) {
+            if (!mScheduled) {
+                return;
+            }
+            mScheduled = false;
+            mHandler.removeCallbacks(mHeartbeatRunnable);
+            mHeartbeatCount++;
+            mPiggybackCount++;
+        }
+        mCallback.onHeartbeat();
+    }
+
+    public synchronized long getHeartbeatCount() {
+        return mHeartbeatCount;
+    }
+
+    public synchronized long getPiggybackCount() {
+        return mPiggybackCount;
+    }
+
+    private void reschedule() {
+        if (mScheduled) {
+            long dueAt = SystemClock.elapsedRealtime() + getDelay();
+            if (dueAt < mDueAt) {
+                scheduleAt(dueAt);
+            }
+        }
+    }
+
+    private void scheduleAt(long dueAt) {
+        mScheduled = true;
+        mDueAt = dueAt;
+        mHandler.removeCallbacks(mHeartbeatRunnable);
+        mHandler.postDelayed(mHeartbeatRunnable, Math.max(0, dueAt - SystemClock.elapsedRealtime()));
+    }
+
+    private long getDelay() {
+        if (!mScreenOn) {
+            return SCREEN_OFF_DELAY;
+        }
+        return mActive ? ACTIVE_DELAY : IDLE_DELAY;
+    }
+}
@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2014 Eric Butler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tapchatapp.android.client;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.tapchatapp.android.client.message.Message;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded hand-off between the websocket thread and the model thread, the only thread that changes the model.
+ *
+ * Other threads hand the model thread work with {@link #putTask}. Tasks run ahead of messages and don't count
+ * against the capacity, so posting one never blocks. Messages are taken from the highest priority lane first. Once a
+ * buffer has messages waiting in a lane, later messages for that buffer are queued behind them in the same lane so
+ * that a buffer never sees its events out of order. When the queue is full {@link #put} blocks, which stops the
+ * websocket from reading any further.
+ *
+ * Messages that aren't about a single buffer are queued with {@link #putBarrier}. A barrier is taken only after
+ * everything queued before it, and nothing queued after it is taken before it, so priorities only reorder buffer
+ * messages between two barriers.
+ */
+public class IngestQueue {
+
+    public static final int PRIORITY_HIGH   = 0;
+    public static final int PRIORITY_NORMAL = 1;
+    public static final int PRIORITY_LOW    = 2;
+
+    private static final String TAG = "IngestQueue";
+
+    private final int mCapacity;
+    private final ArrayDeque<Segment> mSegments = new ArrayDeque<>();
+    private Segment mSpareSegment;
+    private final Map<Long, PendingBuffer> mPendingBuffers = new HashMap<>();
+    private final ArrayDeque<Runnable> mTasks = new ArrayDeque<>();
+
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mNotEmpty = mLock.newCondition();
+    private final Condition mNotFull  = mLock.newCondition();
+
+    private int  mSize;
+    private int  mMaxSize;
+    private long mEnqueuedCount;
+    private long mBlockedCount;
+    private long mBlockedMillis;
+
+    public IngestQueue(int capacity) {
+        mCapacity = capacity;
+        mSegments.addLast(new Segment());
+    }
+
+    public void put(Message message, int priority) throws InterruptedException {
+        mLock.lockInterruptibly();
+        try {
+            awaitCapacity();
+
+            if (message.bid != null) {
+                PendingBuffer pending = mPendingBuffers.get(message.bid);
+                if (pending == null) {
+                    pending = new PendingBuffer(priority);
+                    mPendingBuffers.put(message.bid, pending);
+                }
+                pending.count++;
+                priority = pending.priority;
+            }
+
+            mSegments.peekLast().lanes[priority].addLast(message);
+            added();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Queues a message behind everything already queued, in every lane, and ahead of everything queued later.
+     */
+    public void putBarrier(Message message) throws InterruptedException {
+        mLock.lockInterruptibly();
+        try {
+            awaitCapacity();
+
+            mSegments.peekLast().barrier = message;
+            Segment segment = mSpareSegment;
+            mSpareSegment = null;
+            mSegments.addLast(segment != null ? segment : new Segment());
+            added();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    public void putTask(Runnable task) {
+        mLock.lock();
+        try {
+            mTasks.addLast(task);
+            mNotEmpty.signal();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the next task if there is one, otherwise the next message.
+     */
+    public Object take() throws InterruptedException {
+        mLock.lockInterruptibly();
+        try {
+            while (mSize == 0 && mTasks.isEmpty()) {
+                mNotEmpty.await();
+            }
+
+            Runnable task = mTasks.pollFirst();
+            if (task != null) {
+                return task;
+            }
+
+            Segment segment = mSegments.peekFirst();
+            Message message = null;
+            for (ArrayDeque<Message> lane : segment.lanes) {
+                message = lane.pollFirst();
+                if (message != null) {
+                    break;
+                }
+            }
+            mSize--;
+
+            if (message == null) {
+                // Only the last segment has no barrier, and it can't be empty while anything is queued.
+                message = segment.barrier;
+                segment.barrier = null;
+                mSegments.pollFirst();
+                mSpareSegment = segment;
+            } else if (message.bid != null) {
+                PendingBuffer pending = mPendingBuffers.get(message.bid);
+                if (pending != null && --pending.count == 0) {
+                    mPendingBuffers.remove(message.bid);
+                }
+            }
+
+            mNotFull.signal();
+            return message;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Drops the queued messages. Queued tasks still run.
+     */
+    public void clear() {
+        mLock.lock();
+        try {
+            mSegments.clear();
+            mSegments.addLast(new Segment());
+            mPendingBuffers.clear();
+            mSize = 0;
+            mNotFull.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    public int size() {
+        mLock.lock();
+        try {
+            return mSize;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    public int size(int priority) {
+        mLock.lock();
+        try {
+            return laneSize(priority);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    public int getMaxSize() {
+        mLock.lock();
+        try {
+            return mMaxSize;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    public long getEnqueuedCount() {
+        mLock.lock();
+        try {
+            return mEnqueuedCount;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    public long getBlockedCount() {
+        mLock.lock();
+        try {
+            return mBlockedCount;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    public long getBlockedMillis() {
+        mLock.lock();
+        try {
+            return mBlockedMillis;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override public String toString() {
+        mLock.lock();
+        try {
+            return String.format("IngestQueue{size=%s/%s, high=%s, normal=%s, low=%s, barriers=%s, max=%s, enqueued=%s, blocked=%s (%sms)}",
+                mSize, mCapacity, laneSize(PRIORITY_HIGH), laneSize(PRIORITY_NORMAL), laneSize(PRIORITY_LOW),
+                mSegments.size() - 1, mMaxSize, mEnqueuedCount, mBlockedCount, mBlockedMillis);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private void awaitCapacity() throws InterruptedException {
+        if (mSize >= mCapacity) {
+            Log.w(TAG, "Queue full, blocking reader. " + this);
+            long start = SystemClock.elapsedRealtime();
+            mBlockedCount++;
+            while (mSize >= mCapacity) {
+                mNotFull.await();
+            }
+            mBlockedMillis += SystemClock.elapsedRealtime() - start;
+        }
+    }
+
+    private void added() {
+        mSize++;
+        mEnqueuedCount++;
+        if (mSize > mMaxSize) {
+            mMaxSize = mSize;
+        }
+        mNotEmpty.signal();
+    }
+
+    private int laneSize(int priority) {
+        int size = 0;
+        for (Segment segment : mSegments) {
+            size += segment.lanes[priority].size();
+        }
+        return size;
+    }
+
+    /**
+     * The messages queued between two barriers, and the barrier that ends them.
+     */
+    private static class Segment {
+        final ArrayDeque<Message>[] lanes;
+        Message barrier;
+
+        @SuppressWarnings("unchecked")
+        Segment() {
+            lanes = new ArrayDeque[PRIORITY_LOW + 1];
+            for (int i = 0; i < lanes.length; i++) {
+                lanes[i] = new ArrayDeque<>();
+            }
+        }
+    }
+
+    private static class PendingBuffer {
+        final int priority;
+        int count;
+
+        PendingBuffer(int priority) {
+            this.priority = priority;
+        }
+    }
+}
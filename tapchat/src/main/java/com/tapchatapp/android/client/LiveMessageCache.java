@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2014 Eric Butler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tapchatapp.android.client;
+
+import android.util.Log;
+
+import com.google.common.base.Charsets;
+import com.google.gson.Gson;
+import com.tapchatapp.android.client.message.Message;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Live messages that arrive while the backlog is still being loaded.
+ *
+ * The first messages are kept in memory. Once there are too many of them they are written out to a file, one JSON
+ * object per line, so a slow backlog download can't run the process out of memory.
+ */
+public class LiveMessageCache {
+
+    private static final String TAG = "LiveMessageCache";
+
+    private static final int MAX_IN_MEMORY = 1000;
+
+    private final Gson mGson;
+    private final File mFile;
+
+    private final List<Message> mMessages = new ArrayList<>();
+    private int mSpilledCount;
+
+    public LiveMessageCache(Gson gson, File file) {
+        mGson = gson;
+        mFile = file;
+    }
+
+    public synchronized void add(Message message) throws IOException {
+        mMessages.add(message);
+        if (mMessages.size() >= MAX_IN_MEMORY) {
+            spill();
+        }
+    }
+
+    /**
+     * Hands every cached message to the handler in the order they arrived and empties the cache.
+     */
+    public synchronized void replay(MessageHandler<Message> handler) throws Exception {
+        try {
+            if (mSpilledCount > 0) {
+                Log.i(TAG, String.format("Replaying %s messages from disk", mSpilledCount));
+                BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(mFile), Charsets.UTF_8));
+                try {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        handler.handleMessage(mGson.fromJson(line, Message.class));
+                    }
+                } finally {
+                    reader.close();
+                }
+            }
+
+            for (Message message : mMessages) {
+                handler.handleMessage(message);
+            }
+        } finally {
+            clear();
+        }
+    }
+
+    public synchronized void clear() {
+        mMessages.clear();
+        if (mSpilledCount > 0) {
+            mFile.delete();
+            mSpilledCount = 0;
+        }
+    }
+
+    public synchronized int size() {
+        return mSpilledCount + mMessages.size();
+    }
+
+    private void spill() throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(mFile, mSpilledCount > 0), Charsets.UTF_8));
+        try {
+            for (Message message : mMessages) {
+                writer.write(mGson.toJson(message));
+                writer.write('\n');
+            }
+        } finally {
+            writer.close();
+        }
+
+        mSpilledCount += mMessages.size();
+        mMessages.clear();
+    }
+}
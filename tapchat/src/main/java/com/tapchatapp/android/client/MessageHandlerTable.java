@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2014 Eric Butler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tapchatapp.android.client;
+
+import com.tapchatapp.android.client.message.Message;
+import com.tapchatapp.android.client.message.MessageType;
+
+/**
+ * Message handlers looked up by the code of the message's type.
+ *
+ * A table is built once per model class and shared by all of its instances, so handlers are passed the object the
+ * message is for.
+ */
+public class MessageHandlerTable<T> {
+
+    public static interface Handler<T, M extends Message> {
+        public void handleMessage(T target, M message) throws Exception;
+    }
+
+    private final Handler[] mHandlers;
+
+    private MessageHandlerTable(Handler[] handlers) {
+        mHandlers = handlers;
+    }
+
+    public static <T> Builder<T> builder() {
+        return new Builder<>();
+    }
+
+    /**
+     * Passes the message to the handler for its type. Returns false if there isn't one.
+     */
+    @SuppressWarnings("unchecked")
+    public boolean handle(T target, Message message) throws Exception {
+        int code = message.getMessageType().getCode();
+        if (code == MessageType.UNKNOWN_CODE || mHandlers[code] == null) {
+            return false;
+        }
+        mHandlers[code].handleMessage(target, message);
+        return true;
+    }
+
+    public static class Builder<T> {
+        private final Handler[] mHandlers = new Handler[MessageType.COUNT];
+
+        private Builder() { }
+
+        public <M extends Message> Builder<T> put(String type, Handler<T, M> handler) {
+            int code = MessageType.of(type).getCode();
+            if (code == MessageType.UNKNOWN_CODE) {
+                throw new IllegalArgumentException("Unknown message type: " + type);
+            }
+            if (mHandlers[code] != null) {
+                throw new IllegalArgumentException("Duplicate handler for " + type);
+            }
+            mHandlers[code] = handler;
+            return this;
+        }
+
+        public MessageHandlerTable<T> build() {
+            return new MessageHandlerTable<>(mHandlers.clone());
+        }
+    }
+}
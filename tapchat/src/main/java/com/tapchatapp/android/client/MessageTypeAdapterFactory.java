@@ -0,0 +1,398 @@
+/*
+ * Copyright (C) 2014 Eric Butler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tapchatapp.android.client;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.tapchatapp.android.client.message.AwayMessage;
+import com.tapchatapp.android.client.message.BacklogCompleteMessage;
+import com.tapchatapp.android.client.message.BannedMessage;
+import com.tapchatapp.android.client.message.BufferArchivedMessage;
+import com.tapchatapp.android.client.message.BufferMeMsgMessage;
+import com.tapchatapp.android.client.message.BufferMsgMessage;
+import com.tapchatapp.android.client.message.BufferUnarchivedMessage;
+import com.tapchatapp.android.client.message.ChannelInitMessage;
+import com.tapchatapp.android.client.message.ChannelModeIsMessage;
+import com.tapchatapp.android.client.message.ChannelModeMessage;
+import com.tapchatapp.android.client.message.ChannelTimestampMessage;
+import com.tapchatapp.android.client.message.ChannelTopicMessage;
+import com.tapchatapp.android.client.message.ChannelUrlMessage;
+import com.tapchatapp.android.client.message.ConnectedMessage;
+import com.tapchatapp.android.client.message.ConnectingCancelledMessage;
+import com.tapchatapp.android.client.message.ConnectingFailedMessage;
+import com.tapchatapp.android.client.message.ConnectingFinishedMessage;
+import com.tapchatapp.android.client.message.ConnectingMessage;
+import com.tapchatapp.android.client.message.ConnectingRetryMessage;
+import com.tapchatapp.android.client.message.ConnectionDeletedMessage;
+import com.tapchatapp.android.client.message.EndOfBacklogMessage;
+import com.tapchatapp.android.client.message.ErrorMessage;
+import com.tapchatapp.android.client.message.HeaderMessage;
+import com.tapchatapp.android.client.message.HeartbeatEchoMessage;
+import com.tapchatapp.android.client.message.IdleMessage;
+import com.tapchatapp.android.client.message.InvalidCertMessage;
+import com.tapchatapp.android.client.message.IsupportParamsMessage;
+import com.tapchatapp.android.client.message.JoinedChannelMessage;
+import com.tapchatapp.android.client.message.KickedChannelMessage;
+import com.tapchatapp.android.client.message.MakeBufferMessage;
+import com.tapchatapp.android.client.message.MakeServerMessage;
+import com.tapchatapp.android.client.message.Message;
+import com.tapchatapp.android.client.message.NickchangeMessage;
+import com.tapchatapp.android.client.message.NoticeMessage;
+import com.tapchatapp.android.client.message.OobIncludeMessage;
+import com.tapchatapp.android.client.message.OpenBufferMessage;
+import com.tapchatapp.android.client.message.PartedChannelMessage;
+import com.tapchatapp.android.client.message.QuitServerMessage;
+import com.tapchatapp.android.client.message.ResponseMessage;
+import com.tapchatapp.android.client.message.ServerDetailsChangedMessage;
+import com.tapchatapp.android.client.message.SocketClosedMessage;
+import com.tapchatapp.android.client.message.StatUserMessage;
+import com.tapchatapp.android.client.message.SysMsgsMessage;
+import com.tapchatapp.android.client.message.UnknownMessage;
+import com.tapchatapp.android.client.message.UserAwayMessage;
+import com.tapchatapp.android.client.message.UserBackMessage;
+import com.tapchatapp.android.client.message.UserChannelModeMessage;
+import com.tapchatapp.android.client.message.UserDetailsMessage;
+import com.tapchatapp.android.client.message.UserModeMessage;
+import com.tapchatapp.android.client.message.WaitingToRetryMessage;
+import com.tapchatapp.android.client.message.YouJoinedChannelMessage;
+import com.tapchatapp.android.client.message.YouNickchangeMessage;
+import com.tapchatapp.android.client.message.YouPartedChannelMessage;
+import com.tapchatapp.android.client.message.request.QuitMessage;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class MessageTypeAdapterFactory implements TypeAdapterFactory {
+
+    private static final Map<String, Class<? extends Message>> TYPES
+        = ImmutableMap.<String, Class<? extends Message>>builder()
+            .put(AwayMessage.TYPE, AwayMessage.class)
+            .put(BacklogCompleteMessage.TYPE, BacklogCompleteMessage.class)
+            .put(BannedMessage.TYPE, BannedMessage.class)
+            .put(BufferArchivedMessage.TYPE, BufferArchivedMessage.class)
+            .put(BufferMeMsgMessage.TYPE, BufferMeMsgMessage.class)
+            .put(BufferMsgMessage.TYPE, BufferMsgMessage.class)
+            .put(BufferUnarchivedMessage.TYPE, BufferUnarchivedMessage.class)
+            .put(ChannelInitMessage.TYPE, ChannelInitMessage.class)
+            .put(ChannelModeIsMessage.TYPE, ChannelModeIsMessage.class)
+            .put(ChannelModeMessage.TYPE, ChannelModeMessage.class)
+            .put(ChannelTimestampMessage.TYPE, ChannelTimestampMessage.class)
+            .put(ChannelTopicMessage.TYPE, ChannelTopicMessage.class)
+            .put(ChannelUrlMessage.TYPE, ChannelUrlMessage.class)
+            .put(ConnectedMessage.TYPE, ConnectedMessage.class)
+            .put(ConnectingCancelledMessage.TYPE, ConnectingCancelledMessage.class)
+            .put(ConnectingFailedMessage.TYPE, ConnectingFailedMessage.class)
+            .put(ConnectingFinishedMessage.TYPE, ConnectingFinishedMessage.class)
+            .put(ConnectingMessage.TYPE, ConnectingMessage.class)
+            .put(ConnectingRetryMessage.TYPE, ConnectingRetryMessage.class)
+            .put(ConnectionDeletedMessage.TYPE, ConnectionDeletedMessage.class)
+            .put(EndOfBacklogMessage.TYPE, EndOfBacklogMessage.class)
+            .put(ErrorMessage.TYPE, ErrorMessage.class)
+            .put(HeaderMessage.TYPE, HeaderMessage.class)
+            .put(HeartbeatEchoMessage.TYPE, HeartbeatEchoMessage.class)
+            .put(IdleMessage.TYPE, IdleMessage.class)
+            .put(InvalidCertMessage.TYPE, InvalidCertMessage.class)
+            .put(IsupportParamsMessage.TYPE, IsupportParamsMessage.class)
+            .put(JoinedChannelMessage.TYPE, JoinedChannelMessage.class)
+            .put(KickedChannelMessage.TYPE, KickedChannelMessage.class)
+            .put(MakeBufferMessage.TYPE, MakeBufferMessage.class)
+            .put(MakeServerMessage.TYPE, MakeServerMessage.class)
+            .put(NickchangeMessage.TYPE, NickchangeMessage.class)
+            .put(NoticeMessage.TYPE, NoticeMessage.class)
+            .put(OobIncludeMessage.TYPE, OobIncludeMessage.class)
+            .put(OpenBufferMessage.TYPE, OpenBufferMessage.class)
+            .put(PartedChannelMessage.TYPE, PartedChannelMessage.class)
+            .put(QuitMessage.TYPE, QuitMessage.class)
+            .put(QuitServerMessage.TYPE, QuitServerMessage.class)
+            .put(ServerDetailsChangedMessage.TYPE, ServerDetailsChangedMessage.class)
+            .put(SocketClosedMessage.TYPE, SocketClosedMessage.class)
+            .put(StatUserMessage.TYPE, StatUserMessage.class)
+            .put(SysMsgsMessage.TYPE, SysMsgsMessage.class)
+            .put(UserAwayMessage.TYPE, UserAwayMessage.class)
+            .put(UserBackMessage.TYPE, UserBackMessage.class)
+            .put(UserChannelModeMessage.TYPE, UserChannelModeMessage.class)
+            .put(UserDetailsMessage.TYPE, UserDetailsMessage.class)
+            .put(UserModeMessage.TYPE, UserModeMessage.class)
+            .put(WaitingToRetryMessage.TYPE, WaitingToRetryMessage.class)
+            .put(YouJoinedChannelMessage.TYPE, YouJoinedChannelMessage.class)
+            .put(YouNickchangeMessage.TYPE, YouNickchangeMessage.class)
+            .put(YouPartedChannelMessage.TYPE, YouPartedChannelMessage.class)
+            .build();
+
+    /**
+     * Returns the class messages of this type are read into, or null if the type isn't known.
+     */
+    static Class<? extends Message> getMessageClass(String type) {
+        return TYPES.get(type);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+        if (type.getRawType() != Message.class) {
+            return null;
+        }
+        return (TypeAdapter<T>) new MessageAdapter(gson);
+    }
+
+    /**
+     * Reads a message in a single pass. Members are bound straight into the concrete class as soon as the
+     * discriminator ("_reqid" or "type") has been seen; only the few members that precede it are held on to. A
+     * "_reqid" after "type" turns the message into a response. Members a response has but the class doesn't are held
+     * on to for that, and the ones both have are converted only then.
+     */
+    private static class MessageAdapter extends TypeAdapter<Message> {
+        private final Gson mGson;
+        private final TypeAdapter<JsonElement> mElementAdapter;
+        private final Map<Class<?>, MessageBinding> mBindings = new ConcurrentHashMap<>();
+        private final MessageBinding mResponseBinding;
+
+        private MessageAdapter(Gson gson) {
+            mGson = gson;
+            mElementAdapter = gson.getAdapter(JsonElement.class);
+            mResponseBinding = getBinding(ResponseMessage.class);
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override public void write(JsonWriter out, Message value) throws IOException {
+            if (value == null) {
+                out.nullValue();
+                return;
+            }
+            ((TypeAdapter<Message>) mGson.getAdapter(value.getClass())).write(out, value);
+        }
+
+        @Override public Message read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+
+            Message message = null;
+            MessageBinding binding = null;
+            List<String> pendingNames = null;
+            List<JsonElement> pendingValues = null;
+            List<String> responseNames = null;
+            List<JsonElement> responseValues = null;
+
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+
+                if (name.equals("_reqid") && in.peek() != JsonToken.NULL && !(message instanceof ResponseMessage)) {
+                    if (message == null) {
+                        message = mResponseBinding.newInstance(pendingNames, pendingValues);
+                    } else {
+                        Message response = mResponseBinding.copyOf(message);
+                        mResponseBinding.convert(binding, message, response);
+                        mResponseBinding.apply(response, responseNames, responseValues);
+                        message = response;
+                    }
+                    binding = mResponseBinding;
+
+                } else if (message == null && name.equals("type") && in.peek() == JsonToken.STRING) {
+                    String type = in.nextString();
+                    Class<? extends Message> klass = TYPES.get(type);
+                    binding = getBinding(klass != null ? klass : UnknownMessage.class);
+                    message = binding.newInstance(pendingNames, pendingValues);
+                    message.setType(type);
+                    continue;
+                }
+
+                if (message == null) {
+                    if (pendingNames == null) {
+                        pendingNames = new ArrayList<>();
+                        pendingValues = new ArrayList<>();
+                    }
+                    pendingNames.add(name);
+                    pendingValues.add(mElementAdapter.read(in));
+                } else if (!(message instanceof ResponseMessage) && !binding.hasField(name)
+                        && mResponseBinding.declaresOwnField(name)) {
+                    if (responseNames == null) {
+                        responseNames = new ArrayList<>();
+                        responseValues = new ArrayList<>();
+                    }
+                    responseNames.add(name);
+                    responseValues.add(mElementAdapter.read(in));
+                } else {
+                    binding.read(in, name, message);
+                }
+            }
+            in.endObject();
+
+            if (message == null) {
+                message = getBinding(UnknownMessage.class).newInstance(pendingNames, pendingValues);
+            }
+            return message;
+        }
+
+        private MessageBinding getBinding(Class<? extends Message> klass) {
+            MessageBinding binding = mBindings.get(klass);
+            if (binding == null) {
+                binding = new MessageBinding(mGson, klass);
+                mBindings.put(klass, binding);
+            }
+            return binding;
+        }
+    }
+
+    private static class MessageBinding {
+        private final Gson mGson;
+        private final Constructor<? extends Message> mConstructor;
+        private final Map<String, Field> mFields = new HashMap<>();
+        private final Map<String, TypeAdapter<?>> mAdapters = new ConcurrentHashMap<>();
+
+        private MessageBinding(Gson gson, Class<? extends Message> klass) {
+            mGson = gson;
+            try {
+                mConstructor = klass.getDeclaredConstructor();
+                mConstructor.setAccessible(true);
+            } catch (NoSuchMethodException ex) {
+                throw new RuntimeException(ex);
+            }
+            for (Class<?> c = klass; c != Object.class; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    int modifiers = field.getModifiers();
+                    if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || field.isSynthetic()) {
+                        continue;
+                    }
+                    if (!mFields.containsKey(field.getName())) {
+                        field.setAccessible(true);
+                        mFields.put(field.getName(), field);
+                    }
+                }
+            }
+        }
+
+        Message newInstance(List<String> names, List<JsonElement> values) {
+            Message message;
+            try {
+                message = mConstructor.newInstance();
+            } catch (Exception ex) {
+                throw new RuntimeException(ex);
+            }
+            apply(message, names, values);
+            return message;
+        }
+
+        /**
+         * Sets the members this class has a field for and ignores the rest.
+         */
+        void apply(Message message, List<String> names, List<JsonElement> values) {
+            if (names == null) {
+                return;
+            }
+            for (int i = 0; i < names.size(); i++) {
+                Field field = mFields.get(names.get(i));
+                if (field != null) {
+                    set(field, message, getAdapter(field).fromJsonTree(values.get(i)));
+                }
+            }
+        }
+
+        /**
+         * Sets the fields declared below Message from the fields of the same name that another class read them into.
+         */
+        void convert(MessageBinding from, Message source, Message message) {
+            for (Map.Entry<String, Field> entry : mFields.entrySet()) {
+                Field field = entry.getValue();
+                Field other = from.mFields.get(entry.getKey());
+                if (other == null || field.getDeclaringClass() == Message.class) {
+                    continue;
+                }
+                Object value;
+                try {
+                    value = other.get(source);
+                } catch (IllegalAccessException ex) {
+                    throw new AssertionError(ex);
+                }
+                if (value != null) {
+                    set(field, message, getAdapter(field).fromJsonTree(mGson.toJsonTree(value)));
+                }
+            }
+        }
+
+        boolean hasField(String name) {
+            return mFields.containsKey(name);
+        }
+
+        /**
+         * Whether the member is bound to a field declared below Message, one that copyOf() doesn't carry over.
+         */
+        boolean declaresOwnField(String name) {
+            Field field = mFields.get(name);
+            return field != null && field.getDeclaringClass() != Message.class;
+        }
+
+        Message copyOf(Message other) {
+            Message message = newInstance(null, null);
+            try {
+                for (Field field : Message.class.getDeclaredFields()) {
+                    if (!Modifier.isStatic(field.getModifiers())) {
+                        field.setAccessible(true);
+                        field.set(message, field.get(other));
+                    }
+                }
+            } catch (IllegalAccessException ex) {
+                throw new AssertionError(ex);
+            }
+            return message;
+        }
+
+        void read(JsonReader in, String name, Message message) throws IOException {
+            Field field = mFields.get(name);
+            if (field == null) {
+                in.skipValue();
+                return;
+            }
+            set(field, message, getAdapter(field).read(in));
+        }
+
+        private TypeAdapter<?> getAdapter(Field field) {
+            TypeAdapter<?> adapter = mAdapters.get(field.getName());
+            if (adapter == null) {
+                adapter = mGson.getAdapter(TypeToken.get(field.getGenericType()));
+                mAdapters.put(field.getName(), adapter);
+            }
+            return adapter;
+        }
+
+        private static void set(Field field, Message message, Object value) {
+            if (value == null && field.getType().isPrimitive()) {
+                return;
+            }
+            try {
+                field.set(message, value);
+            } catch (IllegalAccessException ex) {
+                throw new AssertionError(ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,371 @@
+/*
+ * Copyright (C) 2014 Eric Butler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tapchatapp.android.client;
+
+import com.google.common.base.Charsets;
+import com.google.gson.Gson;
+import com.tapchatapp.android.client.message.BufferEventMessage;
+import com.tapchatapp.android.client.message.Message;
+import com.tapchatapp.android.client.message.MakeBufferMessage;
+import com.tapchatapp.android.client.message.MakeServerMessage;
+import com.tapchatapp.android.client.message.UnknownMessage;
+import com.tapchatapp.android.client.model.Buffer;
+import com.tapchatapp.android.client.model.ChannelBuffer;
+import com.tapchatapp.android.client.model.Connection;
+import com.tapchatapp.android.client.model.MessageCodec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact binary copy of the model, used to show something on a cold start before the bouncer has sent anything.
+ *
+ * Connections, buffers and the most recent events of each buffer are stored field by field. The fields specific to
+ * an event's type are the ones its MessageCodec picks, and only values that aren't a string, number or boolean, like
+ * a channel's mode params, fall back to JSON. Restoring turns the snapshot back into makeserver, makebuffer and event
+ * messages so it goes through the same code as data from the bouncer, which then reconciles it like after a reconnect.
+ */
+public class ModelSnapshot {
+
+    private static final int MAGIC   = 0x54435331; // TCS1
+    private static final int VERSION = 2;
+
+    private static final int FLAG_HIGHLIGHT = 1;
+    private static final int FLAG_SELF      = 2;
+
+    private static final byte VALUE_NULL    = 0;
+    private static final byte VALUE_STRING  = 1;
+    private static final byte VALUE_LONG    = 2;
+    private static final byte VALUE_INT     = 3;
+    private static final byte VALUE_BOOLEAN = 4;
+    private static final byte VALUE_DOUBLE  = 5;
+    private static final byte VALUE_JSON    = 6;
+
+    private static final int MAX_EVENTS_PER_BUFFER = 50;
+
+    private final List<Message> mMessages;
+    private final List<BufferState> mBufferStates;
+
+    private ModelSnapshot(List<Message> messages, List<BufferState> bufferStates) {
+        mMessages = messages;
+        mBufferStates = bufferStates;
+    }
+
+    public List<Message> getMessages() {
+        return mMessages;
+    }
+
+    public List<BufferState> getBufferStates() {
+        return mBufferStates;
+    }
+
+    public static byte[] write(Gson gson, List<Connection> connections) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * 1024);
+        DataOutputStream out = new DataOutputStream(bytes);
+        EventWriter events = new EventWriter(gson);
+
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(connections.size());
+
+        for (Connection connection : connections) {
+            out.writeLong(connection.getId());
+            writeString(out, connection.getName());
+            writeString(out, connection.getNick());
+            writeString(out, connection.getRealName());
+            writeString(out, connection.getHostName());
+            out.writeInt(connection.getPort());
+            out.writeBoolean(connection.isSSL());
+            out.writeBoolean(connection.getState() == Connection.STATE_DISCONNECTED);
+
+            List<Buffer> buffers = new ArrayList<>(connection.getBuffers());
+            if (connection.getConsoleBuffer() != null) {
+                buffers.add(0, connection.getConsoleBuffer());
+            }
+
+            out.writeInt(buffers.size());
+            for (Buffer buffer : buffers) {
+                out.writeLong(buffer.getId());
+                writeString(out, getBufferType(buffer));
+                writeString(out, buffer.getName());
+                out.writeBoolean(buffer.isArchived());
+                out.writeBoolean((buffer instanceof ChannelBuffer) && ((ChannelBuffer) buffer).isJoined());
+                out.writeLong(buffer.getLastSeenEid());
+                out.writeBoolean(buffer.isUnread());
+                out.writeInt(buffer.getHighlightCount());
+
+                events.reset();
+                buffer.visitRecentEvents(MAX_EVENTS_PER_BUFFER, events);
+                events.writeTo(out);
+            }
+        }
+
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    public static ModelSnapshot read(Gson gson, FileInputStream in) throws IOException {
+        FileChannel channel = in.getChannel();
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+        if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+            throw new IOException("Not a snapshot or an unsupported version");
+        }
+
+        List<Message> messages = new ArrayList<>();
+        List<BufferState> bufferStates = new ArrayList<>();
+
+        int connectionCount = buffer.getInt();
+        for (int i = 0; i < connectionCount; i++) {
+            MakeServerMessage server = new MakeServerMessage();
+            server.type         = MakeServerMessage.TYPE;
+            server.eid          = -1;
+            server.cid          = buffer.getLong();
+            server.name         = readString(buffer);
+            server.nick         = readString(buffer);
+            server.realname     = readString(buffer);
+            server.hostname     = readString(buffer);
+            server.port         = buffer.getInt();
+            server.ssl          = readBoolean(buffer);
+            server.disconnected = readBoolean(buffer);
+            messages.add(server);
+
+            int bufferCount = buffer.getInt();
+            for (int j = 0; j < bufferCount; j++) {
+                MakeBufferMessage makeBuffer = new MakeBufferMessage();
+                makeBuffer.type          = MakeBufferMessage.TYPE;
+                makeBuffer.eid           = -1;
+                makeBuffer.cid           = server.cid;
+                makeBuffer.bid           = buffer.getLong();
+                makeBuffer.buffer_type   = readString(buffer);
+                makeBuffer.name          = readString(buffer);
+                makeBuffer.archived      = readBoolean(buffer);
+                makeBuffer.joined        = readBoolean(buffer);
+                makeBuffer.last_seen_eid = buffer.getLong();
+                messages.add(makeBuffer);
+
+                boolean unread = readBoolean(buffer);
+                int highlightCount = buffer.getInt();
+                bufferStates.add(new BufferState(server.cid, makeBuffer.bid, unread, highlightCount));
+
+                int eventCount = buffer.getInt();
+                for (int k = 0; k < eventCount; k++) {
+                    BufferEventMessage event = readEvent(buffer, gson);
+                    event.cid = server.cid;
+                    event.bid = makeBuffer.bid;
+                    event.is_backlog = true;
+                    messages.add(event);
+                }
+            }
+        }
+
+        return new ModelSnapshot(messages, bufferStates);
+    }
+
+    private static BufferEventMessage readEvent(ByteBuffer buffer, Gson gson) throws IOException {
+        String type = readString(buffer);
+        Class<? extends Message> klass = MessageTypeAdapterFactory.getMessageClass(type);
+        if (klass == null) {
+            klass = UnknownMessage.class;
+        } else if (!BufferEventMessage.class.isAssignableFrom(klass)) {
+            throw new IOException("Not an event: " + type);
+        }
+        MessageCodec codec = MessageCodec.get(klass.asSubclass(BufferEventMessage.class));
+
+        long eid = buffer.getLong();
+        int flags = buffer.get();
+        String nick = readString(buffer);
+        String from = readString(buffer);
+        Long time = (Long) readValue(buffer, gson, Long.class);
+        Object msg = readValue(buffer, gson, Object.class);
+
+        Object[] extras = null;
+        int extraCount = buffer.getInt();
+        if (extraCount > 0) {
+            if (extraCount != codec.getExtraCount()) {
+                throw new IOException("Fields of " + type + " have changed");
+            }
+            extras = new Object[extraCount];
+            for (int i = 0; i < extraCount; i++) {
+                extras[i] = readValue(buffer, gson, codec.getExtraType(i));
+            }
+        }
+
+        BufferEventMessage event = codec.newMessage(extras);
+        event.setType(type);
+        event.eid       = eid;
+        event.highlight = (flags & FLAG_HIGHLIGHT) != 0;
+        event.self      = (flags & FLAG_SELF) != 0;
+        event.nick      = nick;
+        event.from      = from;
+        event.time      = time;
+        event.msg       = msg;
+        return event;
+    }
+
+    private static void writeValue(DataOutputStream out, Gson gson, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(VALUE_NULL);
+        } else if (value instanceof String) {
+            out.writeByte(VALUE_STRING);
+            writeString(out, (String) value);
+        } else if (value instanceof Long) {
+            out.writeByte(VALUE_LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(VALUE_INT);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte(VALUE_BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof Double) {
+            out.writeByte(VALUE_DOUBLE);
+            out.writeDouble((Double) value);
+        } else {
+            out.writeByte(VALUE_JSON);
+            writeString(out, gson.toJson(value));
+        }
+    }
+
+    private static Object readValue(ByteBuffer buffer, Gson gson, Type type) throws IOException {
+        byte tag = buffer.get();
+        switch (tag) {
+            case VALUE_NULL:
+                return null;
+            case VALUE_STRING:
+                return readString(buffer);
+            case VALUE_LONG:
+                return buffer.getLong();
+            case VALUE_INT:
+                return buffer.getInt();
+            case VALUE_BOOLEAN:
+                return readBoolean(buffer);
+            case VALUE_DOUBLE:
+                return buffer.getDouble();
+            case VALUE_JSON:
+                return gson.fromJson(readString(buffer), type);
+            default:
+                throw new IOException("Unknown value tag: " + tag);
+        }
+    }
+
+    private static String getBufferType(Buffer buffer) {
+        switch (buffer.getType()) {
+            case Buffer.CHANNEL_TYPE:
+                return "channel";
+            case Buffer.CONVERSATION_TYPE:
+                return "conversation";
+            case Buffer.CONSOLE_TYPE:
+                return "console";
+            default:
+                throw new IllegalArgumentException("Unknown buffer type: " + buffer.getType());
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(Charsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, Charsets.UTF_8);
+    }
+
+    private static boolean readBoolean(ByteBuffer buffer) {
+        return buffer.get() != 0;
+    }
+
+    /**
+     * Writes a buffer's events as the log hands them over, behind their count. The events of one buffer are collected
+     * first since the log may change between asking for its size and reading it.
+     */
+    private static class EventWriter implements Buffer.EventVisitor {
+        private final Gson mGson;
+        private final ByteArrayOutputStream mBytes = new ByteArrayOutputStream(8 * 1024);
+        private final DataOutputStream mOut = new DataOutputStream(mBytes);
+        private int mCount;
+
+        EventWriter(Gson gson) {
+            mGson = gson;
+        }
+
+        void reset() {
+            mBytes.reset();
+            mCount = 0;
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            mOut.flush();
+            out.writeInt(mCount);
+            mBytes.writeTo(out);
+        }
+
+        @Override public void visit(String type, long eid, Long time, boolean highlight, boolean self, String nick,
+                                    String from, Object text, Object[] extras) throws IOException {
+            writeString(mOut, type);
+            mOut.writeLong(eid);
+            mOut.writeByte((highlight ? FLAG_HIGHLIGHT : 0) | (self ? FLAG_SELF : 0));
+            writeString(mOut, nick);
+            writeString(mOut, from);
+            writeValue(mOut, mGson, time);
+            writeValue(mOut, mGson, text);
+
+            if (extras == null) {
+                mOut.writeInt(0);
+            } else {
+                mOut.writeInt(extras.length);
+                for (Object extra : extras) {
+                    writeValue(mOut, mGson, extra);
+                }
+            }
+            mCount++;
+        }
+    }
+
+    public static class BufferState {
+        public final long cid;
+        public final long bid;
+        public final boolean unread;
+        public final int highlightCount;
+
+        BufferState(long cid, long bid, boolean unread, int highlightCount) {
+            this.cid = cid;
+            this.bid = bid;
+            this.unread = unread;
+            this.highlightCount = highlightCount;
+        }
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2014 Eric Butler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tapchatapp.android.client;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.common.base.Charsets;
+import com.google.gson.Gson;
+import com.tapchatapp.android.client.message.EndOfBacklogMessage;
+import com.tapchatapp.android.client.message.MakeBufferMessage;
+import com.tapchatapp.android.client.message.Message;
+
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import retrofit.client.Response;
+
+/**
+ * Downloads and applies the backlog referenced by an oob_include message.
+ *
+ * The response is streamed on a background thread. Messages are partitioned by connection and the partitions are
+ * handed over together, so the backlog for different connections can be applied concurrently. That happens once the
+ * stream ends or enough has piled up, in rounds of small batches so that nothing else waits on the model for long.
+ * The last selected connection is handed over as soon as its backlog is complete, with the last selected buffer
+ * first, so it can be shown before the others.
+ */
+public class OobLoader {
+
+    private static final String TAG = "OobLoader";
+
+    private static final int APPLY_BATCH_SIZE = 250;
+    private static final int MAX_PENDING      = 5000;
+
+    private static final int MAX_PARSER_THREADS = 4;
+
+    public static interface Callback {
+        /**
+         * Called on the loader thread, one round at a time and in order. Each list holds the next messages for one
+         * connection and no two lists are for the same one, so they can be applied concurrently. Messages for a whole
+         * connection or for the session always come in a round of their own.
+         */
+        void onBacklogMessages(List<List<Message>> partitions) throws Exception;
+        void onBacklogComplete() throws Exception;
+        void onBacklogError(Exception ex);
+    }
+
+    private final TapchatAPI mAPI;
+    private final Callback mCallback;
+
+    private final AtomicInteger mGeneration = new AtomicInteger();
+
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override public Thread newThread(Runnable runnable) {
+            return new Thread(runnable, "TapchatOob");
+        }
+    });
+
+    private final ExecutorService mParserExecutor;
+    private final BacklogParser mParser;
+
+    public OobLoader(TapchatAPI api, Gson gson, Callback callback) {
+        mAPI = api;
+        mCallback = callback;
+
+        // The loader thread itself splits the input and applies the results.
+        int parserThreads = Math.max(1, Math.min(MAX_PARSER_THREADS, Runtime.getRuntime().availableProcessors() - 1));
+        mParserExecutor = Executors.newFixedThreadPool(parserThreads, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, "TapchatOobParser-" + mCount.incrementAndGet());
+            }
+        });
+        mParser = new BacklogParser(gson, mParserExecutor, parserThreads);
+    }
+
+    public void load(final String path, final long selectedCid, final long selectedBid) {
+        final int generation = mGeneration.incrementAndGet();
+        mExecutor.execute(new Runnable() {
+            @Override public void run() {
+                try {
+                    new Load(generation, selectedCid, selectedBid).run(path);
+                } catch (Exception ex) {
+                    if (isCurrent(generation)) {
+                        mCallback.onBacklogError(ex);
+                    }
+                }
+            }
+        });
+    }
+
+    public void cancel() {
+        mGeneration.incrementAndGet();
+    }
+
+    public void shutdown() {
+        cancel();
+        mExecutor.shutdownNow();
+        mParserExecutor.shutdownNow();
+    }
+
+    private boolean isCurrent(int generation) {
+        return mGeneration.get() == generation;
+    }
+
+    private class Load {
+        private final int mLoadGeneration;
+        private final long mSelectedCid;
+        private final long mSelectedBid;
+
+        private final Map<Long, List<Message>> mPending = new LinkedHashMap<>();
+        private int mPendingCount;
+        private int mMessageCount;
+
+        Load(int generation, long selectedCid, long selectedBid) {
+            mLoadGeneration = generation;
+            mSelectedCid = selectedCid;
+            mSelectedBid = selectedBid;
+        }
+
+        void run(String path) throws Exception {
+            long start = SystemClock.elapsedRealtime();
+
+            Response response = mAPI.oobInclude(path.substring(1));
+            InputStream in = response.getBody().in();
+            try {
+                mParser.parse(new InputStreamReader(in, Charsets.UTF_8), new BacklogParser.Listener() {
+                    @Override public void onMessage(Message message) throws Exception {
+                        add(message);
+                    }
+
+                    @Override public boolean isCancelled() {
+                        return !isCurrent(mLoadGeneration);
+                    }
+                });
+            } finally {
+                in.close();
+            }
+
+            if (!isCurrent(mLoadGeneration)) {
+                Log.i(TAG, "Backlog load cancelled");
+                return;
+            }
+
+            flushAll();
+            if (isCurrent(mLoadGeneration)) {
+                Log.i(TAG, String.format("Loaded %s backlog messages in %sms", mMessageCount,
+                    SystemClock.elapsedRealtime() - start));
+                mCallback.onBacklogComplete();
+            }
+        }
+
+        private void add(Message message) throws Exception {
+            mMessageCount++;
+
+            if (message.cid == null) {
+                // Global messages may depend on everything before them.
+                flushAll();
+                apply(Collections.singletonList(Collections.singletonList(message)));
+                return;
+            }
+
+            if (message.bid == null && !(message instanceof EndOfBacklogMessage)) {
+                // Anything for the whole connection, like makeserver, may change what the service knows about it.
+                flush(message.cid);
+                apply(Collections.singletonList(Collections.singletonList(message)));
+                return;
+            }
+
+            List<Message> messages = mPending.get(message.cid);
+            if (messages == null) {
+                messages = new ArrayList<>();
+                mPending.put(message.cid, messages);
+            }
+            messages.add(message);
+            mPendingCount++;
+
+            if (message instanceof EndOfBacklogMessage && message.cid == mSelectedCid) {
+                flush(message.cid);
+            } else if (mPendingCount >= MAX_PENDING) {
+                flushAll();
+            }
+        }
+
+        private void flushAll() throws Exception {
+            if (mPending.containsKey(mSelectedCid)) {
+                flush(mSelectedCid);
+            }
+            List<List<Message>> partitions = new ArrayList<>(mPending.values());
+            mPending.clear();
+            mPendingCount = 0;
+            applyInRounds(partitions);
+        }
+
+        private void flush(long cid) throws Exception {
+            List<Message> messages = mPending.remove(cid);
+            if (messages == null) {
+                return;
+            }
+            mPendingCount -= messages.size();
+
+            if (cid == mSelectedCid) {
+                messages = selectedBufferFirst(messages);
+            }
+            applyInRounds(Collections.singletonList(messages));
+        }
+
+        /**
+         * Each round takes the next batch from every partition that has any left.
+         */
+        private void applyInRounds(List<List<Message>> partitions) throws Exception {
+            for (int start = 0; ; start += APPLY_BATCH_SIZE) {
+                List<List<Message>> round = new ArrayList<>(partitions.size());
+                for (List<Message> messages : partitions) {
+                    if (start < messages.size()) {
+                        round.add(messages.subList(start, Math.min(messages.size(), start + APPLY_BATCH_SIZE)));
+                    }
+                }
+                if (round.isEmpty()) {
+                    return;
+                }
+                apply(round);
+            }
+        }
+
+        /**
+         * Moves everything for buffers other than the selected one behind the selected buffer's messages. Each
+         * buffer's messages stay in order and buffers are still created up front, and end_of_backlog stays last.
+         */
+        private List<Message> selectedBufferFirst(List<Message> messages) {
+            List<Message> ordered = new ArrayList<>(messages.size());
+            List<Message> deferred = new ArrayList<>();
+            Message endOfBacklog = null;
+
+            for (Message message : messages) {
+                if (message instanceof EndOfBacklogMessage) {
+                    endOfBacklog = message;
+                } else if (message.bid != null && message.bid != mSelectedBid && !(message instanceof MakeBufferMessage)) {
+                    deferred.add(message);
+                } else {
+                    ordered.add(message);
+                }
+            }
+
+            ordered.addAll(deferred);
+            if (endOfBacklog != null) {
+                ordered.add(endOfBacklog);
+            }
+            return ordered;
+        }
+
+        private void apply(List<List<Message>> partitions) throws Exception {
+            if (isCurrent(mLoadGeneration)) {
+                mCallback.onBacklogMessages(partitions);
+            }
+        }
+    }
+}
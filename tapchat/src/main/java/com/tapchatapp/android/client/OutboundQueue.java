@@ -0,0 +1,383 @@
+/*
+ * Copyright (C) 2014 Eric Butler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tapchatapp.android.client;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.v4.util.AtomicFile;
+import android.util.Log;
+
+import com.google.common.base.Charsets;
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.reflect.TypeToken;
+import com.tapchatapp.android.client.message.Message;
+import com.tapchatapp.android.client.message.ResponseMessage;
+import com.tapchatapp.android.client.message.request.HeartbeatMessage;
+import com.tapchatapp.android.client.message.request.SayMessage;
+
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Requests on their way to the bouncer.
+ *
+ * Requests are written to the socket as soon as possible without waiting for earlier responses. While the service
+ * isn't connected they are held here (and saved to disk so they survive the process being killed) and sent in order
+ * once it is. A sent request is only let go once the bouncer answers it; if the connection is lost first, it's queued
+ * again ahead of anything newer. Requests older than MAX_AGE aren't sent again, since whoever made them has given up
+ * by then. Chat lines are paced so that pasting many lines doesn't trip the IRC server's flood protection. Changes are
+ * saved SAVE_DELAY after the first one, so that a burst of requests and answers is written out once.
+ */
+public class OutboundQueue {
+
+    private static final String TAG = "OutboundQueue";
+
+    private static final int  SAY_BURST    = 4;
+    private static final long SAY_INTERVAL = 500;
+
+    private static final long MAX_AGE = 15 * 60 * 1000;
+
+    private static final long SAVE_DELAY = 1000;
+
+    public static interface Sender {
+        boolean send(Message message, TapchatService.PostCallback callback);
+    }
+
+    private final Gson mGson;
+    private final AtomicFile mFile;
+    private final Handler mHandler;
+    private final Sender mSender;
+
+    private final ArrayDeque<Entry> mEntries = new ArrayDeque<>();
+
+    // Sent and waiting for their response, oldest first.
+    private final List<Entry> mInFlight = new ArrayList<>();
+
+    private final Runnable mDrainRunnable = new Runnable() {
+        @Override public void run() {
+            drain();
+        }
+    };
+
+    private final Runnable mSaveRunnable = new Runnable() {
+        @Override public void run() {
+            save();
+        }
+    };
+
+    private boolean mConnected;
+    private boolean mDirty;
+    private int mGeneration;
+    private int mSayTokens = SAY_BURST;
+    private long mLastRefillAt = SystemClock.elapsedRealtime();
+    private volatile int mSize;
+
+    public OutboundQueue(Gson gson, AtomicFile file, Looper looper, Sender sender) {
+        mGson = gson;
+        mFile = file;
+        mHandler = new Handler(looper);
+        mSender = sender;
+    }
+
+    public void post(final Message message, final TapchatService.PostCallback callback) {
+        mHandler.post(new Runnable() {
+            @Override public void run() {
+                add(new Entry(message, callback, System.currentTimeMillis(), mGeneration));
+                drain();
+            }
+        });
+    }
+
+    public void setConnected(final boolean connected) {
+        mHandler.post(new Runnable() {
+            @Override public void run() {
+                mConnected = connected;
+                drain();
+            }
+        });
+    }
+
+    public void restore() {
+        mHandler.post(new Runnable() {
+            @Override public void run() {
+                for (Entry entry : load()) {
+                    add(entry);
+                }
+                drain();
+            }
+        });
+    }
+
+    public void clear() {
+        mHandler.post(new Runnable() {
+            @Override public void run() {
+                mEntries.clear();
+                mInFlight.clear();
+                mGeneration++;
+                mSize = 0;
+                mHandler.removeCallbacks(mSaveRunnable);
+                mDirty = false;
+                mFile.delete();
+            }
+        });
+    }
+
+    /**
+     * Saves what is waiting to be saved now, after anything posted before.
+     */
+    public void flush() {
+        mHandler.post(new Runnable() {
+            @Override public void run() {
+                if (mDirty) {
+                    save();
+                }
+            }
+        });
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Puts a request that was lost with the connection back in the queue, in the order it was first sent. Runs on the
+     * queue's thread.
+     */
+    private void requeue(Entry entry) {
+        if (entry.generation != mGeneration || !mInFlight.remove(entry)) {
+            return;
+        }
+        List<Entry> entries = new ArrayList<>(mEntries);
+        int index = 0;
+        while (index < entries.size() && entries.get(index).seq < entry.seq) {
+            index++;
+        }
+        entries.add(index, entry);
+        mEntries.clear();
+        mEntries.addAll(entries);
+        mSize = mEntries.size();
+        drain();
+    }
+
+    private void acknowledge(Entry entry) {
+        if (mInFlight.remove(entry) && isPersistent(entry.message)) {
+            setDirty();
+        }
+    }
+
+    private void add(Entry entry) {
+        mEntries.addLast(entry);
+        mSize = mEntries.size();
+        if (isPersistent(entry.message)) {
+            setDirty();
+        }
+    }
+
+    private void setDirty() {
+        if (!mDirty) {
+            mDirty = true;
+            mHandler.postDelayed(mSaveRunnable, SAVE_DELAY);
+        }
+    }
+
+    private void drain() {
+        mHandler.removeCallbacks(mDrainRunnable);
+
+        while (mConnected && !mEntries.isEmpty()) {
+            Entry entry = mEntries.peekFirst();
+
+            if (entry.message instanceof SayMessage) {
+                refillSayTokens();
+                if (mSayTokens == 0) {
+                    long wait = SAY_INTERVAL - (SystemClock.elapsedRealtime() - mLastRefillAt);
+                    mHandler.postDelayed(mDrainRunnable, wait);
+                    break;
+                }
+            }
+
+            if (!mSender.send(entry.message, new AckCallback(entry))) {
+                break;
+            }
+
+            if (entry.message instanceof SayMessage) {
+                mSayTokens--;
+            }
+            mEntries.pollFirst();
+            mInFlight.add(entry);
+            mSize = mEntries.size();
+        }
+    }
+
+    private void refillSayTokens() {
+        long now = SystemClock.elapsedRealtime();
+        long refills = (now - mLastRefillAt) / SAY_INTERVAL;
+        if (refills > 0) {
+            mSayTokens = (int) Math.min(SAY_BURST, mSayTokens + refills);
+            mLastRefillAt = (mSayTokens == SAY_BURST) ? now : mLastRefillAt + (refills * SAY_INTERVAL);
+        }
+    }
+
+    private static boolean isPersistent(Message message) {
+        return !(message instanceof HeartbeatMessage);
+    }
+
+    private static boolean isExpired(long queuedAt) {
+        long age = System.currentTimeMillis() - queuedAt;
+        return age < 0 || age > MAX_AGE;
+    }
+
+    private void save() {
+        mHandler.removeCallbacks(mSaveRunnable);
+        mDirty = false;
+
+        List<Entry> entries = new ArrayList<>(mInFlight);
+        entries.addAll(mEntries);
+
+        List<SavedMessage> messages = new ArrayList<>();
+        for (Entry entry : entries) {
+            if (isPersistent(entry.message)) {
+                messages.add(new SavedMessage(entry.message.getClass().getName(), mGson.toJsonTree(entry.message),
+                    entry.queuedAt));
+            }
+        }
+
+        if (messages.isEmpty()) {
+            mFile.delete();
+            return;
+        }
+
+        FileOutputStream out = null;
+        try {
+            out = mFile.startWrite();
+            Writer writer = new OutputStreamWriter(out, Charsets.UTF_8);
+            mGson.toJson(messages, writer);
+            writer.flush();
+            mFile.finishWrite(out);
+        } catch (IOException ex) {
+            Log.e(TAG, "Failed to save unsent messages", ex);
+            if (out != null) {
+                mFile.failWrite(out);
+            }
+        }
+    }
+
+    private List<Entry> load() {
+        List<Entry> entries = new ArrayList<>();
+
+        FileInputStream in = null;
+        try {
+            in = mFile.openRead();
+            Reader reader = new InputStreamReader(in, Charsets.UTF_8);
+            List<SavedMessage> saved = mGson.fromJson(reader, new TypeToken<List<SavedMessage>>() { }.getType());
+            if (saved != null) {
+                for (SavedMessage savedMessage : saved) {
+                    if (isExpired(savedMessage.queuedAt)) {
+                        continue;
+                    }
+                    Class<? extends Message> klass = Class.forName(savedMessage.type).asSubclass(Message.class);
+                    Message message = mGson.fromJson(savedMessage.message, klass);
+                    entries.add(new Entry(message, null, savedMessage.queuedAt, mGeneration));
+                }
+            }
+        } catch (FileNotFoundException ex) {
+            // Nothing was left unsent.
+        } catch (Exception ex) {
+            Log.e(TAG, "Failed to load unsent messages", ex);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) { }
+            }
+        }
+
+        return entries;
+    }
+
+    /**
+     * Wraps a sent request's callback. A request that failed because the connection was lost is queued again, and its
+     * callback only runs once it gets a real answer.
+     */
+    private class AckCallback implements TapchatService.PostCallback {
+        private final Entry mEntry;
+
+        AckCallback(Entry entry) {
+            mEntry = entry;
+        }
+
+        @Override public void run(ResponseMessage response, Message request) {
+            boolean lost = !response.success && RequestTracker.ERROR_DISCONNECTED.equals(response.error);
+            if (lost && isPersistent(mEntry.message) && !isExpired(mEntry.queuedAt)) {
+                mHandler.post(new Runnable() {
+                    @Override public void run() {
+                        requeue(mEntry);
+                    }
+                });
+                return;
+            }
+
+            mHandler.post(new Runnable() {
+                @Override public void run() {
+                    acknowledge(mEntry);
+                }
+            });
+            if (mEntry.callback != null) {
+                mEntry.callback.run(response, request);
+            }
+        }
+    }
+
+    private static class Entry {
+        private static long sNextSeq;
+
+        final Message message;
+        final TapchatService.PostCallback callback;
+        final long queuedAt;
+        final int generation;
+        final long seq = sNextSeq++;
+
+        Entry(Message message, TapchatService.PostCallback callback, long queuedAt, int generation) {
+            this.message = message;
+            this.callback = callback;
+            this.queuedAt = queuedAt;
+            this.generation = generation;
+        }
+    }
+
+    private static class SavedMessage {
+        String type;
+        JsonElement message;
+        long queuedAt;
+
+        SavedMessage(String type, JsonElement message, long queuedAt) {
+            this.type = type;
+            this.message = message;
+            this.queuedAt = queuedAt;
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2014 Eric Butler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tapchatapp.android.client;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Random;
+
+/**
+ * Decides when {@link TapchatService} should try to reconnect to the bouncer after losing the connection.
+ *
+ * Retries back off exponentially with jitter. While there is no network nothing is scheduled; once a network comes
+ * back a pending retry fires right away.
+ */
+public class ReconnectScheduler {
+
+    private static final String TAG = "ReconnectScheduler";
+
+    private static final long INITIAL_DELAY = 1000;
+    private static final long MAX_DELAY     = 5 * 60 * 1000;
+
+    public static interface Callback {
+        void onReconnect();
+    }
+
+    private final Handler mHandler;
+    private final Callback mCallback;
+    private final Random mRandom = new Random();
+
+    private final Runnable mReconnectRunnable = new Runnable() {
+        @Override public void run() {
+            synchronized (ReconnectScheduler.this) {
+                mPending = false;
+                mAttempts++;
+                mTotalAttempts++;
+            }
+            mCallback.onReconnect();
+        }
+    };
+
+    private boolean mPending;
+    private boolean mNetworkAvailable = true;
+    private int mAttempts;
+    private long mDisconnectedAt;
+
+    private long mTotalAttempts;
+    private long mReconnectCount;
+    private long mLastReconnectMillis;
+    private long mTotalReconnectMillis;
+
+    public ReconnectScheduler(Handler handler, Callback callback) {
+        mHandler = handler;
+        mCallback = callback;
+    }
+
+    public synchronized void schedule() {
+        if (mDisconnectedAt == 0) {
+            mDisconnectedAt = SystemClock.elapsedRealtime();
+        }
+
+        mHandler.removeCallbacks(mReconnectRunnable);
+        mPending = true;
+
+        if (!mNetworkAvailable) {
+            Log.i(TAG, "Offline, waiting for a network before reconnecting");
+            return;
+        }
+
+        long delay = getDelay(mAttempts);
+        Log.i(TAG, String.format("Reconnecting in %sms (attempt %s)", delay, mAttempts + 1));
+        mHandler.postDelayed(mReconnectRunnable, delay);
+    }
+
+    public synchronized void retryNow() {
+        if (mDisconnectedAt == 0) {
+            mDisconnectedAt = SystemClock.elapsedRealtime();
+        }
+        mAttempts = 0;
+        mPending = true;
+        mHandler.removeCallbacks(mReconnectRunnable);
+        if (mNetworkAvailable) {
+            mHandler.post(mReconnectRunnable);
+        }
+    }
+
+    public synchronized void setNetworkAvailable(boolean available) {
+        if (available == mNetworkAvailable) {
+            return;
+        }
+        mNetworkAvailable = available;
+
+        if (!available) {
+            mHandler.removeCallbacks(mReconnectRunnable);
+        } else if (mPending) {
+            retryNow();
+        }
+    }
+
+    /**
+     * Call this once the bouncer has sent its backlog, not when the socket opens. A bouncer that accepts the socket and
+     * then fails would otherwise be retried at the shortest delay forever.
+     */
+    public synchronized void onLoaded() {
+        if (mDisconnectedAt != 0) {
+            mLastReconnectMillis = SystemClock.elapsedRealtime() - mDisconnectedAt;
+            mTotalReconnectMillis += mLastReconnectMillis;
+            mReconnectCount++;
+            Log.i(TAG, String.format("Reconnected after %sms and %s attempts", mLastReconnectMillis, mAttempts));
+        }
+        mDisconnectedAt = 0;
+        mAttempts = 0;
+        cancel();
+    }
+
+    public synchronized void cancel() {
+        mPending = false;
+        mHandler.removeCallbacks(mReconnectRunnable);
+    }
+
+    public synchronized void reset() {
+        cancel();
+        mAttempts = 0;
+        mDisconnectedAt = 0;
+    }
+
+    public synchronized boolean isPending() {
+        return mPending;
+    }
+
+    public synchronized long getTotalAttempts() {
+        return mTotalAttempts;
+    }
+
+    public synchronized long getReconnectCount() {
+        return mReconnectCount;
+    }
+
+    public synchronized long getLastReconnectMillis() {
+        return mLastReconnectMillis;
+    }
+
+    public synchronized long getAverageReconnectMillis() {
+        return (mReconnectCount > 0) ? (mTotalReconnectMillis / mReconnectCount) : 0;
+    }
+
+    private long getDelay(int attempts) {
+        long delay = Math.min(MAX_DELAY, INITIAL_DELAY << Math.min(attempts, 16));
+        long half = delay / 2;
+        return half + (long) (mRandom.nextDouble() * half);
+    }
+}
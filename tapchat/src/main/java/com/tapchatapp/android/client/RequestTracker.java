@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2014 Eric Butler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tapchatapp.android.client;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.tapchatapp.android.client.message.Message;
+import com.tapchatapp.android.client.message.ResponseMessage;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Requests that have been sent to the bouncer and are waiting for a response.
+ *
+ * Every request gets a deadline on a coarse timer wheel. If no response arrives in time, or the connection is lost,
+ * or too many requests are outstanding, the request's callback is run with an unsuccessful response so that nothing
+ * it references is held on to forever.
+ */
+public class RequestTracker {
+
+    public static final String ERROR_TIMEOUT      = "timeout";
+    public static final String ERROR_DISCONNECTED = "disconnected";
+    public static final String ERROR_OVERFLOW     = "overflow";
+
+    private static final String TAG = "RequestTracker";
+
+    private static final int  MAX_PENDING  = 256;
+    private static final int  WHEEL_SLOTS  = 64; // Must be a power of two
+    private static final long TICK_MILLIS  = 1000;
+    private static final long TIMEOUT      = 30 * 1000;
+
+    private final Handler mHandler;
+
+    private final LinkedHashMap<Integer, PendingRequest> mPending = new LinkedHashMap<>();
+    private final List<List<PendingRequest>> mWheel = new ArrayList<>(WHEEL_SLOTS);
+    private final Map<String, RequestStats> mStats = new HashMap<>();
+
+    private final Runnable mTickRunnable = new Runnable() {
+        @Override public void run() {
+            tick();
+        }
+    };
+
+    private long mCurrentTick;
+    private boolean mTicking;
+
+    public RequestTracker(Handler handler) {
+        mHandler = handler;
+        for (int i = 0; i < WHEEL_SLOTS; i++) {
+            mWheel.add(new ArrayList<PendingRequest>());
+        }
+    }
+
+    public synchronized void add(Message request, TapchatService.PostCallback callback) {
+        if (mPending.size() >= MAX_PENDING) {
+            Iterator<PendingRequest> iterator = mPending.values().iterator();
+            PendingRequest eldest = iterator.next();
+            iterator.remove();
+            Log.w(TAG, "Too many pending requests, dropping " + eldest.request._reqid);
+            fail(eldest, ERROR_OVERFLOW);
+        }
+
+        long deadlineTick = mCurrentTick + ((TIMEOUT + TICK_MILLIS - 1) / TICK_MILLIS);
+        PendingRequest pending = new PendingRequest(request, callback, SystemClock.elapsedRealtime(), deadlineTick);
+        mPending.put(request._reqid, pending);
+        mWheel.get((int) (deadlineTick & (WHEEL_SLOTS - 1))).add(pending);
+
+        if (!mTicking) {
+            mTicking = true;
+            mHandler.postDelayed(mTickRunnable, TICK_MILLIS);
+        }
+    }
+
+    public synchronized PendingRequest complete(int reqid) {
+        PendingRequest pending = mPending.remove(reqid);
+        if (pending == null) {
+            return null;
+        }
+        pending.done = true;
+        getStats(pending.request).addLatency(SystemClock.elapsedRealtime() - pending.sentAt);
+        return pending;
+    }
+
+    public synchronized void failAll(String error) {
+        for (PendingRequest pending : mPending.values()) {
+            fail(pending, error);
+        }
+        mPending.clear();
+        stopTicking();
+    }
+
+    public synchronized int size() {
+        return mPending.size();
+    }
+
+    public synchronized Map<String, RequestStats> getStats() {
+        Map<String, RequestStats> stats = new HashMap<>();
+        for (Map.Entry<String, RequestStats> entry : mStats.entrySet()) {
+            stats.put(entry.getKey(), new RequestStats(entry.getValue()));
+        }
+        return stats;
+    }
+
+    private synchronized void tick() {
+        if (!mTicking) {
+            return;
+        }
+
+        mCurrentTick++;
+
+        Iterator<PendingRequest> iterator = mWheel.get((int) (mCurrentTick & (WHEEL_SLOTS - 1))).iterator();
+        while (iterator.hasNext()) {
+            PendingRequest pending = iterator.next();
+            if (pending.done) {
+                iterator.remove();
+            } else if (pending.deadlineTick <= mCurrentTick) {
+                iterator.remove();
+                mPending.remove(pending.request._reqid);
+                Log.w(TAG, String.format("Request %s (%s) timed out", pending.request._reqid, pending.request._method));
+                getStats(pending.request).mTimeouts++;
+                fail(pending, ERROR_TIMEOUT);
+            }
+        }
+
+        if (mPending.isEmpty()) {
+            stopTicking();
+        } else {
+            mHandler.postDelayed(mTickRunnable, TICK_MILLIS);
+        }
+    }
+
+    private void stopTicking() {
+        mTicking = false;
+        mHandler.removeCallbacks(mTickRunnable);
+        for (List<PendingRequest> slot : mWheel) {
+            slot.clear();
+        }
+    }
+
+    private void fail(final PendingRequest pending, String error) {
+        pending.done = true;
+        getStats(pending.request).mFailures++;
+
+        if (pending.callback == null) {
+            return;
+        }
+
+        final ResponseMessage response = new ResponseMessage();
+        response._reqid = pending.request._reqid;
+        response.cid = pending.request.cid;
+        response.success = false;
+        response.error = error;
+
+        mHandler.post(new Runnable() {
+            @Override public void run() {
+                pending.callback.run(response, pending.request);
+            }
+        });
+    }
+
+    private RequestStats getStats(Message request) {
+        String method = (request._method != null) ? request._method : "unknown";
+        RequestStats stats = mStats.get(method);
+        if (stats == null) {
+            stats = new RequestStats();
+            mStats.put(method, stats);
+        }
+        return stats;
+    }
+
+    public static class PendingRequest {
+        public final Message request;
+        public final TapchatService.PostCallback callback;
+
+        private final long sentAt;
+        private final long deadlineTick;
+        private boolean done;
+
+        private PendingRequest(Message request, TapchatService.PostCallback callback, long sentAt, long deadlineTick) {
+            this.request = request;
+            this.callback = callback;
+            this.sentAt = sentAt;
+            this.deadlineTick = deadlineTick;
+        }
+    }
+
+    public static class RequestStats {
+        private long mCount;
+        private long mTotalMillis;
+        private long mMaxMillis;
+        private long mTimeouts;
+        private long mFailures;
+
+        private RequestStats() { }
+
+        private RequestStats(RequestStats other) {
+            mCount = other.mCount;
+            mTotalMillis = other.mTotalMillis;
+            mMaxMillis = other.mMaxMillis;
+            mTimeouts = other.mTimeouts;
+            mFailures = other.mFailures;
+        }
+
+        private void addLatency(long millis) {
+            mCount++;
+            mTotalMillis += millis;
+            mMaxMillis = Math.max(mMaxMillis, millis);
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public long getAverageMillis() {
+            return (mCount > 0) ? (mTotalMillis / mCount) : 0;
+        }
+
+        public long getMaxMillis() {
+            return mMaxMillis;
+        }
+
+        public long getTimeouts() {
+            return mTimeouts;
+        }
+
+        public long getFailures() {
+            return mFailures;
+        }
+
+        @Override public String toString() {
+            return String.format("RequestStats{count=%s, avg=%sms, max=%sms, timeouts=%s, failures=%s}",
+                mCount, getAverageMillis(), mMaxMillis, mTimeouts, mFailures);
+        }
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2014 Eric Butler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tapchatapp.android.client;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+import com.google.common.collect.ImmutableList;
+import com.tapchatapp.android.client.message.BufferEventMessage;
+import com.tapchatapp.android.client.message.BufferMeMsgMessage;
+import com.tapchatapp.android.client.message.BufferMsgMessage;
+import com.tapchatapp.android.client.message.NoticeMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Full-text index over the text of chat messages in every buffer.
+ *
+ * Backed by an SQLite FTS4 table, which gives prefix matching over hundreds of thousands of lines in a few
+ * milliseconds. Messages are queued as they are processed and inserted in batches on a background thread.
+ */
+public class SearchIndex {
+
+    private static final String TAG = "SearchIndex";
+
+    private static final String DATABASE_NAME = "search.db";
+    private static final int DATABASE_VERSION = 1;
+
+    private static final List<String> INDEXED_TYPES = ImmutableList.of(
+        BufferMsgMessage.TYPE,
+        NoticeMessage.TYPE,
+        BufferMeMsgMessage.TYPE
+    );
+
+    public static final int DEFAULT_LIMIT = 200;
+
+    private final Helper mHelper;
+
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override public Thread newThread(Runnable runnable) {
+            return new Thread(runnable, "TapchatSearchIndex");
+        }
+    });
+
+    private final Object mPendingLock = new Object();
+    private List<PendingLine> mPending = new ArrayList<>();
+
+    public SearchIndex(Context context) {
+        mHelper = new Helper(context);
+    }
+
+    public static boolean isIndexed(BufferEventMessage message) {
+        return INDEXED_TYPES.contains(message.type) && message.msg instanceof String;
+    }
+
+    public void add(long cid, long bid, BufferEventMessage message) {
+        if (!isIndexed(message)) {
+            return;
+        }
+
+        synchronized (mPendingLock) {
+            mPending.add(new PendingLine(cid, bid, message));
+            if (mPending.size() > 1) {
+                // A flush is already queued and will pick this up.
+                return;
+            }
+        }
+
+        mExecutor.execute(new Runnable() {
+            @Override public void run() {
+                flushPending();
+            }
+        });
+    }
+
+    /**
+     * Finds the newest lines matching every word of the query, each word as a prefix. Pass -1 to search all
+     * connections or buffers. Blocks, so don't call it on the main thread.
+     */
+    public List<Result> search(String query, long cid, long bid, int limit) {
+        List<Result> results = new ArrayList<>();
+
+        String match = toMatchExpression(query);
+        if (match == null) {
+            return results;
+        }
+
+        // The subquery makes SQLite run the full-text match first and only then apply the filters and the order.
+        StringBuilder sql = new StringBuilder()
+            .append("SELECT cid, bid, eid, time, nick, type, msg FROM lines ")
+            .append("WHERE _id IN (SELECT docid FROM lines_fts WHERE lines_fts MATCH ?)");
+        List<String> args = new ArrayList<>();
+        args.add(match);
+        if (cid != -1) {
+            sql.append(" AND cid = ?");
+            args.add(String.valueOf(cid));
+        }
+        if (bid != -1) {
+            sql.append(" AND bid = ?");
+            args.add(String.valueOf(bid));
+        }
+        sql.append(" ORDER BY eid DESC LIMIT ").append(limit);
+
+        Cursor cursor = mHelper.getReadableDatabase().rawQuery(sql.toString(), args.toArray(new String[args.size()]));
+        try {
+            while (cursor.moveToNext()) {
+                results.add(new Result(cursor.getLong(0), cursor.getLong(1), cursor.getLong(2), cursor.getLong(3),
+                    cursor.getString(4), cursor.getString(5), cursor.getString(6)));
+            }
+        } finally {
+            cursor.close();
+        }
+        return results;
+    }
+
+    public void deleteBuffer(final long cid, final long bid) {
+        delete("cid = ? AND bid = ?", new String[] { String.valueOf(cid), String.valueOf(bid) });
+    }
+
+    public void deleteConnection(final long cid) {
+        delete("cid = ?", new String[] { String.valueOf(cid) });
+    }
+
+    public void clear() {
+        synchronized (mPendingLock) {
+            mPending.clear();
+        }
+        delete(null, null);
+    }
+
+    public void shutdown() {
+        mExecutor.execute(new Runnable() {
+            @Override public void run() {
+                flushPending();
+                mHelper.close();
+            }
+        });
+        mExecutor.shutdown();
+    }
+
+    private void delete(final String where, final String[] args) {
+        mExecutor.execute(new Runnable() {
+            @Override public void run() {
+                flushPending();
+
+                SQLiteDatabase db = mHelper.getWritableDatabase();
+                db.beginTransaction();
+                try {
+                    String docids = "SELECT _id FROM lines" + ((where != null) ? " WHERE " + where : "");
+                    db.execSQL("DELETE FROM lines_fts WHERE docid IN (" + docids + ")", (args != null) ? args : new String[0]);
+                    db.delete("lines", where, args);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+        });
+    }
+
+    private void flushPending() {
+        List<PendingLine> pending;
+        synchronized (mPendingLock) {
+            if (mPending.isEmpty()) {
+                return;
+            }
+            pending = mPending;
+            mPending = new ArrayList<>();
+        }
+
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            ContentValues values = new ContentValues();
+            ContentValues ftsValues = new ContentValues();
+            for (PendingLine line : pending) {
+                BufferEventMessage message = line.mMessage;
+                String text = message.getMsgString();
+                String nick = (message.from != null) ? message.from : message.nick;
+                long time = (message.getDate() != null) ? message.getDate().getTime() : 0;
+
+                values.clear();
+                values.put("cid", line.mCid);
+                values.put("bid", line.mBid);
+                values.put("eid", message.eid);
+                values.put("time", time);
+                values.put("nick", nick);
+                values.put("type", message.type);
+                values.put("msg", text);
+
+                // Lines we already have, for example from a backlog that was sent again, are ignored.
+                long id = db.insertWithOnConflict("lines", null, values, SQLiteDatabase.CONFLICT_IGNORE);
+                if (id == -1) {
+                    continue;
+                }
+
+                ftsValues.clear();
+                ftsValues.put("docid", id);
+                ftsValues.put("nick", nick);
+                ftsValues.put("msg", text);
+                db.insert("lines_fts", null, ftsValues);
+            }
+            db.setTransactionSuccessful();
+        } catch (Exception ex) {
+            Log.e(TAG, "Failed to index " + pending.size() + " lines", ex);
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Turns what the user typed into an FTS query where every word has to match as a prefix, with anything that
+     * FTS would treat as syntax removed.
+     */
+    static String toMatchExpression(String query) {
+        StringBuilder match = new StringBuilder();
+        for (String word : query.split("\\s+")) {
+            String term = word.replaceAll("[\"*():^-]", "").trim();
+            if (term.isEmpty() || term.equalsIgnoreCase("AND") || term.equalsIgnoreCase("OR")
+                    || term.equalsIgnoreCase("NOT") || term.equalsIgnoreCase("NEAR")) {
+                continue;
+            }
+            if (match.length() > 0) {
+                match.append(' ');
+            }
+            match.append('"').append(term).append("*\"");
+        }
+        return (match.length() > 0) ? match.toString() : null;
+    }
+
+    public static class Result {
+        public final long cid;
+        public final long bid;
+        public final long eid;
+        public final long time;
+        public final String nick;
+        public final String type;
+        public final String msg;
+
+        Result(long cid, long bid, long eid, long time, String nick, String type, String msg) {
+            this.cid = cid;
+            this.bid = bid;
+            this.eid = eid;
+            this.time = time;
+            this.nick = nick;
+            this.type = type;
+            this.msg = msg;
+        }
+    }
+
+    private static class PendingLine {
+        private final long mCid;
+        private final long mBid;
+        private final BufferEventMessage mMessage;
+
+        PendingLine(long cid, long bid, BufferEventMessage message) {
+            mCid = cid;
+            mBid = bid;
+            mMessage = message;
+        }
+    }
+
+    private static class Helper extends SQLiteOpenHelper {
+        Helper(Context context) {
+            super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        }
+
+        @Override public void onCreate(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE lines (_id INTEGER PRIMARY KEY, cid INTEGER NOT NULL, bid INTEGER NOT NULL, "
+                + "eid INTEGER NOT NULL, time INTEGER NOT NULL, nick TEXT, type TEXT NOT NULL, msg TEXT, "
+                + "UNIQUE (cid, bid, eid))");
+            db.execSQL("CREATE VIRTUAL TABLE lines_fts USING fts4 (nick, msg)");
+        }
+
+        @Override public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            db.execSQL("DROP TABLE IF EXISTS lines_fts");
+            db.execSQL("DROP TABLE IF EXISTS lines");
+            onCreate(db);
+        }
+    }
+}
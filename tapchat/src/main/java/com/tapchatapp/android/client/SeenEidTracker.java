@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2014 Eric Butler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tapchatapp.android.client;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Seen eids that still have to be reported to the bouncer.
+ *
+ * Buffers push an entry whenever they are marked read, so building a heartbeat only touches the buffers that changed
+ * since the last one and costs nothing when nothing did. An entry stays until the bouncer has acknowledged it, so a
+ * heartbeat that is lost with the connection is sent again.
+ */
+public class SeenEidTracker {
+
+    public static interface Listener {
+        void onSeenEidsChanged();
+    }
+
+    private final Listener mListener;
+
+    private final EidTable mDirty    = new EidTable();
+    private final EidTable mInFlight = new EidTable();
+    private final EidTable mSent     = new EidTable();
+
+    public SeenEidTracker(Listener listener) {
+        mListener = listener;
+    }
+
+    public void markRead(long cid, long bid, long eid) {
+        synchronized (this) {
+            if (eid <= mSent.get(cid, bid, -1)) {
+                return;
+            }
+            mDirty.putMax(cid, bid, eid);
+        }
+        mListener.onSeenEidsChanged();
+    }
+
+    /**
+     * Records an eid the bouncer already knows about, for example from a heartbeat echo.
+     */
+    public synchronized void acknowledge(long cid, long bid, long eid) {
+        mSent.putMax(cid, bid, eid);
+        mDirty.removeUpTo(mSent);
+    }
+
+    public synchronized boolean hasChanges() {
+        for (int i = 0; i < mDirty.size(); i++) {
+            int slot = mDirty.slotAt(i);
+            if (isUnsent(mDirty.mCids[slot], mDirty.mBids[slot], mDirty.mEids[slot])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the changes that haven't been sent yet in the format used by heartbeats, or null if there are none.
+     * They count as sent once passed to {@link #onSent}, until then they aren't returned again unless
+     * {@link #onSendFailed} is called.
+     */
+    public synchronized Map<String, Map<String, Long>> takeChanges() {
+        if (mDirty.size() == 0) {
+            return null;
+        }
+
+        Map<String, Map<String, Long>> changes = new HashMap<>();
+        for (int i = 0; i < mDirty.size(); i++) {
+            int slot = mDirty.slotAt(i);
+            long cid = mDirty.mCids[slot];
+            long bid = mDirty.mBids[slot];
+            long eid = mDirty.mEids[slot];
+
+            if (!isUnsent(cid, bid, eid)) {
+                continue;
+            }
+            mInFlight.putMax(cid, bid, eid);
+
+            String connectionId = String.valueOf(cid);
+            Map<String, Long> buffers = changes.get(connectionId);
+            if (buffers == null) {
+                buffers = new HashMap<>();
+                changes.put(connectionId, buffers);
+            }
+            buffers.put(String.valueOf(bid), eid);
+        }
+
+        return changes.isEmpty() ? null : changes;
+    }
+
+    /**
+     * Called once the bouncer has acknowledged changes returned by {@link #takeChanges}.
+     */
+    public synchronized void onSent(Map<String, Map<String, Long>> changes) {
+        for (Map.Entry<String, Map<String, Long>> connection : changes.entrySet()) {
+            long cid = Long.parseLong(connection.getKey());
+            for (Map.Entry<String, Long> buffer : connection.getValue().entrySet()) {
+                mSent.putMax(cid, Long.parseLong(buffer.getKey()), buffer.getValue());
+            }
+        }
+        mDirty.removeUpTo(mSent);
+    }
+
+    /**
+     * Called when changes returned by {@link #takeChanges} may not have reached the bouncer. Everything that hasn't
+     * been acknowledged is returned again by the next call.
+     */
+    public void onSendFailed() {
+        boolean changed;
+        synchronized (this) {
+            mInFlight.clear();
+            changed = mDirty.size() > 0;
+        }
+        if (changed) {
+            mListener.onSeenEidsChanged();
+        }
+    }
+
+    /**
+     * Forgets what the bouncer was told, for a new session. Changes it hasn't acknowledged are kept and sent again.
+     */
+    public synchronized void reset() {
+        mInFlight.clear();
+        mSent.clear();
+    }
+
+    public synchronized void clear() {
+        mDirty.clear();
+        mInFlight.clear();
+        mSent.clear();
+    }
+
+    private boolean isUnsent(long cid, long bid, long eid) {
+        return eid > mSent.get(cid, bid, -1) && eid > mInFlight.get(cid, bid, -1);
+    }
+
+    /**
+     * Open addressing map from (cid, bid) to eid that keeps a list of its used slots so that it can be walked and
+     * cleared without looking at empty slots.
+     */
+    private static class EidTable {
+        private static final int INITIAL_CAPACITY = 16; // Must be a power of two
+
+        private long[] mCids;
+        private long[] mBids;
+        private long[] mEids;
+        private boolean[] mUsed;
+        private int[] mSlots;
+        private int mSize;
+
+        EidTable() {
+            allocate(INITIAL_CAPACITY);
+        }
+
+        int size() {
+            return mSize;
+        }
+
+        int slotAt(int index) {
+            return mSlots[index];
+        }
+
+        long get(long cid, long bid, long defaultValue) {
+            int slot = find(cid, bid);
+            return (slot >= 0) ? mEids[slot] : defaultValue;
+        }
+
+        void putMax(long cid, long bid, long eid) {
+            int slot = find(cid, bid);
+            if (slot >= 0) {
+                if (eid > mEids[slot]) {
+                    mEids[slot] = eid;
+                }
+                return;
+            }
+
+            if ((mSize + 1) * 4 > mUsed.length * 3) {
+                grow();
+                slot = find(cid, bid);
+            }
+
+            slot = ~slot;
+            mCids[slot] = cid;
+            mBids[slot] = bid;
+            mEids[slot] = eid;
+            mUsed[slot] = true;
+            mSlots[mSize++] = slot;
+        }
+
+        void clear() {
+            for (int i = 0; i < mSize; i++) {
+                mUsed[mSlots[i]] = false;
+            }
+            mSize = 0;
+        }
+
+        /**
+         * Removes the entries whose eid isn't newer than the one for the same buffer in limits.
+         */
+        void removeUpTo(EidTable limits) {
+            int removed = 0;
+            for (int i = 0; i < mSize; i++) {
+                int slot = mSlots[i];
+                if (mEids[slot] <= limits.get(mCids[slot], mBids[slot], -1)) {
+                    mUsed[slot] = false;
+                    removed++;
+                }
+            }
+            if (removed == 0) {
+                return;
+            }
+
+            // Open addressing can't just clear a slot, since entries that were probed past it couldn't be found
+            // anymore. One pass over the table, starting after a free slot, moves each of them up to the first free
+            // slot on its way and lists the used slots again.
+            int mask = mUsed.length - 1;
+            int start = 0;
+            while (mUsed[start]) {
+                start++;
+            }
+            mSize = 0;
+            for (int offset = 1; offset <= mask; offset++) {
+                int slot = (start + offset) & mask;
+                if (!mUsed[slot]) {
+                    continue;
+                }
+                int found = find(mCids[slot], mBids[slot]);
+                if (found >= 0) {
+                    mSlots[mSize++] = slot;
+                    continue;
+                }
+
+                int free = ~found;
+                mCids[free] = mCids[slot];
+                mBids[free] = mBids[slot];
+                mEids[free] = mEids[slot];
+                mUsed[free] = true;
+                mUsed[slot] = false;
+                // A slot the pass hasn't got to yet is listed when it does.
+                if (((free - start) & mask) < offset) {
+                    mSlots[mSize++] = free;
+                }
+            }
+        }
+
+        private int find(long cid, long bid) {
+            int mask = mUsed.length - 1;
+            int slot = hash(cid, bid) & mask;
+            while (mUsed[slot]) {
+                if (mCids[slot] == cid && mBids[slot] == bid) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return ~slot;
+        }
+
+        private void grow() {
+            long[] cids = mCids;
+            long[] bids = mBids;
+            long[] eids = mEids;
+            int[] slots = mSlots;
+            int size = mSize;
+
+            allocate(mUsed.length * 2);
+
+            for (int i = 0; i < size; i++) {
+                int oldSlot = slots[i];
+                int slot = ~find(cids[oldSlot], bids[oldSlot]);
+                mCids[slot] = cids[oldSlot];
+                mBids[slot] = bids[oldSlot];
+                mEids[slot] = eids[oldSlot];
+                mUsed[slot] = true;
+                mSlots[mSize++] = slot;
+            }
+        }
+
+        private void allocate(int capacity) {
+            mCids  = new long[capacity];
+            mBids  = new long[capacity];
+            mEids  = new long[capacity];
+            mUsed  = new boolean[capacity];
+            mSlots = new int[capacity];
+            mSize  = 0;
+        }
+
+        private static int hash(long cid, long bid) {
+            long h = (cid * 0x9E3779B97F4A7C15L) ^ bid;
+            h *= 0xC2B2AE3D27D4EB4FL;
+            return (int) (h ^ (h >>> 32));
+        }
+    }
+}
@@ -22,6 +22,7 @@ import retrofit.http.Body;
 import retrofit.http.EncodedPath;
 import retrofit.http.GET;
 import retrofit.http.POST;
+import retrofit.http.Query;
 import retrofit.http.Streaming;
 
 public interface TapchatAPI {
@@ -30,6 +31,9 @@ public interface TapchatAPI {
 
     @GET("/{path}") @Streaming Response oobInclude(@EncodedPath("path") String path);
 
+    @GET("/chat/backlog") @Streaming Response backlog(@Query("cid") long cid, @Query("bid") long bid,
+                                                      @Query("beforeid") long beforeId, @Query("num") int count);
+
     public class LoginBody {
         public String email;
         public String password;
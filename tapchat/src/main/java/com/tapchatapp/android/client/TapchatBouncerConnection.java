@@ -20,15 +20,30 @@ import android.text.TextUtils;
 import android.util.Log;
 
 import com.codebutler.android_websockets.WebSocketClient;
+import com.google.common.base.Charsets;
 import com.google.common.collect.ImmutableList;
 import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 import com.tapchatapp.android.app.TapchatApp;
 import com.tapchatapp.android.client.message.Message;
 
 import org.apache.http.message.BasicNameValuePair;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 
 import javax.inject.Inject;
 
@@ -36,6 +51,15 @@ public class TapchatBouncerConnection implements WebSocketClient.Listener {
 
     private static final String TAG = "TapchatBouncerConnection";
 
+    // The websocket library can't do permessage-deflate, so compression is negotiated with this header instead.
+    // A bouncer that supports it sends gzip or zlib compressed JSON (a single message or an array of messages)
+    // as binary frames, anything else keeps sending plain text frames.
+    private static final String HEADER_ACCEPT_ENCODING = "X-Tapchat-Accept-Encoding";
+    private static final String ACCEPT_ENCODING = "gzip, deflate";
+
+    // JSON object of {cid: {bid: eid}} with the newest event we already have for each buffer.
+    private static final String HEADER_RESUME = "X-Tapchat-Resume";
+
     public static interface Callback {
         void onBouncerConnect();
         void onBouncerDisconnect();
@@ -45,18 +69,27 @@ public class TapchatBouncerConnection implements WebSocketClient.Listener {
 
     @Inject Gson mGson;
 
+    private final boolean mDebug;
+
     private Callback mCallback;
     private WebSocketClient mClient;
 
-    public TapchatBouncerConnection(TapchatSession session, Callback callback) {
+    public TapchatBouncerConnection(TapchatSession session, Callback callback, Map<String, Map<String, Long>> lastEids) {
         TapchatApp.get().inject(this);
 
+        mDebug = TapchatApp.get().getPreferences().getBoolean(TapchatApp.PREF_DEBUG, false);
+
         mCallback = callback;
         try {
             URI uri = new URI("wss", null, session.getUri().getHost(), session.getUri().getPort(), null, null, null);
-            mClient = new WebSocketClient(uri, this, ImmutableList.of(
-                new BasicNameValuePair("Cookie", String.format("session=%s", session.getSessionId()))
+            List<BasicNameValuePair> headers = new ArrayList<>(ImmutableList.of(
+                new BasicNameValuePair("Cookie", String.format("session=%s", session.getSessionId())),
+                new BasicNameValuePair(HEADER_ACCEPT_ENCODING, ACCEPT_ENCODING)
             ));
+            if (lastEids != null && !lastEids.isEmpty()) {
+                headers.add(new BasicNameValuePair(HEADER_RESUME, mGson.toJson(lastEids)));
+            }
+            mClient = new WebSocketClient(uri, this, headers);
         } catch (URISyntaxException e) {
             throw new RuntimeException(e);
         }
@@ -82,10 +115,66 @@ public class TapchatBouncerConnection implements WebSocketClient.Listener {
         if (TextUtils.isEmpty(message)) {
             return;
         }
-        mCallback.onBouncerReceiveMessage(mGson.fromJson(message, Message.class));
+        if (mDebug) {
+            Log.d(TAG, "Got message: " + message);
+        }
+        receive(mGson, new StringReader(message), mCallback);
     }
 
-    @Override public void onMessage(byte[] data) {}
+    @Override public void onMessage(byte[] data) {
+        if (data == null || data.length == 0) {
+            return;
+        }
+        if (mDebug) {
+            Log.d(TAG, "Got binary message: " + data.length + " bytes");
+        }
+        receive(mGson, data, mCallback);
+    }
+
+    /**
+     * Passes each message in a binary frame to the callback, inflating it first if it's compressed.
+     */
+    static void receive(Gson gson, byte[] data, Callback callback) {
+        try {
+            receive(gson, new InputStreamReader(decode(data), Charsets.UTF_8), callback);
+        } catch (IOException ex) {
+            callback.onBouncerError(ex);
+        }
+    }
+
+    /**
+     * Passes each message to the callback, or the error if the frame can't be read. Gson reports broken JSON, and
+     * broken compressed data underneath it, with its own unchecked exceptions.
+     */
+    static void receive(Gson gson, Reader reader, Callback callback) {
+        JsonReader jsonReader = new JsonReader(reader);
+        try {
+            if (jsonReader.peek() == JsonToken.BEGIN_ARRAY) {
+                jsonReader.beginArray();
+                while (jsonReader.hasNext()) {
+                    callback.onBouncerReceiveMessage(gson.<Message>fromJson(jsonReader, Message.class));
+                }
+                jsonReader.endArray();
+            } else {
+                callback.onBouncerReceiveMessage(gson.<Message>fromJson(jsonReader, Message.class));
+            }
+        } catch (IOException ex) {
+            callback.onBouncerError(ex);
+        } catch (JsonParseException ex) {
+            callback.onBouncerError(ex);
+        }
+    }
+
+    private static InputStream decode(byte[] data) throws IOException {
+        InputStream in = new ByteArrayInputStream(data);
+        if (data.length >= 2 && (data[0] & 0xff) == 0x1f && (data[1] & 0xff) == 0x8b) {
+            return new GZIPInputStream(in);
+        }
+        if (data.length >= 2 && (data[0] & 0x0f) == 0x08 && (((data[0] & 0xff) << 8) | (data[1] & 0xff)) % 31 == 0) {
+            return new InflaterInputStream(in);
+        }
+        return in;
+    }
 
     @Override public void onDisconnect(int code, String reason) {
         mCallback.onBouncerDisconnect();
@@ -37,6 +37,7 @@ import com.tapchatapp.android.app.activity.MainActivity;
 import com.tapchatapp.android.app.activity.MemberListActivity;
 import com.tapchatapp.android.app.activity.NetworksActivity;
 import com.tapchatapp.android.app.activity.PreferencesActivity;
+import com.tapchatapp.android.app.activity.SearchActivity;
 import com.tapchatapp.android.app.activity.TapchatServiceFragmentActivity;
 import com.tapchatapp.android.app.activity.WelcomeActivity;
 import com.tapchatapp.android.app.fragment.BufferFragment;
@@ -49,7 +50,7 @@ import com.tapchatapp.android.app.fragment.QueryBufferFragment;
 import com.tapchatapp.android.app.ui.BuffersPagerAdapter;
 import com.tapchatapp.android.app.ui.ConnectionsPagerAdapter;
 import com.tapchatapp.android.app.ui.TapchatServiceStatusBar;
-import com.tapchatapp.android.client.message.Message;
+import com.tapchatapp.android.client.model.MemberList;
 import com.tapchatapp.android.network.PusherClient;
 import com.tapchatapp.android.network.ssl.MemorizingActivity;
 import com.tapchatapp.android.network.ssl.MemorizingHostnameVerifier;
@@ -98,6 +99,7 @@ import retrofit.converter.GsonConverter;
         PreferencesActivity.class,
         PusherClient.class,
         QueryBufferFragment.class,
+        SearchActivity.class,
         TapchatApp.class,
         TapchatBouncerConnection.class,
         TapchatService.class,
@@ -131,7 +133,8 @@ public class TapchatModule {
 
     @Provides @Singleton public Gson provideGson() {
         return new GsonBuilder()
-            .registerTypeAdapter(Message.class, new MessageDeserializer())
+            .registerTypeAdapterFactory(new MessageTypeAdapterFactory())
+            .registerTypeAdapter(MemberList.class, new MemberList.JsonAdapter())
             .create();
     }
 
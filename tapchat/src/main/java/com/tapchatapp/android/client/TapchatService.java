@@ -17,20 +17,27 @@
 package com.tapchatapp.android.client;
 
 import android.app.Service;
+import android.content.BroadcastReceiver;
+import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.PowerManager;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
+import android.support.v4.util.AtomicFile;
 import android.text.TextUtils;
 import android.util.Log;
 
-import com.google.common.base.Objects;
-import com.google.common.collect.ImmutableMap;
-import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableSortedMap;
 import com.google.gson.Gson;
 import com.google.gson.stream.JsonReader;
 import com.squareup.otto.Bus;
@@ -40,11 +47,13 @@ import com.tapchatapp.android.app.TapchatApp;
 import com.tapchatapp.android.app.event.BufferSelectedEvent;
 import com.tapchatapp.android.app.event.ConnectionAddedEvent;
 import com.tapchatapp.android.app.event.ConnectionRemovedEvent;
+import com.tapchatapp.android.app.event.LoadingProgressEvent;
 import com.tapchatapp.android.app.event.ServiceDestroyedEvent;
 import com.tapchatapp.android.app.event.ServiceErrorEvent;
 import com.tapchatapp.android.app.event.ServiceReadyEvent;
 import com.tapchatapp.android.app.event.ServiceStateChangedEvent;
 import com.tapchatapp.android.client.message.BacklogCompleteMessage;
+import com.tapchatapp.android.client.message.BufferEventMessage;
 import com.tapchatapp.android.client.message.ConnectionDeletedMessage;
 import com.tapchatapp.android.client.message.HeaderMessage;
 import com.tapchatapp.android.client.message.HeartbeatEchoMessage;
@@ -57,25 +66,46 @@ import com.tapchatapp.android.client.message.StatUserMessage;
 import com.tapchatapp.android.client.message.SysMsgsMessage;
 import com.tapchatapp.android.client.message.request.AddServerMessage;
 import com.tapchatapp.android.client.message.request.HeartbeatMessage;
+import com.tapchatapp.android.client.model.BacklogBudget;
 import com.tapchatapp.android.client.model.Buffer;
 import com.tapchatapp.android.client.model.Connection;
-import com.tapchatapp.android.client.model.HeartbeatState;
 
+import org.apache.http.client.HttpResponseException;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.inject.Inject;
 
 import retrofit.client.Response;
 
+/**
+ * Owns the model and the connection to the bouncer.
+ *
+ * The model is only ever changed on the model thread, which applies messages from the ingest queue and tasks posted
+ * with runOnModelThread(). Collections other threads can see are replaced with immutable copies when they change, and
+ * other fields are volatile, so the UI reads the model without locking or copying it.
+ */
 public class TapchatService extends Service implements TapchatBouncerConnection.Callback {
 
     private static final String TAG = "TapchatService";
@@ -88,22 +118,52 @@ public class TapchatService extends Service implements TapchatBouncerConnection.
 
     private static final int RECOMMENDED_SERVER_VERSION = 41;
 
+    private static final int INGEST_QUEUE_CAPACITY = 2000;
+
+    private static final int MAX_APPLY_THREADS = 4;
+
+    private static final String OUTBOUND_QUEUE_FILE = "outbound.json";
+    private static final String LIVE_CACHE_FILE     = "live-messages.json";
+    private static final String SNAPSHOT_FILE       = "model.snapshot";
+    private static final String EVENT_STORE_DIR     = "events";
+
+    private static final long SNAPSHOT_INTERVAL = TimeUnit.MINUTES.toMillis(5);
+    private static final long TRIM_SNAPSHOT_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+
     private final IBinder mBinder = new LocalBinder();
-    private final List<Message> mMessageCache = Lists.newArrayList();
-    private final Map<Integer, PostCallbackInfo> mResponseHandlers = Maps.newHashMap();
-    private final Map<Long, Connection> mConnections = Collections.synchronizedMap(new TreeMap<Long, Connection>());
+    private final IngestQueue mIngestQueue = new IngestQueue(INGEST_QUEUE_CAPACITY);
+    private final AtomicInteger mReqId = new AtomicInteger();
+    private final SeenEidTracker mSeenEidTracker = new SeenEidTracker(new SeenEidTracker.Listener() {
+        @Override public void onSeenEidsChanged() {
+            HeartbeatScheduler heartbeatScheduler = mHeartbeatScheduler;
+            if (heartbeatScheduler != null) {
+                heartbeatScheduler.onChanged();
+            }
+        }
+    });
+    private volatile ImmutableSortedMap<Long, Connection> mConnections = ImmutableSortedMap.of();
+    private final ThreadLocal<List<Object>> mDeferredEvents = new ThreadLocal<>();
+    private final ExecutorService mSnapshotExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override public Thread newThread(Runnable runnable) {
+            return new Thread(runnable, "TapchatSnapshot");
+        }
+    });
 
-    private final Map<String, MessageHandler> mMessageHandlers = ImmutableMap.<String, MessageHandler>builder()
-            .put(HeaderMessage.TYPE, new MessageHandler<HeaderMessage>() {
-                @Override public void handleMessage(HeaderMessage message) throws Exception {
+    private static final MessageHandlerTable<TapchatService> MESSAGE_HANDLERS = MessageHandlerTable.<TapchatService>builder()
+            .put(HeaderMessage.TYPE, new MessageHandlerTable.Handler<TapchatService, HeaderMessage>() {
+                @Override public void handleMessage(TapchatService service, HeaderMessage message) throws Exception {
                     // FIXME: mTimeOffset = new Date() - message.getLong("time");
                     // mMaxIdle = message.getLong("idle_interval");
-                    mLoadingOobBacklog = false;
-                    setConnectionState(STATE_LOADING);
+                    service.mLoadingOobBacklog = false;
+                    service.setConnectionState(STATE_LOADING);
+
+                    if (message.resumed) {
+                        Log.i(TAG, "Resuming session from last seen eids");
+                    }
 
                     if (!TextUtils.isEmpty(message.version_name) && message.version_code != null) {
-                        mServerVersionName = message.version_name;
-                        mServerVersionCode = message.version_code;
+                        service.mServerVersionName = message.version_name;
+                        service.mServerVersionCode = message.version_code;
                     }
 
                     TapchatApp app = TapchatApp.get();
@@ -114,90 +174,116 @@ public class TapchatService extends Service implements TapchatBouncerConnection.
                     }
                 }
             })
-            .put(StatUserMessage.TYPE, new MessageHandler<StatUserMessage>() {
-                @Override public void handleMessage(StatUserMessage message) throws Exception {
+            .put(StatUserMessage.TYPE, new MessageHandlerTable.Handler<TapchatService, StatUserMessage>() {
+                @Override public void handleMessage(TapchatService service, StatUserMessage message) throws Exception {
                     // FIXME: Store user info
-                    mActiveConnections = message.num_active_connections;
+                    service.mActiveConnections = message.num_active_connections;
                 }
             })
-            .put(OobIncludeMessage.TYPE, new MessageHandler<OobIncludeMessage>() {
-                @Override public void handleMessage(OobIncludeMessage message) throws Exception {
-
-                    oobInclude(message.url);
+            .put(OobIncludeMessage.TYPE, new MessageHandlerTable.Handler<TapchatService, OobIncludeMessage>() {
+                @Override public void handleMessage(TapchatService service, OobIncludeMessage message) throws Exception {
+                    service.mLoadingOobBacklog = true;
+                    SharedPreferences prefs = TapchatApp.get().getPreferences();
+                    service.mOobLoader.load(message.url, prefs.getLong(TapchatApp.PREF_SELECTED_BUFFER_CID, -1),
+                        prefs.getLong(TapchatApp.PREF_SELECTED_BUFFER_BID, -1));
                 }
             })
-            .put(BacklogCompleteMessage.TYPE, new MessageHandler<BacklogCompleteMessage>() {
-                @Override public void handleMessage(BacklogCompleteMessage message) throws Exception {
-                    for (Connection connection : mConnections.values()) {
+            .put(BacklogCompleteMessage.TYPE, new MessageHandlerTable.Handler<TapchatService, BacklogCompleteMessage>() {
+                @Override public void handleMessage(TapchatService service, BacklogCompleteMessage message) throws Exception {
+                    for (Connection connection : service.mConnections.values()) {
                         if (!connection.exists()) {
-                            removeConnection(connection);
+                            service.removeConnection(connection);
                         }
                     }
-                    setConnectionState(STATE_LOADED);
-                    startHeartbeat();
+                    service.setConnectionState(STATE_LOADED);
+                    service.mReconnectScheduler.onLoaded();
+                    service.startHeartbeat();
+
+                    service.saveSnapshot();
+                    service.mHandler.removeCallbacks(service.mSnapshotRunnable);
+                    service.mHandler.postDelayed(service.mSnapshotRunnable, SNAPSHOT_INTERVAL);
                 }
             })
-            .put(MakeServerMessage.TYPE, new MessageHandler<MakeServerMessage>() {
-                @Override public void handleMessage(MakeServerMessage message) throws Exception {
-                    Connection connection = mConnections.get(message.cid);
+            .put(MakeServerMessage.TYPE, new MessageHandlerTable.Handler<TapchatService, MakeServerMessage>() {
+                @Override public void handleMessage(TapchatService service, MakeServerMessage message) throws Exception {
+                    Connection connection = service.mConnections.get(message.cid);
                     if (connection != null) {
                         Log.i("Connection", "Re-using connection!");
                         connection.reload(message);
                     } else {
-                        connection = new Connection(TapchatService.this, message);
-                        mConnections.put(connection.getId(), connection);
-                        mBus.post(new ConnectionAddedEvent(connection));
+                        connection = new Connection(service, message);
+                        service.mConnections = ImmutableSortedMap.<Long, Connection>naturalOrder()
+                            .putAll(service.mConnections)
+                            .put(connection.getId(), connection)
+                            .build();
+                        service.mBus.post(new ConnectionAddedEvent(connection));
                     }
                 }
             })
-            .put(ConnectionDeletedMessage.TYPE, new MessageHandler<ConnectionDeletedMessage>() {
-                @Override public void handleMessage(ConnectionDeletedMessage message) throws Exception {
-                    Connection connection = mConnections.get(message.cid);
-                    removeConnection(connection);
+            .put(ConnectionDeletedMessage.TYPE, new MessageHandlerTable.Handler<TapchatService, ConnectionDeletedMessage>() {
+                @Override public void handleMessage(TapchatService service, ConnectionDeletedMessage message) throws Exception {
+                    Connection connection = service.mConnections.get(message.cid);
+                    service.removeConnection(connection);
                 }
             })
-            .put(HeartbeatEchoMessage.TYPE, new MessageHandler<HeartbeatEchoMessage>() {
-                @Override public void handleMessage(HeartbeatEchoMessage message) throws Exception {
+            .put(HeartbeatEchoMessage.TYPE, new MessageHandlerTable.Handler<TapchatService, HeartbeatEchoMessage>() {
+                @Override public void handleMessage(TapchatService service, HeartbeatEchoMessage message) throws Exception {
                     Map<String, Map<String, Long>> seenEids = message.seenEids;
                     for (String cid : seenEids.keySet()) {
-                        Connection connection = mConnections.get(Long.valueOf(cid));
+                        Connection connection = service.mConnections.get(Long.valueOf(cid));
                         if (connection != null) {
                             Map<String, Long> buffers = seenEids.get(cid);
                             for (String bid : buffers.keySet()) {
                                 Buffer buffer = connection.getBuffer(Long.valueOf(bid));
                                 if (buffer != null) {
-                                    buffer.markRead(buffers.get(bid));
+                                    long eid = buffers.get(bid);
+                                    service.mSeenEidTracker.acknowledge(connection.getId(), buffer.getId(), eid);
+                                    buffer.markRead(eid);
                                 }
                             }
                         }
                     }
                 }
             })
-            .put(IdleMessage.TYPE, new MessageHandler<IdleMessage>() {
-                @Override public void handleMessage(IdleMessage message) throws Exception {
+            .put(IdleMessage.TYPE, new MessageHandlerTable.Handler<TapchatService, IdleMessage>() {
+                @Override public void handleMessage(TapchatService service, IdleMessage message) throws Exception {
                     // Ignore, mLastMessageAt will still be updated above.
                 }
             })
-            .put(SysMsgsMessage.TYPE, new MessageHandler<SysMsgsMessage>() {
-                @Override public void handleMessage(SysMsgsMessage message) throws Exception {
+            .put(SysMsgsMessage.TYPE, new MessageHandlerTable.Handler<TapchatService, SysMsgsMessage>() {
+                @Override public void handleMessage(TapchatService service, SysMsgsMessage message) throws Exception {
                     // FIXME
                     // {"bid":-1,"eid":-1,"type":"sys_msgs","time":1332374270,"highlight":false,"hardzombie":1332021930}
                 }
             })
             .build();
 
-    private int mReqId = 0;
-    private int mConnectionState;
+    private volatile int mConnectionState;
     private int mActiveConnections;
     private boolean mLoadingOobBacklog;
     private int mServerVersionCode = -1;
-    private Buffer mSelectedBuffer;
+    private volatile Buffer mSelectedBuffer;
     private Date mLastMessageAt;
     private Handler mHandler;
-    private HeartbeatState mState;
+    private IngestThread mIngestThread;
+    private ReconnectScheduler mReconnectScheduler;
+    private RequestTracker mRequestTracker;
+    private HandlerThread mOutboundThread;
+    private OobLoader mOobLoader;
+    private ExecutorService mApplyExecutor;
+    private LiveMessageCache mLiveMessageCache;
+    private EventStore mEventStore;
+    private SearchIndex mSearchIndex;
+    private BacklogBudget mBacklogBudget;
+    private OutboundQueue mOutboundQueue;
+    private int mNetworkType = -1;
     private String mServerVersionName;
-    private TapchatBouncerConnection mBouncerConnection;
-    private Timer mHeartbeatTimer;
+    private volatile TapchatBouncerConnection mBouncerConnection;
+    private volatile HeartbeatScheduler mHeartbeatScheduler;
+    private long mHeartbeatSelectedBuffer;
+    private AtomicFile mSnapshotFile;
+    private volatile boolean mSnapshotRestored;
+    private volatile long mLastSnapshotAt;
 
     @Inject Bus mBus;
     @Inject Gson mGson;
@@ -223,9 +309,10 @@ public class TapchatService extends Service implements TapchatBouncerConnection.
             return;
 
         setConnectionState(STATE_CONNECTING);
+        mReconnectScheduler.cancel();
 
         if (mBouncerConnection == null) {
-            mBouncerConnection = new TapchatBouncerConnection(mSession, this);
+            mBouncerConnection = new TapchatBouncerConnection(mSession, this, getLastEids());
         }
 
         mBouncerConnection.start();
@@ -236,11 +323,17 @@ public class TapchatService extends Service implements TapchatBouncerConnection.
             return;
 
         setConnectionState(STATE_DISCONNECTED);
-        mConnections.clear();
-        if (mHeartbeatTimer != null) {
-            mHeartbeatTimer.cancel();
-            mHeartbeatTimer = null;
-        }
+        mIngestQueue.clear();
+        mOobLoader.cancel();
+        // Tasks are taken before messages, so this runs before anything from the next session.
+        runOnModelThread(new Runnable() {
+            @Override public void run() {
+                mLoadingOobBacklog = false;
+                mLiveMessageCache.clear();
+            }
+        });
+        mRequestTracker.failAll(RequestTracker.ERROR_DISCONNECTED);
+        mHeartbeatScheduler.stop();
         if (mBouncerConnection != null) {
             mBouncerConnection.stop();
             mBouncerConnection = null;
@@ -267,67 +360,184 @@ public class TapchatService extends Service implements TapchatBouncerConnection.
         return mConnectionState;
     }
 
+    /**
+     * Whether there is a model to show, either fully loaded from the bouncer or restored from the last snapshot.
+     */
+    public boolean isModelAvailable() {
+        return mConnectionState == STATE_LOADED || mSnapshotRestored;
+    }
+
     private void setConnectionState(int state) {
         mConnectionState = state;
+        mOutboundQueue.setConnected(state == STATE_LOADED);
 
         if (state == TapchatService.STATE_DISCONNECTED) {
-            synchronized (mConnections) {
-                for (Connection connection : mConnections.values()) {
-                    connection.serviceDisconnected();
+            runOnModelThread(new Runnable() {
+                @Override public void run() {
+                    for (Connection connection : mConnections.values()) {
+                        connection.serviceDisconnected();
+                    }
                 }
-            }
+            });
         }
 
         mBus.post(new ServiceStateChangedEvent(this));
     }
 
     public List<Connection> getConnections() {
-        return new ArrayList<>(mConnections.values());
+        return mConnections.values().asList();
     }
 
     public int getNextReqId() {
-        return ++mReqId;
+        return mReqId.incrementAndGet();
     }
 
     public Buffer getSelectedBuffer() {
         return mSelectedBuffer;
     }
 
+    public IngestQueue getIngestQueue() {
+        return mIngestQueue;
+    }
+
+    /**
+     * Runs the task on the model thread, after any other task already posted. Anything that changes the model from
+     * outside a message handler has to go through here.
+     */
+    public void runOnModelThread(Runnable task) {
+        mIngestQueue.putTask(task);
+    }
+
+    /**
+     * Runs the task on the main thread, where request callbacks are delivered.
+     */
+    public void runOnMainThread(Runnable task) {
+        mHandler.post(task);
+    }
+
+    private <T> T runOnModelThreadAndWait(Callable<T> callable) throws Exception {
+        FutureTask<T> task = new FutureTask<>(callable);
+        runOnModelThread(task);
+        try {
+            return task.get();
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            throw (cause instanceof Exception) ? (Exception) cause : ex;
+        }
+    }
+
     public boolean isServerOutdated() {
         return mServerVersionCode != -1 && mServerVersionCode < RECOMMENDED_SERVER_VERSION;
     }
 
     public void logout() {
+        mReconnectScheduler.reset();
+        mOutboundQueue.clear();
         disconnect();
+        runOnModelThread(new Runnable() {
+            @Override public void run() {
+                mConnections = ImmutableSortedMap.of();
+            }
+        });
+        mSeenEidTracker.clear();
+        mSnapshotRestored = false;
+        deleteSnapshot();
+        mEventStore.clear();
+        mSearchIndex.clear();
         TapchatApp.get().setLoggedOut();
     }
 
     public void post(Message message, PostCallback callback) {
-        message.session = mSession.getSessionId();
-        message._reqid = getNextReqId();
+        mOutboundQueue.post(message, callback);
+    }
 
-        mResponseHandlers.put(message._reqid, new PostCallbackInfo(message, callback));
+    public OutboundQueue getOutboundQueue() {
+        return mOutboundQueue;
+    }
 
-        if (mBouncerConnection == null) {
-            throw new IllegalStateException("No connection");
+    public RequestTracker getRequestTracker() {
+        return mRequestTracker;
+    }
+
+    public SeenEidTracker getSeenEidTracker() {
+        return mSeenEidTracker;
+    }
+
+    public EventStore getEventStore() {
+        return mEventStore;
+    }
+
+    public SearchIndex getSearchIndex() {
+        return mSearchIndex;
+    }
+
+    /**
+     * Only use this on the model thread.
+     */
+    public BacklogBudget getBacklogBudget() {
+        return mBacklogBudget;
+    }
+
+    /**
+     * Asks the bouncer for events older than beforeEid and keeps them in the event store. Blocks, so don't call it on
+     * the main thread.
+     */
+    public List<BufferEventMessage> fetchHistory(long cid, long bid, long beforeEid, int count) throws Exception {
+        List<BufferEventMessage> messages = new ArrayList<>();
+
+        Response response = mAPI.backlog(cid, bid, beforeEid, count);
+        JsonReader reader = new JsonReader(new InputStreamReader(response.getBody().in(), Charsets.UTF_8));
+        try {
+            reader.beginArray();
+            while (reader.hasNext()) {
+                Message message = mGson.fromJson(reader, Message.class);
+                if (message instanceof BufferEventMessage && message.bid != null && message.bid == bid) {
+                    message.is_backlog = true;
+                    messages.add((BufferEventMessage) message);
+                }
+            }
+            reader.endArray();
+        } finally {
+            reader.close();
         }
 
-        mBouncerConnection.send(message);
+        Collections.sort(messages, new Comparator<Message>() {
+            @Override public int compare(Message lhs, Message rhs) {
+                return Long.valueOf(lhs.eid).compareTo(rhs.eid);
+            }
+        });
+        mEventStore.prepend(cid, bid, messages);
+        for (BufferEventMessage message : messages) {
+            mSearchIndex.add(cid, bid, message);
+        }
+        return messages;
     }
 
+    /**
+     * Posts the event, or holds it back until the backlog partition being applied on this thread is done.
+     */
     public void postToBus(Object event) {
-        mBus.post(event);
+        List<Object> deferredEvents = mDeferredEvents.get();
+        if (deferredEvents != null) {
+            deferredEvents.add(event);
+        } else {
+            mBus.post(event);
+        }
     }
 
     public void updateLoadingProgress() {
         int numFinished = 0;
-        synchronized (mConnections) {
-            for (Connection conn : mConnections.values()) {
-                if (!conn.isBacklog())
-                    numFinished++;
-            }
+        ImmutableSortedMap<Long, Connection> connections = mConnections;
+        for (Connection conn : connections.values()) {
+            if (!conn.isBacklog())
+                numFinished++;
         }
-        // numFinished mActiveConnections
+        int numConnections = Math.max(mActiveConnections, connections.size());
+        postToBus(new LoadingProgressEvent(this, numFinished, numConnections));
+    }
+
+    public ReconnectScheduler getReconnectScheduler() {
+        return mReconnectScheduler;
     }
 
     @Override public void onBouncerConnect() {
@@ -335,7 +545,16 @@ public class TapchatService extends Service implements TapchatBouncerConnection.
     }
 
     @Override public void onBouncerReceiveMessage(Message message) {
-        processMessage(message, false);
+        mHeartbeatScheduler.onNetworkActivity();
+        try {
+            if (isIngestBarrier(message)) {
+                mIngestQueue.putBarrier(message);
+            } else {
+                mIngestQueue.put(message, getIngestPriority(message));
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     @Override public void onBouncerError(Exception ex) {
@@ -343,10 +562,14 @@ public class TapchatService extends Service implements TapchatBouncerConnection.
     }
 
     @Override public void onBouncerDisconnect() {
+        // disconnect() changes the state before stopping the socket, so anything else means we lost the bouncer.
+        boolean unexpected = (mConnectionState != STATE_DISCONNECTED);
+
         setConnectionState(STATE_DISCONNECTED);
-        if (mHeartbeatTimer != null) {
-            mHeartbeatTimer.cancel();
-            mHeartbeatTimer = null;
+        mHeartbeatScheduler.stop();
+
+        if (unexpected) {
+            mReconnectScheduler.schedule();
         }
     }
 
@@ -356,6 +579,69 @@ public class TapchatService extends Service implements TapchatBouncerConnection.
 
         mHandler = new Handler();
 
+        mIngestThread = new IngestThread();
+        mIngestThread.start();
+
+        mRequestTracker = new RequestTracker(mHandler);
+
+        mLiveMessageCache = new LiveMessageCache(mGson, new File(getCacheDir(), LIVE_CACHE_FILE));
+        mEventStore = new EventStore(mGson, new File(getFilesDir(), EVENT_STORE_DIR));
+        mSearchIndex = new SearchIndex(this);
+        mBacklogBudget = new BacklogBudget(this);
+        int applyThreads = Math.max(1, Math.min(MAX_APPLY_THREADS, Runtime.getRuntime().availableProcessors()));
+        mApplyExecutor = Executors.newFixedThreadPool(applyThreads, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, "TapchatApply-" + mCount.incrementAndGet());
+            }
+        });
+        mOobLoader = new OobLoader(mAPI, mGson, new OobLoader.Callback() {
+            @Override public void onBacklogMessages(List<List<Message>> partitions) throws Exception {
+                handleBacklogMessages(partitions);
+            }
+
+            @Override public void onBacklogComplete() throws Exception {
+                handleBacklogComplete();
+            }
+
+            @Override public void onBacklogError(Exception ex) {
+                handleError(ex);
+            }
+        });
+
+        mOutboundThread = new HandlerThread("TapchatOutbound");
+        mOutboundThread.start();
+        mOutboundQueue = new OutboundQueue(mGson, new AtomicFile(new File(getFilesDir(), OUTBOUND_QUEUE_FILE)),
+            mOutboundThread.getLooper(), new OutboundQueue.Sender() {
+                @Override public boolean send(Message message, PostCallback callback) {
+                    return sendNow(message, callback);
+                }
+            });
+        mOutboundQueue.restore();
+
+        mHeartbeatScheduler = new HeartbeatScheduler(mOutboundThread.getLooper(), new HeartbeatScheduler.Callback() {
+            @Override public void onHeartbeat() {
+                sendHeartbeat();
+            }
+        });
+        PowerManager powerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
+        mHeartbeatScheduler.setScreenOn(powerManager.isScreenOn());
+        IntentFilter screenFilter = new IntentFilter(Intent.ACTION_SCREEN_ON);
+        screenFilter.addAction(Intent.ACTION_SCREEN_OFF);
+        registerReceiver(mScreenReceiver, screenFilter);
+
+        mReconnectScheduler = new ReconnectScheduler(mHandler, new ReconnectScheduler.Callback() {
+            @Override public void onReconnect() {
+                connect();
+            }
+        });
+
+        NetworkInfo networkInfo = getActiveNetworkInfo();
+        mNetworkType = (networkInfo != null) ? networkInfo.getType() : -1;
+        mReconnectScheduler.setNetworkAvailable(networkInfo != null);
+        registerReceiver(mConnectivityReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+
         if (!TapchatApp.get().isConfigured()) {
             throw new RuntimeException("Server was started before being configured!");
         }
@@ -374,7 +660,21 @@ public class TapchatService extends Service implements TapchatBouncerConnection.
         mSession.setSessionId(sessionId);
         mSession.setUri(builder.build());
 
-        connect();
+        mSnapshotFile = new AtomicFile(new File(getFilesDir(), SNAPSHOT_FILE));
+        runOnModelThread(new Runnable() {
+            @Override public void run() {
+                restoreSnapshot();
+                // Only connects once the restored buffers are there, so the bouncer is told which eids we have, and
+                // not at all if the service was destroyed in the meantime.
+                runOnMainThread(new Runnable() {
+                    @Override public void run() {
+                        if (mIngestThread != null) {
+                            connect();
+                        }
+                    }
+                });
+            }
+        });
 
         mBus.post(new ServiceReadyEvent(this));
     }
@@ -386,8 +686,43 @@ public class TapchatService extends Service implements TapchatBouncerConnection.
     @Override public void onDestroy() {
         super.onDestroy();
 
+        unregisterReceiver(mConnectivityReceiver);
+        unregisterReceiver(mScreenReceiver);
+        mReconnectScheduler.reset();
+        mHandler.removeCallbacks(mSnapshotRunnable);
+
+        // Takes the connections before disconnect() drops them. The snapshot thread isn't a daemon, so the process
+        // stays around until it has written the file.
+        saveSnapshot();
+        mSnapshotExecutor.shutdown();
+
         disconnect();
 
+        // Stops the model thread once it gets to this, after anything that was posted before.
+        runOnModelThread(new Runnable() {
+            @Override public void run() {
+                mConnections = ImmutableSortedMap.of();
+                Thread.currentThread().interrupt();
+            }
+        });
+        mIngestThread = null;
+
+        mOobLoader.shutdown();
+        mApplyExecutor.shutdown();
+        mLiveMessageCache.clear();
+        mEventStore.shutdown();
+        mSearchIndex.shutdown();
+
+        // Quits once the outbound queue has been written out.
+        mOutboundQueue.flush();
+        final HandlerThread outboundThread = mOutboundThread;
+        new Handler(outboundThread.getLooper()).post(new Runnable() {
+            @Override public void run() {
+                outboundThread.quit();
+            }
+        });
+        mOutboundThread = null;
+
         mBus.post(new ServiceDestroyedEvent(this));
         mBus.unregister(this);
     }
@@ -408,36 +743,103 @@ public class TapchatService extends Service implements TapchatBouncerConnection.
         return new ServiceReadyEvent(this);
     }
 
+    @Override public void onTrimMemory(final int level) {
+        super.onTrimMemory(level);
+        runOnModelThread(new Runnable() {
+            @Override public void run() {
+                mBacklogBudget.onTrimMemory(level);
+            }
+        });
+        // The system can send these every few seconds while it's short on memory, and the file barely changes.
+        if (level >= TRIM_MEMORY_UI_HIDDEN
+                && SystemClock.elapsedRealtime() - mLastSnapshotAt >= TRIM_SNAPSHOT_INTERVAL) {
+            saveSnapshot();
+        }
+    }
+
     @Produce public ServiceStateChangedEvent produceServiceStateChangedEvent() {
-        if (mConnectionState != STATE_DISCONNECTED) {
+        if (mConnectionState != STATE_DISCONNECTED || isModelAvailable()) {
             return new ServiceStateChangedEvent(this);
         }
         return null;
     }
 
     @Subscribe public void onBufferSelected(BufferSelectedEvent event) {
-        Buffer buffer = getBuffer(event.getConnectionId(), event.getBufferId());
+        final Buffer buffer = getBuffer(event.getConnectionId(), event.getBufferId());
         if (buffer == null) {
             mSelectedBuffer = null;
-            return;
-        }
-        if (event.isSelected()) {
+        } else if (event.isSelected()) {
             mSelectedBuffer = buffer;
-            mSelectedBuffer.markAllRead();
+            runOnModelThread(new Runnable() {
+                @Override public void run() {
+                    buffer.markAllRead();
+                    mBacklogBudget.onBufferSelected(buffer);
+                    buffer.restoreEvents();
+                }
+            });
+
+            SharedPreferences.Editor editor = TapchatApp.get().getPreferences().edit();
+            editor.putLong(TapchatApp.PREF_SELECTED_BUFFER_CID, event.getConnectionId());
+            editor.putLong(TapchatApp.PREF_SELECTED_BUFFER_BID, event.getBufferId());
+            editor.apply();
         } else {
             if (mSelectedBuffer == buffer) {
                 mSelectedBuffer = null;
             }
         }
+        mHeartbeatScheduler.setActive(mSelectedBuffer != null);
+        mHeartbeatScheduler.onChanged();
+    }
+
+    private boolean sendNow(Message message, PostCallback callback) {
+        TapchatBouncerConnection bouncerConnection = mBouncerConnection;
+        if (bouncerConnection == null) {
+            return false;
+        }
+
+        if (!(message instanceof HeartbeatMessage)) {
+            // The radio is about to wake up anyway.
+            mHeartbeatScheduler.flush();
+        }
+
+        message.session = mSession.getSessionId();
+        message._reqid = getNextReqId();
+
+        mRequestTracker.add(message, callback);
+
+        bouncerConnection.send(message);
+        return true;
+    }
+
+    /**
+     * Responses and anything for a whole connection or the session may depend on every message before them, so they
+     * can't be moved ahead of buffer messages that arrived first.
+     */
+    private static boolean isIngestBarrier(Message message) {
+        return message._reqid != null || message.cid == null || message.bid == null;
     }
 
-    private synchronized void processMessage(Message message, boolean oob) {
+    private int getIngestPriority(Message message) {
+        Buffer selectedBuffer = mSelectedBuffer;
+        if (selectedBuffer != null && selectedBuffer.getId() == message.bid
+                && selectedBuffer.getConnection().getId() == message.cid) {
+            return IngestQueue.PRIORITY_HIGH;
+        }
+
+        Buffer buffer = getBuffer(message.cid, message.bid);
+        if (buffer != null && buffer.isArchived()) {
+            return IngestQueue.PRIORITY_LOW;
+        }
+        return IngestQueue.PRIORITY_NORMAL;
+    }
+
+    private void processMessage(Message message) {
         try {
             if (message.error != null && message.error.equals("temp_unavailable")) {
                 throw new Exception("temporarily unavailable");
             }
 
-            if ((!mLoadingOobBacklog) || oob) {
+            if (!mLoadingOobBacklog) {
                 handleMessage(message);
             } else {
                 cacheMessage(message);
@@ -447,7 +849,7 @@ public class TapchatService extends Service implements TapchatBouncerConnection.
         }
     }
 
-    private synchronized void handleMessage(Message message) throws Exception {
+    private void handleMessage(Message message) throws Exception {
         mLastMessageAt = new Date();
 
         if (message._reqid != null) {
@@ -458,8 +860,8 @@ public class TapchatService extends Service implements TapchatBouncerConnection.
                 message = responseMessage.msg;
             }
 
-            if (mResponseHandlers.containsKey(reqid)) {
-                final PostCallbackInfo info = mResponseHandlers.remove(reqid);
+            final RequestTracker.PendingRequest info = mRequestTracker.complete(reqid);
+            if (info != null) {
 
                 if (message.cid != null) {
                     Connection connection = getConnection(message.cid);
@@ -481,16 +883,12 @@ public class TapchatService extends Service implements TapchatBouncerConnection.
             return;
         }
 
-        String type = message.type;
-
         if (message.type == null) {
             Log.w(TAG, "Message has no type: " + message);
             return;
         }
 
-        if (mMessageHandlers.containsKey(type)) {
-            mMessageHandlers.get(type).handleMessage(message);
-        }
+        MESSAGE_HANDLERS.handle(this, message);
 
         if (message.cid != null) {
             Connection connection = mConnections.get(message.cid);
@@ -500,155 +898,370 @@ public class TapchatService extends Service implements TapchatBouncerConnection.
         }
     }
 
-    private void oobInclude(String path) throws Exception {
-        mLoadingOobBacklog = true;
+    /**
+     * Backlog is parsed on the loader's threads but applied on the model thread. Waiting for each round to be applied
+     * keeps the loader from getting too far ahead.
+     */
+    private void handleBacklogMessages(final List<List<Message>> partitions) throws Exception {
+        runOnModelThreadAndWait(new Callable<Void>() {
+            @Override public Void call() throws Exception {
+                if (partitions.size() == 1) {
+                    for (Message message : partitions.get(0)) {
+                        handleMessage(message);
+                    }
+                } else {
+                    applyPartitions(partitions);
+                }
+                return null;
+            }
+        });
+    }
 
-        Response response = mAPI.oobInclude(path.substring(1));
+    /**
+     * Applies the backlog for several connections at once, one partition per connection on the apply threads. Only
+     * call this on the model thread; it waits for all of them, so the model still has one owner at a time.
+     *
+     * Connections don't share any state, but the service does. The partitions never contain messages the service
+     * handles itself, the budget for events in memory is only enforced once they are all done, and whatever they post
+     * to the bus is published then too, one partition after the other.
+     */
+    private void applyPartitions(List<List<Message>> partitions) throws Exception {
+        List<Callable<List<Object>>> tasks = new ArrayList<>(partitions.size());
+        for (final List<Message> messages : partitions) {
+            tasks.add(new Callable<List<Object>>() {
+                @Override public List<Object> call() throws Exception {
+                    List<Object> events = new ArrayList<>();
+                    mDeferredEvents.set(events);
+                    try {
+                        for (Message message : messages) {
+                            Connection connection = mConnections.get(message.cid);
+                            if (connection != null) {
+                                connection.processMessage(message);
+                            }
+                        }
+                    } finally {
+                        mDeferredEvents.remove();
+                    }
+                    return events;
+                }
+            });
+        }
 
-        JsonReader reader = new JsonReader(new InputStreamReader(response.getBody().in()));
-        reader.beginArray();
-        while (reader.hasNext()) {
-            Message message = mGson.fromJson(reader, Message.class);
-            handleMessage(message);
+        List<Future<List<Object>>> results;
+        mBacklogBudget.setDeferred(true);
+        try {
+            results = mApplyExecutor.invokeAll(tasks);
+        } finally {
+            mBacklogBudget.setDeferred(false);
         }
-        reader.endArray();
-        reader.close();
 
-        mLoadingOobBacklog = false;
-        handleMessageCache();
+        mLastMessageAt = new Date();
+        Exception error = null;
+        for (Future<List<Object>> result : results) {
+            try {
+                for (Object event : result.get()) {
+                    mBus.post(event);
+                }
+            } catch (ExecutionException ex) {
+                if (error == null) {
+                    Throwable cause = ex.getCause();
+                    error = (cause instanceof Exception) ? (Exception) cause : ex;
+                }
+            }
+        }
+        updateLoadingProgress();
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    private void handleBacklogComplete() throws Exception {
+        runOnModelThreadAndWait(new Callable<Void>() {
+            @Override public Void call() throws Exception {
+                mLoadingOobBacklog = false;
+                mLiveMessageCache.replay(new MessageHandler<Message>() {
+                    @Override public void handleMessage(Message message) throws Exception {
+                        TapchatService.this.handleMessage(message);
+                    }
+                });
+                return null;
+            }
+        });
     }
 
-    private void cacheMessage(Message message) {
-        mMessageCache.add(message);
+    private void cacheMessage(Message message) throws Exception {
+        mLiveMessageCache.add(message);
     }
 
-    private void handleMessageCache() throws Exception {
-        for (Message message : mMessageCache) {
-            handleMessage(message);
+    private void restoreSnapshot() {
+        FileInputStream in = null;
+        try {
+            long start = SystemClock.elapsedRealtime();
+            in = mSnapshotFile.openRead();
+            ModelSnapshot snapshot = ModelSnapshot.read(mGson, in);
+
+            for (Message message : snapshot.getMessages()) {
+                handleMessage(message);
+            }
+            for (ModelSnapshot.BufferState state : snapshot.getBufferStates()) {
+                Buffer buffer = getBuffer(state.cid, state.bid);
+                if (buffer != null) {
+                    buffer.restoreReadState(state.unread, state.highlightCount);
+                }
+            }
+            // Same as after losing the bouncer, anything it doesn't send again gets removed once loaded.
+            for (Connection connection : getConnections()) {
+                connection.serviceDisconnected();
+            }
+
+            mSnapshotRestored = true;
+            mBus.post(new ServiceStateChangedEvent(this));
+            Log.i(TAG, String.format("Restored %s connections from snapshot in %sms", mConnections.size(),
+                SystemClock.elapsedRealtime() - start));
+        } catch (FileNotFoundException ex) {
+            // Nothing saved yet.
+        } catch (Exception ex) {
+            Log.e(TAG, "Failed to restore snapshot", ex);
+            mConnections = ImmutableSortedMap.of();
+            mSnapshotFile.delete();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ex) {
+                    // Ignore
+                }
+            }
         }
-        mMessageCache.clear();
     }
 
-    private void handleError(final Exception ex) {
-        Log.e("TapchatService", "ERROR!!!", ex);
-        disconnect();
-        mBus.post(new ServiceErrorEvent(ex));
+    private void saveSnapshot() {
+        if (mConnectionState != STATE_LOADED) {
+            return;
+        }
+        final List<Connection> connections = getConnections();
+        mLastSnapshotAt = SystemClock.elapsedRealtime();
+        mSnapshotExecutor.execute(new Runnable() {
+            @Override public void run() {
+                byte[] snapshot = buildSnapshot(connections);
+                if (snapshot != null) {
+                    writeSnapshot(snapshot);
+                }
+            }
+        });
     }
 
-    private void startHeartbeat() {
-        mState = getHeartbeatState();
-        if (mHeartbeatTimer != null) {
-            mHeartbeatTimer.cancel();
-        }
-        mHeartbeatTimer = new Timer();
-        mHeartbeatTimer.scheduleAtFixedRate(new TimerTask() {
-            @Override
-            public void run() {
-                sendHeartbeat();
+    private void deleteSnapshot() {
+        mSnapshotExecutor.execute(new Runnable() {
+            @Override public void run() {
+                mSnapshotFile.delete();
             }
-        }, 0, 2000);
+        });
     }
 
-    private void sendHeartbeat() {
-        HeartbeatState newState = getHeartbeatState();
-        Map stateDiff = diffHeartbeatState(mState, newState);
-        mState = newState;
-        if (!stateDiff.isEmpty()) {
-            HeartbeatMessage message = new HeartbeatMessage();
-
-            Map<String, Map<String, Long>> seenEids = (Map<String, Map<String, Long>>) stateDiff.get("seenEids");
-            if (seenEids != null) {
-                message.seenEids = seenEids;
-            } else {
-                // IRCCloud wants this
-                message.seenEids = new HashMap<>();
+    /**
+     * Only reads what the model publishes, so it doesn't have to run on the model thread.
+     */
+    private byte[] buildSnapshot(List<Connection> connections) {
+        try {
+            return ModelSnapshot.write(mGson, connections);
+        } catch (IOException ex) {
+            Log.e(TAG, "Failed to build snapshot", ex);
+            return null;
+        }
+    }
+
+    private void writeSnapshot(byte[] data) {
+        FileOutputStream out = null;
+        try {
+            out = mSnapshotFile.startWrite();
+            out.write(data);
+            mSnapshotFile.finishWrite(out);
+        } catch (IOException ex) {
+            Log.e(TAG, "Failed to write snapshot", ex);
+            if (out != null) {
+                mSnapshotFile.failWrite(out);
             }
+        }
+    }
 
-            if (mSelectedBuffer != null) {
-                message.selectedBuffer = mSelectedBuffer.getId();
+    private final Runnable mSnapshotRunnable = new Runnable() {
+        @Override public void run() {
+            if (mConnectionState == STATE_LOADED) {
+                saveSnapshot();
+                mHandler.postDelayed(this, SNAPSHOT_INTERVAL);
             }
+        }
+    };
 
-            if (mBouncerConnection == null) {
-                // Race condition with the timer.
-                return;
+    /**
+     * Errors come from the socket, model and loader threads, but disconnect() and connect() only run on the main
+     * thread. Nothing is done if the service was destroyed in the meantime.
+     */
+    private void handleError(final Exception ex) {
+        Log.e("TapchatService", "ERROR!!!", ex);
+        runOnMainThread(new Runnable() {
+            @Override public void run() {
+                if (mIngestThread == null) {
+                    return;
+                }
+                disconnect();
+
+                if (ex instanceof HttpResponseException && ((HttpResponseException) ex).getStatusCode() == 403) {
+                    mBus.post(new ServiceErrorEvent(ex));
+                } else {
+                    mReconnectScheduler.schedule();
+                }
             }
+        });
+    }
 
-            post(message, null);
-        }
+    private NetworkInfo getActiveNetworkInfo() {
+        ConnectivityManager cm = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo networkInfo = cm.getActiveNetworkInfo();
+        return (networkInfo != null && networkInfo.isConnected()) ? networkInfo : null;
     }
 
-    private HeartbeatState getHeartbeatState() {
-        HeartbeatState state = new HeartbeatState();
+    private final BroadcastReceiver mConnectivityReceiver = new BroadcastReceiver() {
+        @Override public void onReceive(Context context, Intent intent) {
+            NetworkInfo networkInfo = getActiveNetworkInfo();
+            if (networkInfo == null) {
+                mReconnectScheduler.setNetworkAvailable(false);
+                return;
+            }
 
-        synchronized (mConnections) {
-            for (Connection connection : mConnections.values()) {
-                Map<String, Long> connObj = new HashMap<>();
-                for (Buffer buffer : connection.getBuffers()) {
-                    connObj.put(String.valueOf(buffer.getId()), buffer.getLastSeenEid());
-                }
-                state.seenEids.put(String.valueOf(connection.getId()), connObj);
+            boolean networkChanged = (networkInfo.getType() != mNetworkType);
+            mNetworkType = networkInfo.getType();
+
+            if (networkChanged && mConnectionState != STATE_DISCONNECTED) {
+                // The socket is still bound to the old network and would take a long time to time out.
+                Log.i(TAG, "Network changed, reconnecting");
+                disconnect();
+                mReconnectScheduler.retryNow();
             }
+            mReconnectScheduler.setNetworkAvailable(true);
         }
-        if (mSelectedBuffer != null) {
-            state.selectedBuffer = mSelectedBuffer.getId();
+    };
+
+    private final BroadcastReceiver mScreenReceiver = new BroadcastReceiver() {
+        @Override public void onReceive(Context context, Intent intent) {
+            mHeartbeatScheduler.setScreenOn(Intent.ACTION_SCREEN_ON.equals(intent.getAction()));
+        }
+    };
+
+    private void startHeartbeat() {
+        // The backlog just told us what the bouncer has seen. Marks it never acknowledged are sent again.
+        mSeenEidTracker.reset();
+        Buffer selectedBuffer = mSelectedBuffer;
+        mHeartbeatSelectedBuffer = (selectedBuffer != null) ? selectedBuffer.getId() : 0;
+        mHeartbeatScheduler.start();
+        if (mSeenEidTracker.hasChanges()) {
+            mHeartbeatScheduler.onChanged();
         }
-        return state;
     }
 
-    // FIXME: ughhhh
-    private Map diffHeartbeatState(HeartbeatState oldState, HeartbeatState newState) {
-        Map<String, Object> diffState = new HashMap<>();
+    private void sendHeartbeat() {
+        Buffer selectedBuffer = mSelectedBuffer;
+        long selectedBufferId = (selectedBuffer != null) ? selectedBuffer.getId() : 0;
 
-        if (!Objects.equal(newState.selectedBuffer, oldState.selectedBuffer)) {
-            diffState.put("selectedBuffer", newState.selectedBuffer);
+        final Map<String, Map<String, Long>> seenEids = mSeenEidTracker.takeChanges();
+        if (seenEids == null && selectedBufferId == mHeartbeatSelectedBuffer) {
+            return;
         }
 
-        Map<String, Map<String, Long>> newSeenEids = newState.seenEids;
-        if (newSeenEids != null) {
-            if (oldState.seenEids == null) {
-                diffState.put("seenEids", newSeenEids);
-            } else {
-                Map<String, Object> diffSeenEids = new HashMap<>();
+        HeartbeatMessage message = new HeartbeatMessage();
+        if (seenEids != null) {
+            message.seenEids = seenEids;
+        } else {
+            // IRCCloud wants this
+            message.seenEids = new HashMap<>();
+        }
 
-                Map<String, Map<String, Long>> oldSeenEids = oldState.seenEids;
+        if (selectedBuffer != null) {
+            message.selectedBuffer = selectedBufferId;
+        }
 
-                for (String cid : newSeenEids.keySet()) {
-                    Map<String, Long> newConnectionEids = newSeenEids.get(cid);
-                    Map<String, Long> oldConnectionEids = oldSeenEids.get(cid);
-                    if (!oldSeenEids.containsKey(cid)) {
-                        diffSeenEids.put(cid, newConnectionEids);
-                    } else {
-                        Map<String, Long> diffConnectionEids = (Map<String, Long>) diffState.get(cid);
-
-                        Map<String, Long> newBuffers = newSeenEids.get(cid);
-                        for (String bid : newBuffers.keySet()) {
-                            long newBufferSeenEid = newConnectionEids.containsKey(bid) ? newConnectionEids.get(bid) : 0;
-                            long oldBufferSeenEid = oldConnectionEids.containsKey(bid) ? oldConnectionEids.get(bid) : 0;
-                            if (newBufferSeenEid != oldBufferSeenEid) {
-                                if (diffConnectionEids == null) {
-                                    diffConnectionEids = new HashMap<>();
-                                    diffSeenEids.put(cid, diffConnectionEids);
-                                }
-                                diffConnectionEids.put(bid, newBufferSeenEid);
-                            }
-                        }
-                    }
+        // Heartbeats are rebuilt from the latest state whenever they are sent, so they skip the outbound queue.
+        boolean sent = sendNow(message, new PostCallback() {
+            @Override public void run(ResponseMessage response, Message request) {
+                if (seenEids == null) {
+                    return;
                 }
-
-                if (!diffSeenEids.isEmpty()) {
-                    diffState.put("seenEids", diffSeenEids);
+                if (response.success) {
+                    mSeenEidTracker.onSent(seenEids);
+                } else {
+                    mSeenEidTracker.onSendFailed();
                 }
             }
+        });
+        if (sent) {
+            mHeartbeatSelectedBuffer = selectedBufferId;
+        } else if (seenEids != null) {
+            mSeenEidTracker.onSendFailed();
         }
+    }
 
-        return diffState;
+    // Connections and buffers are kept across reconnects. The bouncer is told what we already have so that it only
+    // needs to send newer events. Anything it doesn't announce again is removed once the backlog is complete.
+    private Map<String, Map<String, Long>> getLastEids() {
+        Map<String, Map<String, Long>> lastEids = new HashMap<>();
+        for (Connection connection : mConnections.values()) {
+            Map<String, Long> connObj = new HashMap<>();
+            for (Buffer buffer : connection.getBuffers()) {
+                if (buffer.getLastEid() > 0) {
+                    connObj.put(String.valueOf(buffer.getId()), buffer.getLastEid());
+                }
+            }
+            if (!connObj.isEmpty()) {
+                lastEids.put(String.valueOf(connection.getId()), connObj);
+            }
+        }
+        return lastEids;
     }
 
     private void removeConnection(Connection connection) {
-        mConnections.remove(connection.getId());
+        ImmutableSortedMap.Builder<Long, Connection> connections = ImmutableSortedMap.naturalOrder();
+        for (Connection other : mConnections.values()) {
+            if (other != connection) {
+                connections.put(other.getId(), other);
+            }
+        }
+        mConnections = connections.build();
+        mEventStore.deleteConnection(connection.getId());
+        mSearchIndex.deleteConnection(connection.getId());
         mBus.post(new ConnectionRemovedEvent(connection));
     }
 
+    private class IngestThread extends Thread {
+        public IngestThread() {
+            super("TapchatIngest");
+        }
+
+        @Override public void run() {
+            while (!isInterrupted()) {
+                Object item;
+                try {
+                    item = mIngestQueue.take();
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                if (item instanceof Runnable) {
+                    runTask((Runnable) item);
+                } else {
+                    processMessage((Message) item);
+                }
+            }
+        }
+
+        private void runTask(Runnable task) {
+            try {
+                task.run();
+            } catch (RuntimeException ex) {
+                Log.e(TAG, "Model task failed", ex);
+            }
+        }
+    }
+
     public interface PostCallback {
         public void run(ResponseMessage message, Message request);
     }
@@ -658,14 +1271,4 @@ public class TapchatService extends Service implements TapchatBouncerConnection.
             return TapchatService.this;
         }
     }
-
-    private class PostCallbackInfo {
-        public final Message request;
-        public final PostCallback callback;
-
-        public PostCallbackInfo(Message request, PostCallback callback) {
-            this.request = request;
-            this.callback = callback;
-        }
-    }
 }
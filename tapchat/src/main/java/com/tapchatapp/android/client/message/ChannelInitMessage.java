@@ -17,17 +17,11 @@
 package com.tapchatapp.android.client.message;
 
 import com.tapchatapp.android.client.model.ChannelTopic;
-
-import java.util.List;
+import com.tapchatapp.android.client.model.MemberList;
 
 public class ChannelInitMessage extends BufferEventMessage {
     public static final String TYPE = "channel_init";
 
     public ChannelTopic topic;
-    public List<Member> members;
-
-    public static class Member {
-        public String nick;
-        public String mode;
-    }
+    public MemberList members;
 }
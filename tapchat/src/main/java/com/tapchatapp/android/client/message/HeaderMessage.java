@@ -24,4 +24,5 @@ public class HeaderMessage extends Message {
     public String version_name;
     public String push_id;
     public String push_key;
+    public boolean resumed;
 }
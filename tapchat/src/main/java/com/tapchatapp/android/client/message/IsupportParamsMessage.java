@@ -14,13 +14,12 @@
  * limitations under the License.
  */
 
-package com.tapchatapp.android.client.model;
+package com.tapchatapp.android.client.message;
 
-import java.util.HashMap;
 import java.util.Map;
 
-public class HeartbeatState {
-    public Map<String, Map<String, Long>> seenEids = new HashMap<>();
-    public long selectedBuffer;
+public final class IsupportParamsMessage extends BufferEventMessage {
+    public static final String TYPE = "isupport_params";
 
+    public Map<String, Object> params;
 }
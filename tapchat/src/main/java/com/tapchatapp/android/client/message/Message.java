@@ -16,29 +16,7 @@
 
 package com.tapchatapp.android.client.message;
 
-import com.google.common.collect.ImmutableList;
-
-import java.util.List;
-
 public abstract class Message {
-    public static final List<String> SELF_TYPES = ImmutableList.of(
-        "self_away",
-        "self_back",
-        "you_nickchange",
-        "you_joined_channel",
-        "you_parted_channel",
-        "you_kicked_channel",
-        "quit_server"
-    );
-
-    public static final List<String> IMPORTANT_TYPES = ImmutableList.of(
-        "buffer_msg",
-        "buffer_me_msg",
-        "notice",
-        "channel_invite",
-        "callerid"
-    );
-
     public String _method;
     public String session;
     public long eid;
@@ -51,18 +29,32 @@ public abstract class Message {
     public String type;
     public boolean is_backlog;
 
+    private transient MessageType mMessageType;
+
     protected Message() { }
 
     protected Message(String method) {
         this._method = method;
     }
 
+    public void setType(String type) {
+        this.type = type;
+        mMessageType = MessageType.of(type);
+    }
+
+    public MessageType getMessageType() {
+        if (mMessageType == null) {
+            mMessageType = MessageType.of(type);
+        }
+        return mMessageType;
+    }
+
     public boolean isSelf() {
-        return self || SELF_TYPES.contains(type);
+        return self || getMessageType().is(MessageType.SELF);
     }
 
     public boolean isImportant() {
-        return IMPORTANT_TYPES.contains(type);
+        return getMessageType().is(MessageType.IMPORTANT);
     }
 
     public boolean isHighlight() {
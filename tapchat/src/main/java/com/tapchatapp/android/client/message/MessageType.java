@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2014 Eric Butler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tapchatapp.android.client.message;
+
+import com.google.common.collect.ImmutableMap;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interned message type. Every type the client knows about gets a small code, usable as an array index, and flags
+ * saying how it's treated, so the type string only has to be looked at once when a message is read.
+ */
+public final class MessageType {
+
+    public static final int RENDERED  = 1;
+    public static final int SELF      = 1 << 1;
+    public static final int IMPORTANT = 1 << 2;
+    public static final int MERGEABLE = 1 << 3;
+    public static final int PRESENCE  = 1 << 4;
+
+    /** Code of every type that isn't listed below. */
+    public static final int UNKNOWN_CODE = -1;
+
+    private static final MessageType[] KNOWN_TYPES = {
+        // Rendered
+        new MessageType("buffer_msg",             RENDERED | IMPORTANT),
+        new MessageType("buffer_me_msg",          RENDERED | IMPORTANT),
+        new MessageType("notice",                 RENDERED | IMPORTANT),
+        new MessageType("channel_invite",         RENDERED | IMPORTANT),
+        new MessageType("callerid",               RENDERED | IMPORTANT),
+        new MessageType("joined_channel",         RENDERED | MERGEABLE | PRESENCE),
+        new MessageType("parted_channel",         RENDERED | MERGEABLE | PRESENCE),
+        new MessageType("quit",                   RENDERED | MERGEABLE | PRESENCE),
+        new MessageType("nickchange",             RENDERED | MERGEABLE),
+        new MessageType("you_nickchange",         RENDERED | SELF),
+        new MessageType("you_joined_channel",     RENDERED | SELF),
+        new MessageType("you_parted_channel",     RENDERED | SELF),
+        new MessageType("you_kicked_channel",     RENDERED | SELF),
+        new MessageType("quit_server",            RENDERED | SELF),
+        new MessageType("kicked_channel",         RENDERED),
+        new MessageType("channel_topic",          RENDERED),
+        new MessageType("channel_mode",           RENDERED),
+        new MessageType("channel_mode_is",        RENDERED),
+        new MessageType("channel_url",            RENDERED),
+        new MessageType("user_channel_mode_is",   RENDERED),
+        new MessageType("user_mode",              RENDERED),
+        new MessageType("banned",                 RENDERED),
+        new MessageType("connecting",             RENDERED),
+        new MessageType("connecting_retry",       RENDERED),
+        new MessageType("connecting_failed",      RENDERED),
+        new MessageType("connecting_cancelled",   RENDERED),
+        new MessageType("connected",              RENDERED),
+        new MessageType("waiting_to_retry",       RENDERED),
+        new MessageType("socket_closed",          RENDERED),
+        new MessageType("invalid_cert",           RENDERED),
+        new MessageType("server_details_changed", RENDERED),
+        new MessageType("error",                  RENDERED),
+        new MessageType("buffer_archived",        RENDERED),
+        new MessageType("buffer_unarchived",      RENDERED),
+        new MessageType("delete_buffer",          RENDERED),
+
+        // Never sent to a buffer
+        new MessageType("stat_user",              0),
+        new MessageType("header",                 0),
+        new MessageType("backlog_complete",       0),
+        new MessageType("makeserver",             0),
+        new MessageType("connection_deleted",     0),
+        new MessageType("heartbeat_echo",         0),
+        new MessageType("idle",                   0),
+        new MessageType("sys_msgs",               0),
+        new MessageType("oob_include",            0),
+        new MessageType("open_buffer",            0),
+        new MessageType("end_of_backlog",         0),
+
+        // Not rendered
+        new MessageType("makebuffer",             0),
+        new MessageType("channel_init",           0),
+        new MessageType("connecting_finished",    0),
+        // Channel status
+        new MessageType("user_away",              0),
+        new MessageType("user_back",              0),
+        new MessageType("user_details",           0),
+        new MessageType("channel_timestamp",      0),
+        // Conversation status
+        new MessageType("whois_response",         0),
+        new MessageType("away",                   0),
+        // Connection status
+        new MessageType("isupport_params",        0),
+        new MessageType("self_away",              SELF),
+        new MessageType("self_back",              SELF),
+        // Overlay
+        new MessageType("names_reply",            0),
+        new MessageType("query_too_long",         0),
+        new MessageType("try_again",              0),
+        new MessageType("accept_list",            0),
+        new MessageType("ban_list",               0),
+        new MessageType("ban_exception_list",     0),
+        new MessageType("links_response",         0),
+        new MessageType("silence_list",           0),
+        new MessageType("trace_response",         0),
+        new MessageType("who_response",           0),
+        new MessageType("ison",                   0),
+        new MessageType("list_response_toomany",  0),
+        new MessageType("list_response",          0),
+        new MessageType("list_response_fetching", 0),
+        new MessageType("map_list",               0),
+        new MessageType("remote_isupport_params", 0),
+        new MessageType("userhost",               0),
+        // Prompt
+        new MessageType("channel_full",           0),
+        new MessageType("too_many_targets",       0),
+        new MessageType("no_messages_from_non_registered", 0),
+        new MessageType("not_registered",         0),
+        new MessageType("already_registered",     0),
+        new MessageType("no_such_nick",           0),
+        new MessageType("bad_channel_name",       0),
+        new MessageType("bad_channel_key",        0),
+        new MessageType("banned_from_channel",    0),
+        new MessageType("invite_only_chan",       0),
+        new MessageType("need_registered_nick",   0),
+        new MessageType("no_such_channel",        0),
+        new MessageType("too_many_channels",      0)
+    };
+
+    /** Number of known types. Codes go from 0 to COUNT - 1. */
+    public static final int COUNT = KNOWN_TYPES.length;
+
+    private static final Map<String, MessageType> TYPES;
+    static {
+        ImmutableMap.Builder<String, MessageType> builder = ImmutableMap.builder();
+        for (int i = 0; i < KNOWN_TYPES.length; i++) {
+            KNOWN_TYPES[i].mCode = i;
+            builder.put(KNOWN_TYPES[i].mName, KNOWN_TYPES[i]);
+        }
+        TYPES = builder.build();
+    }
+
+    private static final Map<String, MessageType> UNKNOWN_TYPES = new ConcurrentHashMap<>();
+
+    private static final MessageType NONE = new MessageType(null, RENDERED);
+
+    private final String mName;
+    private final int mFlags;
+    private int mCode = UNKNOWN_CODE;
+
+    private MessageType(String name, int flags) {
+        mName = name;
+        mFlags = flags;
+    }
+
+    public static MessageType of(String name) {
+        if (name == null) {
+            return NONE;
+        }
+        MessageType type = TYPES.get(name);
+        if (type == null) {
+            type = UNKNOWN_TYPES.get(name);
+            if (type == null) {
+                // Types the client doesn't know about are shown as they are.
+                type = new MessageType(name, RENDERED);
+                UNKNOWN_TYPES.put(name, type);
+            }
+        }
+        return type;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public int getCode() {
+        return mCode;
+    }
+
+    public boolean is(int flag) {
+        return (mFlags & flag) != 0;
+    }
+
+    public boolean isRendered() {
+        return is(RENDERED);
+    }
+
+    @Override public String toString() {
+        return mName;
+    }
+}
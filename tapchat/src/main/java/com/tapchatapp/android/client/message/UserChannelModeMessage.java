@@ -20,4 +20,5 @@ public class UserChannelModeMessage extends BufferEventMessage {
     public static final String TYPE = "user_channel_mode_is";
 
     public String diff;
+    public String newmode;
 }
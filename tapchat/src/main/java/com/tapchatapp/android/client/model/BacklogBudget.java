@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2014 Eric Butler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tapchatapp.android.client.model;
+
+import android.content.ComponentCallbacks2;
+
+import com.tapchatapp.android.client.TapchatService;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Caps how many events all buffers keep in memory together. Buffers that are selected or recently used keep up to
+ * Buffer.MAX_EVENTS each; once the total goes over the limit, archived buffers and then the least recently used
+ * ones are trimmed to a short tail. What gets trimmed is still in the EventStore, and is read back when the buffer is
+ * selected again.
+ *
+ * Only used on the model thread, and while deferred by the threads it is waiting on.
+ */
+public class BacklogBudget {
+    public static final int MAX_EVENTS = 20000;
+
+    // How many events a trimmed buffer keeps, enough to fill a screen.
+    static final int TAIL_EVENTS = 50;
+
+    private final TapchatService mService;
+
+    private int mTotal;
+    private int mTrimAt = MAX_EVENTS;
+    private long mClock;
+    private boolean mDeferred;
+
+    public BacklogBudget(TapchatService service) {
+        mService = service;
+    }
+
+    /**
+     * Trims harder the lower the system is on memory. At the worst levels, every buffer but the selected one is
+     * emptied.
+     */
+    public void onTrimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE ||
+                level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            trim(0, 0);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE ||
+                level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            trim(MAX_EVENTS / 4, TAIL_EVENTS);
+        } else {
+            trim(MAX_EVENTS / 2, TAIL_EVENTS);
+        }
+    }
+
+    /**
+     * While backlog for several connections is applied at once, added events are only counted, since trimming would
+     * touch the other connections' buffers. The budget is enforced again once that's done.
+     */
+    public void setDeferred(boolean deferred) {
+        mDeferred = deferred;
+        if (!deferred && mTotal > mTrimAt) {
+            trim(MAX_EVENTS - (MAX_EVENTS / 10), TAIL_EVENTS);
+        }
+    }
+
+    void onEventsAdded(Buffer buffer, int count) {
+        if (mDeferred) {
+            synchronized (this) {
+                buffer.setLastUsed(++mClock);
+                mTotal += count;
+            }
+            return;
+        }
+
+        buffer.setLastUsed(++mClock);
+        mTotal += count;
+        if (mTotal > mTrimAt) {
+            // Trim to somewhat below the limit, so that it isn't hit again by the next message.
+            trim(MAX_EVENTS - (MAX_EVENTS / 10), TAIL_EVENTS);
+        }
+    }
+
+    public void onBufferSelected(Buffer buffer) {
+        buffer.setLastUsed(++mClock);
+    }
+
+    private void trim(int limit, int tail) {
+        List<Buffer> buffers = new ArrayList<>();
+        int total = 0;
+        for (Connection connection : mService.getConnections()) {
+            buffers.addAll(connection.getBuffers());
+            if (connection.getConsoleBuffer() != null) {
+                buffers.add(connection.getConsoleBuffer());
+            }
+        }
+        for (Buffer buffer : buffers) {
+            total += buffer.getEventCount();
+        }
+
+        // Archived buffers go first, then the rest from least to most recently used.
+        Collections.sort(buffers, new Comparator<Buffer>() {
+            @Override public int compare(Buffer lhs, Buffer rhs) {
+                if (lhs.isArchived() != rhs.isArchived()) {
+                    return lhs.isArchived() ? -1 : 1;
+                }
+                return Long.valueOf(lhs.getLastUsed()).compareTo(rhs.getLastUsed());
+            }
+        });
+
+        Buffer selected = mService.getSelectedBuffer();
+        for (Buffer buffer : buffers) {
+            if (total <= limit) {
+                break;
+            }
+            if (buffer == selected) {
+                continue;
+            }
+            int count = buffer.getEventCount();
+            buffer.trimEvents(tail);
+            total -= count - buffer.getEventCount();
+        }
+
+        // With many busy buffers even their tails can add up to more than the limit. Don't try again on every message
+        // then, only once the total has grown some more.
+        mTotal = total;
+        mTrimAt = Math.max(MAX_EVENTS, total + (MAX_EVENTS / 10));
+    }
+}
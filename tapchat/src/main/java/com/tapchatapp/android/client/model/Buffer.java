@@ -18,23 +18,24 @@ package com.tapchatapp.android.client.model;
 
 import android.util.Log;
 
-import com.google.common.collect.EvictingQueue;
 import com.tapchatapp.android.app.event.BufferChangedEvent;
 import com.tapchatapp.android.app.event.BufferLineAddedEvent;
 import com.tapchatapp.android.app.event.BufferRemovedEvent;
-import com.tapchatapp.android.client.MessageHandler;
+import com.tapchatapp.android.client.EventStore;
+import com.tapchatapp.android.client.TapchatService;
 import com.tapchatapp.android.client.message.BufferEventMessage;
+import com.tapchatapp.android.client.message.BufferMsgMessage;
 import com.tapchatapp.android.client.message.MakeBufferMessage;
+import com.tapchatapp.android.client.message.MessageType;
 import com.tapchatapp.android.client.message.request.ArchiveBufferMessage;
 import com.tapchatapp.android.client.message.request.DeleteBufferMessage;
 import com.tapchatapp.android.client.message.request.UnarchiveBufferMessage;
 
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 public abstract class Buffer {
     public static final int CHANNEL_TYPE      = 1;
@@ -58,31 +59,46 @@ public abstract class Buffer {
 
     private static final String TAG = "Buffer";
 
+    private static final MessageType BUFFER_MSG_TYPE = MessageType.of(BufferMsgMessage.TYPE);
+
+    /**
+     * Gets the fields of an event as the log stores them. The extras are the type specific fields its MessageCodec
+     * picks, or null.
+     */
+    public static interface EventVisitor {
+        void visit(String type, long eid, Long time, boolean highlight, boolean self, String nick, String from,
+                   Object text, Object[] extras) throws IOException;
+    }
+
     private Connection mConnection;
 
-    private boolean mExists = false;
+    private volatile boolean mExists = false;
     private long mId;
-    private String mName;
-    private boolean mArchived;
+    private volatile String mName;
+    private volatile boolean mArchived;
 
-    private final EvictingQueue<BufferEvent> mEvents = EvictingQueue.create(MAX_EVENTS);
+    // Null while the buffer is archived or hidden, see setArchived().
+    private volatile EventLog mEvents;
+    private volatile long mDroppedGeneration;
 
-    private List<Long> mMessageIds = new ArrayList<Long>();
+    private final EidWindow mMessageIds = new EidWindow();
 
-    private Map<String, MessageHandler> mMessageHandlers;
-    private Map<String, MessageHandler> mInitializedMessageHandlers;
+    private volatile long    mLastSeenEid;
+    private volatile long    mLastEid;
+    private volatile long    mLastEventEid;
+    private volatile boolean mUnread;
+    private volatile int     mHighlightCount;
 
-    private long    mLastSeenEid;
-    private long    mLastEid;
-    private boolean mUnread;
-    private int     mHighlightCount;
+    // Only used on the model thread.
+    private long    mLastUsed;
+    private boolean mEventsTrimmed;
 
     Buffer(Connection connection, MakeBufferMessage message) throws Exception {
         mConnection  = connection;
         mId          = message.bid;
-
-        mMessageHandlers            = getMessageHandlers();
-        mInitializedMessageHandlers = getInitializedMessageHandlers();
+        if (!message.archived && !message.hidden) {
+            mEvents  = new EventLog(MAX_EVENTS, connection.getId(), message.bid, 0);
+        }
 
         reload(message);
     }
@@ -113,40 +129,127 @@ public abstract class Buffer {
         return (getConnection().getState() == Connection.STATE_CONNECTED);
     }
 
-    public BufferEvent[] getBacklog() {
-        synchronized (mEvents) {
-            return (BufferEvent[]) mEvents.toArray(new BufferEvent[mEvents.size()]);
-        }
+    /**
+     * Returns the events in memory, oldest first. The list is immutable and shared until the next change, so don't
+     * copy it.
+     */
+    public List<BufferEvent> getBacklog() {
+        EventLog events = mEvents;
+        return (events != null) ? events.getSnapshot() : Collections.<BufferEvent>emptyList();
+    }
+
+    /**
+     * Changes whenever an event is added or merged into the last one, so callers can skip copying an unchanged backlog.
+     */
+    public long getBacklogGeneration() {
+        EventLog events = mEvents;
+        return (events != null) ? events.getGeneration() : mDroppedGeneration;
     }
 
+    /**
+     * Builds the newest event from the log, so call it sparingly and keep what it returns.
+     */
     public BufferEvent getLastEvent() {
-        synchronized (mEvents) {
-            BufferEvent[] backlog = getBacklog();
-            if (backlog.length > 0) {
-                return backlog[backlog.length - 1];
-            }
-        }
-        return null;
+        EventLog events = mEvents;
+        return (events != null) ? events.getLast() : null;
     }
 
+    /**
+     * Builds the newest chat line from the log, like getLastEvent().
+     */
     public BufferEvent getLastMessage() {
-        synchronized (mEvents) {
-            BufferEvent[] backlog = getBacklog();
-            BufferEvent event;
-            if (backlog.length > 0) {
-                for (int i = backlog.length - 1; i >= 0; i--) {
-                    event = backlog[i];
-                    if (event.getFirstItem().getMessage().type.equals("buffer_msg")) {
-                        return event;
+        EventLog events = mEvents;
+        return (events != null) ? events.getLastGroup(BUFFER_MSG_TYPE) : null;
+    }
+
+    /**
+     * Passes up to count of the newest events in memory, oldest first, to the visitor field by field, without building
+     * messages for them.
+     */
+    public void visitRecentEvents(int count, EventVisitor visitor) throws IOException {
+        EventLog events = mEvents;
+        if (events != null) {
+            events.visitNewest(count, visitor);
+        }
+    }
+
+    int getEventCount() {
+        EventLog events = mEvents;
+        return (events != null) ? events.size() : 0;
+    }
+
+    void trimEvents(int count) {
+        EventLog events = mEvents;
+        if (events != null && count < events.size()) {
+            events.trimTo(count);
+            mEventsTrimmed = true;
+        }
+    }
+
+    /**
+     * Reads the events that aren't in memory back from the EventStore: all of them if the buffer was archived, or the
+     * ones BacklogBudget trimmed. Doesn't block; the buffer changes once they're read. Only call this on the model
+     * thread.
+     */
+    public void restoreEvents() {
+        if (mEvents == null) {
+            mEvents = new EventLog(MAX_EVENTS, mConnection.getId(), mId, mDroppedGeneration + 1);
+        } else if (!mEventsTrimmed) {
+            return;
+        }
+        mEventsTrimmed = false;
+
+        final TapchatService service = mConnection.getService();
+        final EventLog events = mEvents;
+        long firstEid = events.getFirstEid();
+        long beforeEid = (firstEid > 0) ? firstEid : Long.MAX_VALUE;
+        int count = MAX_EVENTS - events.size();
+        service.getEventStore().readBefore(mConnection.getId(), mId, beforeEid, count, new EventStore.ReadCallback() {
+            @Override public void onRead(final List<BufferEventMessage> messages) {
+                service.runOnModelThread(new Runnable() {
+                    @Override public void run() {
+                        if (mEvents != events) {
+                            return;
+                        }
+                        List<BufferEventMessage> rendered = new ArrayList<>();
+                        for (BufferEventMessage message : messages) {
+                            if (message.eid > 0 && message.getMessageType().isRendered()) {
+                                rendered.add(message);
+                            }
+                        }
+                        int size = events.size();
+                        events.prepend(rendered);
+                        service.getBacklogBudget().onEventsAdded(Buffer.this, events.size() - size);
+                        notifyChanged();
                     }
-                }
+                });
             }
-            return null;
-        }
+        });
+    }
+
+    long getLastUsed() {
+        return mLastUsed;
     }
 
+    void setLastUsed(long lastUsed) {
+        mLastUsed = lastUsed;
+    }
+
+    /**
+     * Archived and hidden buffers don't keep any events in memory, only their counters, since they're rarely looked
+     * at. Their events are still stored, and read back when they're selected or unarchived.
+     */
     void setArchived(boolean archived) {
         mArchived = archived;
+
+        EventLog events = mEvents;
+        if (archived && events != null && !hasFocus()) {
+            mDroppedGeneration = events.getGeneration() + 1;
+            mEvents = null;
+            mEventsTrimmed = false;
+        } else if (!archived && events == null) {
+            restoreEvents();
+        }
     }
 
     boolean hasFocus() {
@@ -162,13 +265,15 @@ public abstract class Buffer {
     }
 
     public void markAllRead() {
-        BufferEvent[] backlog = getBacklog();
-        if (backlog.length > 0) {
-            long lastEid = backlog[backlog.length - 1].getLastItem().getEid();
+        long lastEid = mLastEventEid;
+        if (lastEid > 0) {
             markRead(lastEid);
         }
     }
 
+    /**
+     * Only call this on the model thread, see TapchatService.runOnModelThread().
+     */
     public void markRead(long eid) {
         if (eid < mLastEid) {
             return;
@@ -177,6 +282,13 @@ public abstract class Buffer {
         mLastSeenEid    = eid;
         mUnread         = false;
         mHighlightCount = 0;
+        mConnection.getService().getSeenEidTracker().markRead(mConnection.getId(), mId, eid);
+        notifyChanged();
+    }
+
+    public void restoreReadState(boolean unread, int highlightCount) {
+        mUnread         = unread;
+        mHighlightCount = highlightCount;
         notifyChanged();
     }
 
@@ -198,32 +310,45 @@ public abstract class Buffer {
         mConnection.post(message, null);
     }
 
-    synchronized void processMessage(BufferEventMessage message) throws Exception {
+    void processMessage(BufferEventMessage message) throws Exception {
         long eid = message.eid;
-        String type = message.type;
 
         if (eid > -1) { // FIXME
-            if (mMessageIds.contains(eid)) {
+            if (!mMessageIds.add(eid)) {
                 Log.w("Buffer", "Got duplicate message! " + message);
                 return;
             }
-            mMessageIds.add(eid);
         }
 
         if (eid > mLastEid) {
             mLastEid = eid;
         }
 
-        if (eid > 0 && (!UNRENDERED_MESSAGES.contains(type))) {
-            BufferEvent lastEvent = getLastEvent();
-            BufferEventItem item = new BufferEventItem(message);
-            if (lastEvent != null && lastEvent.shouldMerge(item)) {
-                lastEvent.addItem(item);
-            } else {
-                addEvent(new BufferEvent(item));
+        if (eid > 0 && message.getMessageType().isRendered()) {
+            TapchatService service = mConnection.getService();
+
+            // An event older than the newest one shown that wasn't in the eid window, like the full backlog sent by a
+            // bouncer that ignored the resume eids after a snapshot restored only the newest events. It would be out
+            // of order at the end of the log and was counted already, so it only goes to the stores, which skip what
+            // they have.
+            boolean older = (eid < mLastEventEid);
+            if (!older) {
+                mLastEventEid = eid;
+
+                // Also posted when the message was merged into the last event, so the UI can replace its copy.
+                EventLog events = mEvents;
+                if (events != null) {
+                    int count = events.size();
+                    events.add(message);
+                    service.getBacklogBudget().onEventsAdded(this, events.size() - count);
+                    service.postToBus(new BufferLineAddedEvent(this, events.getLastSupplier()));
+                }
             }
 
-            if (eid > mLastSeenEid) {
+            service.getEventStore().append(mConnection.getId(), mId, message);
+            service.getSearchIndex().add(mConnection.getId(), mId, message);
+
+            if (!older && eid > mLastSeenEid) {
                 if (hasFocus() || message.isSelf()) {
                     markRead(eid);
                 } else {
@@ -240,13 +365,11 @@ public abstract class Buffer {
         }
 
         boolean isBacklogMessage = message.is_backlog;
-        if ((!isBacklogMessage) && (!getConnection().isBacklog()) && mInitializedMessageHandlers.containsKey(type)) {
-            mInitializedMessageHandlers.get(type).handleMessage(message);
+        if ((!isBacklogMessage) && (!getConnection().isBacklog())) {
+            handleInitializedMessage(message);
         }
 
-        if (mMessageHandlers.containsKey(type)) {
-            mMessageHandlers.get(type).handleMessage(message);
-        }
+        handleMessage(message);
     }
 
     void notifyChanged() {
@@ -257,81 +380,90 @@ public abstract class Buffer {
         getConnection().getService().postToBus(new BufferRemovedEvent(this));
     }
 
-    protected Map<String, MessageHandler> getMessageHandlers() {
-        return new HashMap<>();
+    /**
+     * Passes the message to the handler for its type, if this kind of buffer has one. Subclasses dispatch through a
+     * shared MessageHandlerTable.
+     */
+    protected boolean handleMessage(BufferEventMessage message) throws Exception {
+        return false;
     }
 
-    protected Map<String, MessageHandler> getInitializedMessageHandlers() {
-        return new HashMap<>();
+    /**
+     * Same as handleMessage(), for messages that are only handled once the connection's backlog has been loaded.
+     */
+    protected boolean handleInitializedMessage(BufferEventMessage message) throws Exception {
+        return false;
     }
 
-    private void addEvent(BufferEvent event) {
-        synchronized (mEvents) {
-            mEvents.add(event);
+    /**
+     * Loads up to count events older than beforeEid from the event store, or from the bouncer once the store has
+     * nothing older. The events aren't added to the buffer. Blocks, so don't call it on the main thread.
+     */
+    public List<BufferEvent> loadOlderEvents(long beforeEid, int count) throws Exception {
+        TapchatService service = mConnection.getService();
+        while (true) {
+            List<BufferEventMessage> messages = service.getEventStore().readBefore(mConnection.getId(), mId, beforeEid, count);
+            if (messages.isEmpty()) {
+                messages = service.fetchHistory(mConnection.getId(), mId, beforeEid, count);
+            }
+
+            // An empty list means there is nothing older. If none of what came back is shown, look further back.
+            List<BufferEvent> events = toEvents(messages, 0, beforeEid);
+            if (!events.isEmpty() || messages.isEmpty() || messages.get(0).eid >= beforeEid) {
+                return events;
+            }
+            beforeEid = messages.get(0).eid;
         }
-        getConnection().getService().postToBus(new BufferLineAddedEvent(this, event));
-    }
-
-    private static final List<String> UNRENDERED_MESSAGES = Arrays.asList(
-        "makebuffer",
-        "channel_init",
-        "connecting_finished",
-        // Channel status
-        "user_away",
-        "user_back",
-        "user_details",
-        "channel_timestamp",
-        // Conversation status
-        "whois_response",
-        "away",
-        // Connection status
-        "isupport_params",
-        "self_away",
-        "self_back",
-        // Overlay
-        "names_reply",
-        "query_too_long",
-        "try_again",
-        "accept_list",
-        "ban_list",
-        "ban_exception_list",
-        "links_response",
-        "silence_list",
-        "trace_response",
-        "who_response",
-        "ison",
-        "list_response_toomany",
-        "list_response",
-        "list_response_fetching",
-        "map_list",
-        "remote_isupport_params",
-        "userhost",
-        // Prompt
-        "channel_full",
-        "too_many_targets",
-        "no_messages_from_non_registered",
-        "not_registered",
-        "already_registered",
-        "no_such_nick",
-        "bad_channel_name",
-        "bad_channel_key",
-        "banned_from_channel",
-        "invite_only_chan",
-        "need_registered_nick",
-        "no_such_channel",
-        "too_many_channels"
-    );
+    }
+
+    /**
+     * Reads events back from the event store that were paged in before and dropped again, oldest first.
+     */
+    public List<BufferEvent> loadNewerEvents(long afterEid, int count) throws Exception {
+        TapchatService service = mConnection.getService();
+        return toEvents(service.getEventStore().readAfter(mConnection.getId(), mId, afterEid, count), afterEid,
+            Long.MAX_VALUE);
+    }
+
+    private static List<BufferEvent> toEvents(List<BufferEventMessage> messages, long afterEid, long beforeEid) {
+        List<BufferEvent> events = new ArrayList<>();
+        BufferEvent lastEvent = null;
+        for (BufferEventMessage message : messages) {
+            if (message.eid <= afterEid || message.eid >= beforeEid || !message.getMessageType().isRendered()) {
+                continue;
+            }
+            BufferEventItem item = new BufferEventItem(message);
+            if (lastEvent != null && lastEvent.shouldMerge(item)) {
+                lastEvent.addItem(item);
+            } else {
+                lastEvent = new BufferEvent(item);
+                events.add(lastEvent);
+            }
+        }
+        return events;
+    }
 
     public long getLastSeenEid() {
         return mLastSeenEid;
     }
 
+    public long getLastEid() {
+        return mLastEid;
+    }
+
     public void reload(MakeBufferMessage message) {
         mExists         = true;
         mName           = message.name;
-        mArchived       = (message.archived || message.hidden);
-        mLastSeenEid    = message.last_seen_eid;
-        mHighlightCount = 0;
+        setArchived(message.archived || message.hidden);
+
+        // When resuming, highlights we already counted are still unread unless the buffer was read elsewhere.
+        if (mLastSeenEid != message.last_seen_eid) {
+            mLastSeenEid    = message.last_seen_eid;
+            mHighlightCount = 0;
+        }
+
+        // Marks that didn't get through before the reconnect are only sent again if they're still newer.
+        mConnection.getService().getSeenEidTracker().acknowledge(mConnection.getId(), mId, message.last_seen_eid);
     }
 
     public boolean exists() {
@@ -19,66 +19,75 @@ package com.tapchatapp.android.client.model;
 import com.google.common.base.Function;
 import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableList;
+import com.tapchatapp.android.client.message.MessageType;
 
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 
 import static com.google.common.collect.Iterables.transform;
 
 public class BufferEvent {
 
-    private static final List<String> MERGEABLE_TYPES = ImmutableList.of("joined_channel", "parted_channel", "quit",
-            "nickchange");
-
-    private final List<BufferEventItem> mItems = Collections.synchronizedList(new ArrayList<BufferEventItem>());
+    // Replaced rather than changed when an item is merged in, so readers never need a lock or a copy.
+    private volatile ImmutableList<BufferEventItem> mItems;
 
     public BufferEvent(BufferEventItem firstItem) {
-        addItem(firstItem);
+        mItems = ImmutableList.of(firstItem);
+    }
+
+    BufferEvent(ImmutableList<BufferEventItem> items) {
+        mItems = items;
     }
 
     public BufferEventItem getFirstItem() {
-        synchronized (mItems) {
-            return mItems.get(0);
-        }
+        return mItems.get(0);
     }
 
     public BufferEventItem getLastItem() {
-        synchronized (mItems) {
-            return mItems.get(mItems.size() - 1);
-        }
+        List<BufferEventItem> items = mItems;
+        return items.get(items.size() - 1);
     }
 
     public boolean shouldMerge(BufferEventItem item) {
-        String type = item.getMessage().type;
-        String firstType = getFirstItem().getMessage().type;
-        synchronized (mItems) {
-            return MERGEABLE_TYPES.contains(firstType) &&
-                   MERGEABLE_TYPES.contains(type) &&
-                   getFirstItem().isSameDay(item);
-        }
+        MessageType type = item.getMessage().getMessageType();
+        MessageType firstType = getFirstItem().getMessage().getMessageType();
+        return firstType.is(MessageType.MERGEABLE) &&
+               type.is(MessageType.MERGEABLE) &&
+               getFirstItem().isSameDay(item);
     }
 
     public void addItem(BufferEventItem item) {
-        synchronized (mItems) {
-            mItems.add(item);
-        }
+        mItems = ImmutableList.<BufferEventItem>builder().addAll(mItems).add(item).build();
     }
 
     public List<BufferEventItem> getItems() {
-        synchronized (mItems) {
-            return new ArrayList<>(mItems);
+        return mItems;
+    }
+
+    /**
+     * Events are rebuilt from the EventLog whenever they're asked for, so two are equal if they start with the same
+     * message, even if one has had more merged into it since.
+     */
+    @Override public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof BufferEvent)) {
+            return false;
         }
+        return getFirstItem().getEid() == ((BufferEvent) o).getFirstItem().getEid();
+    }
+
+    @Override public int hashCode() {
+        long eid = getFirstItem().getEid();
+        return (int) (eid ^ (eid >>> 32));
     }
 
     @Override public String toString() {
-        synchronized (mItems) {
-            String objects = Joiner.on(",").join(transform(mItems, new Function<BufferEventItem, String>() {
-                @Override public String apply(BufferEventItem item) {
-                    return item.toString();
-                }
-            }));
-            return String.format("BufferEvent{%s}", objects);
-        }
+        String objects = Joiner.on(",").join(transform(mItems, new Function<BufferEventItem, String>() {
+            @Override public String apply(BufferEventItem item) {
+                return item.toString();
+            }
+        }));
+        return String.format("BufferEvent{%s}", objects);
     }
 }
@@ -45,8 +45,10 @@ public class BufferEventItem<T extends BufferEventMessage> {
     }
 
     public boolean isSameDay(BufferEventItem otherItem) {
-        Date date = mMessage.getDate();
-        Date otherDate = otherItem.getMessage().getDate();
+        return isSameDay(mMessage.getDate(), otherItem.getMessage().getDate());
+    }
+
+    static boolean isSameDay(Date date, Date otherDate) {
         return (date == null || otherDate == null) ||
             (date.getYear()  == otherDate.getYear() &&
              date.getMonth() == otherDate.getMonth() &&
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2014 Eric Butler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tapchatapp.android.client.model;
+
+import java.util.Locale;
+
+/**
+ * How an IRC server compares nicks and channel names, from the CASEMAPPING it advertises in isupport_params.
+ */
+public enum CaseMapping {
+    ASCII('z'),
+    RFC1459('~'),
+    STRICT_RFC1459('}');
+
+    private final char mLastUpper;
+
+    /**
+     * Lower case runs from 'a' to lastLower, and each upper case character is 32 below its lower case form. Past 'z'
+     * that pairs '{', '|', '}' and '~' with '[', '\', ']' and '^'.
+     */
+    private CaseMapping(char lastLower) {
+        mLastUpper = (char) (lastLower - ('a' - 'A'));
+    }
+
+    /**
+     * Falls back to rfc1459, which is what servers that don't say anything use.
+     */
+    public static CaseMapping forName(String name) {
+        if (name != null) {
+            switch (name.toLowerCase(Locale.US)) {
+                case "ascii":
+                    return ASCII;
+                case "strict-rfc1459":
+                    return STRICT_RFC1459;
+            }
+        }
+        return RFC1459;
+    }
+
+    public String toLowerCase(String name) {
+        char[] chars = null;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c >= 'A' && c <= mLastUpper) {
+                if (chars == null) {
+                    chars = name.toCharArray();
+                }
+                chars[i] = (char) (c + ('a' - 'A'));
+            }
+        }
+        return (chars != null) ? new String(chars) : name;
+    }
+
+    public boolean equals(String name1, String name2) {
+        return toLowerCase(name1).equals(toLowerCase(name2));
+    }
+}
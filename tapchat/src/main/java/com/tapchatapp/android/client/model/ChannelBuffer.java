@@ -19,8 +19,12 @@ package com.tapchatapp.android.client.model;
 import android.text.TextUtils;
 import android.util.Log;
 
-import com.google.common.collect.ImmutableMap;
-import com.tapchatapp.android.client.MessageHandler;
+import com.tapchatapp.android.app.event.MemberAddedEvent;
+import com.tapchatapp.android.app.event.MemberChangedEvent;
+import com.tapchatapp.android.app.event.MemberRemovedEvent;
+import com.tapchatapp.android.app.event.MembersReloadedEvent;
+import com.tapchatapp.android.client.MessageHandlerTable;
+import com.tapchatapp.android.client.message.BufferEventMessage;
 import com.tapchatapp.android.client.message.ChannelInitMessage;
 import com.tapchatapp.android.client.message.ChannelModeIsMessage;
 import com.tapchatapp.android.client.message.ChannelModeMessage;
@@ -40,17 +44,13 @@ import com.tapchatapp.android.client.message.YouNickchangeMessage;
 import com.tapchatapp.android.client.message.YouPartedChannelMessage;
 import com.tapchatapp.android.client.message.request.QuitMessage;
 
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
-import java.util.Map;
-import java.util.TreeMap;
 
 public class ChannelBuffer extends ChatBuffer {
-    private boolean mJoined;
-    private String mTopic;
+    private volatile boolean mJoined;
+    private volatile String mTopic;
 
-    private final Map<String, Member> mMembers = Collections.synchronizedMap(new TreeMap<String, Member>());
+    private volatile MemberList mMembers = new MemberList();
 
     ChannelBuffer(Connection connection, MakeBufferMessage message) throws Exception {
         super(connection, message);
@@ -75,10 +75,15 @@ public class ChannelBuffer extends ChatBuffer {
         return super.isActive() && isJoined();
     }
 
-    public ArrayList<Member> getMembers() {
-        synchronized (mMembers) {
-            return new ArrayList<Member>(mMembers.values());
-        }
+    /**
+     * Returns the members, in no particular order. The list is immutable and shared until the next change.
+     */
+    public List<Member> getMembers() {
+        return mMembers.getSnapshot();
+    }
+
+    public int getMemberCount() {
+        return mMembers.size();
     }
 
     public void join() {
@@ -119,160 +124,198 @@ public class ChannelBuffer extends ChatBuffer {
         notifyChanged();
     }
 
-    @Override
-    protected Map<String, MessageHandler> getMessageHandlers() {
-        return new ImmutableMap.Builder<String, MessageHandler>()
-            .put(ChannelInitMessage.TYPE, new MessageHandler<ChannelInitMessage>() {
-                @Override public void handleMessage(ChannelInitMessage message) throws Exception {
-                    ChannelTopic topic = message.topic;
-                    if (!TextUtils.isEmpty("topic_text")) {
-                        mTopic = topic.topic_text;
-                    } else if (!TextUtils.isEmpty(topic.text)) {
-                        mTopic = topic.text;
-                    }
-
-                    synchronized (mMembers) {
-                        List<ChannelInitMessage.Member> members = message.members;
-                        for (ChannelInitMessage.Member member : members) {
-                            mMembers.put(member.nick, new Member(member.nick));
-                        }
-                    }
-
-                    mJoined = true; // FIXME ?
-
-                    notifyChanged();
-                }
-            })
-            .put(ChannelTimestampMessage.TYPE, new MessageHandler<ChannelTimestampMessage>() {
-                @Override public void handleMessage(ChannelTimestampMessage message) throws Exception {
-                    // FIXME:
-                }
-            })
-            .put(UserAwayMessage.TYPE, new MessageHandler<UserAwayMessage>() {
-                @Override public void handleMessage(UserAwayMessage message) throws Exception {
-                    // FIXME:
-                }
-            })
-            .put(UserBackMessage.TYPE, new MessageHandler<UserBackMessage>() {
-                @Override public void handleMessage(UserBackMessage message) throws Exception {
-                    // FIXME:
+    private static final MessageHandlerTable<ChannelBuffer> MESSAGE_HANDLERS = MessageHandlerTable.<ChannelBuffer>builder()
+        .put(ChannelInitMessage.TYPE, new MessageHandlerTable.Handler<ChannelBuffer, ChannelInitMessage>() {
+            @Override public void handleMessage(ChannelBuffer buffer, ChannelInitMessage message) throws Exception {
+                ChannelTopic topic = message.topic;
+                if (!TextUtils.isEmpty("topic_text")) {
+                    buffer.mTopic = topic.topic_text;
+                } else if (!TextUtils.isEmpty(topic.text)) {
+                    buffer.mTopic = topic.text;
                 }
-            })
-            .put(UserDetailsMessage.TYPE, new MessageHandler<UserDetailsMessage>() {
-                @Override public void handleMessage(UserDetailsMessage message) throws Exception {
-                    // FIXME:
-                }
-            })
-            .build();
-    }
 
-    @Override
-    protected Map<String, MessageHandler> getInitializedMessageHandlers() {
-        return new ImmutableMap.Builder<String, MessageHandler>()
-            .put(ChannelTopicMessage.TYPE, new MessageHandler<ChannelTopicMessage>() {
-                @Override public void handleMessage(ChannelTopicMessage message) throws Exception {
-                    mTopic = message.topic;
-                    notifyChanged();
-                }
-            })
-            .put(UserChannelModeMessage.TYPE, new MessageHandler<UserChannelModeMessage>() {
-                @Override public void handleMessage(UserChannelModeMessage message) throws Exception {
-                    // FIXME: mMembers.get(message.getString("nick")).setMode(message);
-                }
-            })
-            .put(ChannelModeMessage.TYPE, new MessageHandler<ChannelModeMessage>() {
-                @Override public void handleMessage(ChannelModeMessage message) throws Exception {
-                    // FIXME:
-                    // {"bid":106792,"eid":40,"type":"channel_mode","time":1332377704,"highlight":false,"channel":"#iv","server":"efnet.xs4all.nl","cid":13599,"diff":"+nt","newmode":"nt","ops":{"add":[{"mode":"t","param":""},{"mode":"n","param":""}],"remove":[]}}
-                }
-            })
-            .put(ChannelModeIsMessage.TYPE, new MessageHandler<ChannelModeIsMessage>() {
-                @Override public void handleMessage(ChannelModeIsMessage message) throws Exception {
-                    // FIXME
-                }
-            })
-            .put(JoinedChannelMessage.TYPE, new MessageHandler<JoinedChannelMessage>() {
-                @Override public void handleMessage(JoinedChannelMessage message) throws Exception {
-                    addMember(new Member(message.nick));
+                if (message.members != null) {
+                    message.members.setCaseMapping(buffer.getConnection().getCaseMapping());
+                    buffer.mMembers = message.members;
+                    buffer.getConnection().getService().postToBus(new MembersReloadedEvent(buffer));
                 }
-            })
-            .put(PartedChannelMessage.TYPE, new MessageHandler<PartedChannelMessage>() {
-                @Override public void handleMessage(PartedChannelMessage message) throws Exception {
-                    removeMember(message.nick);
-                }
-            })
-            .put(QuitMessage.TYPE, new MessageHandler<QuitMessage>() {
-                @Override public void handleMessage(QuitMessage message) throws Exception {
-                    if (!TextUtils.isEmpty(message.nick)) {
-                        removeMember(message.nick);
-                    }
-                }
-            })
-            .put(KickedChannelMessage.TYPE, new MessageHandler<KickedChannelMessage>() {
-                @Override public void handleMessage(KickedChannelMessage message) throws Exception {
-                    removeMember(message.nick);
+
+                buffer.mJoined = true; // FIXME ?
+
+                buffer.notifyChanged();
+            }
+        })
+        .put(ChannelTimestampMessage.TYPE, new MessageHandlerTable.Handler<ChannelBuffer, ChannelTimestampMessage>() {
+            @Override public void handleMessage(ChannelBuffer buffer, ChannelTimestampMessage message) throws Exception {
+                // FIXME:
+            }
+        })
+        .put(UserAwayMessage.TYPE, new MessageHandlerTable.Handler<ChannelBuffer, UserAwayMessage>() {
+            @Override public void handleMessage(ChannelBuffer buffer, UserAwayMessage message) throws Exception {
+                Member member = buffer.getMember(message.nick);
+                if (member != null && !member.isAway()) {
+                    buffer.replaceMember(member, member.withAway(true));
                 }
-            })
-            .put(YouJoinedChannelMessage.TYPE, new MessageHandler<YouJoinedChannelMessage>() {
-                @Override public void handleMessage(YouJoinedChannelMessage message) throws Exception {
-                    mJoined = true;
-                    notifyChanged();
+            }
+        })
+        .put(UserBackMessage.TYPE, new MessageHandlerTable.Handler<ChannelBuffer, UserBackMessage>() {
+            @Override public void handleMessage(ChannelBuffer buffer, UserBackMessage message) throws Exception {
+                Member member = buffer.getMember(message.nick);
+                if (member != null && member.isAway()) {
+                    buffer.replaceMember(member, member.withAway(false));
                 }
-            })
-            .put(YouPartedChannelMessage.TYPE, new MessageHandler<YouPartedChannelMessage>() {
-                @Override public void handleMessage(YouPartedChannelMessage message) throws Exception {
-                    mJoined = false;
-                    notifyChanged();
+            }
+        })
+        .put(UserDetailsMessage.TYPE, new MessageHandlerTable.Handler<ChannelBuffer, UserDetailsMessage>() {
+            @Override public void handleMessage(ChannelBuffer buffer, UserDetailsMessage message) throws Exception {
+                // FIXME:
+            }
+        })
+        .build();
+
+    private static final MessageHandlerTable<ChannelBuffer> INITIALIZED_MESSAGE_HANDLERS = MessageHandlerTable.<ChannelBuffer>builder()
+        .put(ChannelTopicMessage.TYPE, new MessageHandlerTable.Handler<ChannelBuffer, ChannelTopicMessage>() {
+            @Override public void handleMessage(ChannelBuffer buffer, ChannelTopicMessage message) throws Exception {
+                buffer.mTopic = message.topic;
+                buffer.notifyChanged();
+            }
+        })
+        .put(UserChannelModeMessage.TYPE, new MessageHandlerTable.Handler<ChannelBuffer, UserChannelModeMessage>() {
+            @Override public void handleMessage(ChannelBuffer buffer, UserChannelModeMessage message) throws Exception {
+                Member member = buffer.getMember(message.nick);
+                if (member == null) {
+                    return;
                 }
-            })
-            .put(NickchangeMessage.TYPE, new MessageHandler<NickchangeMessage>() {
-                @Override public void handleMessage(NickchangeMessage message) throws Exception {
-                    updateMemberNick(message);
+                if (message.newmode != null) {
+                    buffer.replaceMember(member, member.withModes(message.newmode));
+                } else if (message.diff != null) {
+                    buffer.replaceMember(member, member.withFlags(Member.applyModeDiff(member.getFlags(), message.diff)));
                 }
-            })
-            .put(YouNickchangeMessage.TYPE, new MessageHandler<YouNickchangeMessage>() {
-                @Override public void handleMessage(YouNickchangeMessage message) throws Exception {
-                    updateMemberNick(message);
+            }
+        })
+        .put(ChannelModeMessage.TYPE, new MessageHandlerTable.Handler<ChannelBuffer, ChannelModeMessage>() {
+            @Override public void handleMessage(ChannelBuffer buffer, ChannelModeMessage message) throws Exception {
+                // FIXME:
+                // {"bid":106792,"eid":40,"type":"channel_mode","time":1332377704,"highlight":false,"channel":"#iv","server":"efnet.xs4all.nl","cid":13599,"diff":"+nt","newmode":"nt","ops":{"add":[{"mode":"t","param":""},{"mode":"n","param":""}],"remove":[]}}
+            }
+        })
+        .put(ChannelModeIsMessage.TYPE, new MessageHandlerTable.Handler<ChannelBuffer, ChannelModeIsMessage>() {
+            @Override public void handleMessage(ChannelBuffer buffer, ChannelModeIsMessage message) throws Exception {
+                // FIXME
+            }
+        })
+        .put(JoinedChannelMessage.TYPE, new MessageHandlerTable.Handler<ChannelBuffer, JoinedChannelMessage>() {
+            @Override public void handleMessage(ChannelBuffer buffer, JoinedChannelMessage message) throws Exception {
+                buffer.addMember(new Member(message.nick));
+            }
+        })
+        .put(PartedChannelMessage.TYPE, new MessageHandlerTable.Handler<ChannelBuffer, PartedChannelMessage>() {
+            @Override public void handleMessage(ChannelBuffer buffer, PartedChannelMessage message) throws Exception {
+                buffer.removeMember(message.nick);
+            }
+        })
+        .put(QuitMessage.TYPE, new MessageHandlerTable.Handler<ChannelBuffer, QuitMessage>() {
+            @Override public void handleMessage(ChannelBuffer buffer, QuitMessage message) throws Exception {
+                if (!TextUtils.isEmpty(message.nick)) {
+                    buffer.removeMember(message.nick);
                 }
-            })
-            .build();
+            }
+        })
+        .put(KickedChannelMessage.TYPE, new MessageHandlerTable.Handler<ChannelBuffer, KickedChannelMessage>() {
+            @Override public void handleMessage(ChannelBuffer buffer, KickedChannelMessage message) throws Exception {
+                buffer.removeMember(message.nick);
+            }
+        })
+        .put(YouJoinedChannelMessage.TYPE, new MessageHandlerTable.Handler<ChannelBuffer, YouJoinedChannelMessage>() {
+            @Override public void handleMessage(ChannelBuffer buffer, YouJoinedChannelMessage message) throws Exception {
+                buffer.mJoined = true;
+                buffer.notifyChanged();
+            }
+        })
+        .put(YouPartedChannelMessage.TYPE, new MessageHandlerTable.Handler<ChannelBuffer, YouPartedChannelMessage>() {
+            @Override public void handleMessage(ChannelBuffer buffer, YouPartedChannelMessage message) throws Exception {
+                buffer.mJoined = false;
+                buffer.notifyChanged();
+            }
+        })
+        .put(NickchangeMessage.TYPE, new MessageHandlerTable.Handler<ChannelBuffer, NickchangeMessage>() {
+            @Override public void handleMessage(ChannelBuffer buffer, NickchangeMessage message) throws Exception {
+                buffer.updateMemberNick(message);
+            }
+        })
+        .put(YouNickchangeMessage.TYPE, new MessageHandlerTable.Handler<ChannelBuffer, YouNickchangeMessage>() {
+            @Override public void handleMessage(ChannelBuffer buffer, YouNickchangeMessage message) throws Exception {
+                buffer.updateMemberNick(message);
+            }
+        })
+        .build();
+
+    @Override
+    protected boolean handleMessage(BufferEventMessage message) throws Exception {
+        return MESSAGE_HANDLERS.handle(this, message);
+    }
+
+    @Override
+    protected boolean handleInitializedMessage(BufferEventMessage message) throws Exception {
+        return INITIALIZED_MESSAGE_HANDLERS.handle(this, message);
+    }
+
+    private MemberList getMemberList() {
+        MemberList members = mMembers;
+        members.setCaseMapping(getConnection().getCaseMapping());
+        return members;
+    }
+
+    private Member getMember(String nick) {
+        return (nick != null) ? getMemberList().get(nick) : null;
     }
 
     private void updateMemberNick(NickchangeMessage message) throws Exception {
-        String oldNick = message.oldnick;
-        String newNick = message.newnick;
-        synchronized (mMembers) {
-            Member member = mMembers.get(oldNick);
-            if (member != null) {
-                member.setNick(newNick);
-                mMembers.remove(oldNick);
-                mMembers.put(newNick, member);
-            } else {
-                // FIXME: Why is this happening?!
-                Log.w("ChannelBuffer", "Couldn't find member for nickchange!");
-            }
+        MemberList members = getMemberList();
+        Member member = members.remove(message.oldnick);
+        if (member != null) {
+            Member renamed = member.withNick(message.newnick);
+            members.put(renamed);
+            members.publish();
+            postToBus(new MemberChangedEvent(this, member, renamed));
+        } else {
+            // FIXME: Why is this happening?!
+            Log.w("ChannelBuffer", "Couldn't find member for nickchange!");
         }
     }
 
     private void addMember(Member member) {
-        synchronized (mMembers) {
-            mMembers.put(member.getNick(), member);
+        MemberList members = getMemberList();
+        Member oldMember = members.put(member);
+        members.publish();
+        if (oldMember != null) {
+            postToBus(new MemberChangedEvent(this, oldMember, member));
+        } else {
+            postToBus(new MemberAddedEvent(this, member));
         }
-        // FIXME: Fire onChannelMemberAdded event
-        notifyChanged();
+    }
+
+    private void replaceMember(Member oldMember, Member member) {
+        MemberList members = getMemberList();
+        members.put(member);
+        members.publish();
+        postToBus(new MemberChangedEvent(this, oldMember, member));
     }
 
     private void removeMember(String nick) {
-        synchronized (mMembers) {
-            mMembers.remove(nick);
+        MemberList members = getMemberList();
+        Member member = members.remove(nick);
+        if (member != null) {
+            members.publish();
+            postToBus(new MemberRemovedEvent(this, member));
         }
-        // FIXME: Fire onChannelMemberRemoved event
-        notifyChanged();
+    }
+
+    private void postToBus(Object event) {
+        getConnection().getService().postToBus(event);
     }
 
     public boolean isInChannel(String nick) {
-        synchronized (mMembers) {
-            return mMembers.containsKey(nick);
-        }
+        return mMembers.contains(nick);
     }
 }
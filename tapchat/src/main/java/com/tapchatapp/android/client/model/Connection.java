@@ -21,14 +21,14 @@ import android.content.Intent;
 import android.text.TextUtils;
 import android.util.Log;
 
-import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedMap;
 import com.tapchatapp.android.R;
 import com.tapchatapp.android.app.activity.InvalidConnectionCertActivity;
 import com.tapchatapp.android.app.event.BufferAddedEvent;
 import com.tapchatapp.android.app.event.BufferChangedEvent;
 import com.tapchatapp.android.app.event.BufferRemovedEvent;
 import com.tapchatapp.android.app.event.ConnectionChangedEvent;
-import com.tapchatapp.android.client.MessageHandler;
+import com.tapchatapp.android.client.MessageHandlerTable;
 import com.tapchatapp.android.app.TapchatApp;
 import com.tapchatapp.android.client.TapchatService;
 import com.tapchatapp.android.client.message.BufferArchivedMessage;
@@ -42,6 +42,7 @@ import com.tapchatapp.android.client.message.ConnectingMessage;
 import com.tapchatapp.android.client.message.ConnectingRetryMessage;
 import com.tapchatapp.android.client.message.EndOfBacklogMessage;
 import com.tapchatapp.android.client.message.InvalidCertMessage;
+import com.tapchatapp.android.client.message.IsupportParamsMessage;
 import com.tapchatapp.android.client.message.MakeBufferMessage;
 import com.tapchatapp.android.client.message.MakeServerMessage;
 import com.tapchatapp.android.client.message.Message;
@@ -63,9 +64,8 @@ import com.tapchatapp.android.client.message.request.SayMessage;
 
 import org.json.JSONException;
 
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
@@ -92,20 +92,27 @@ public class Connection {
 
     private TapchatService mService;
 
-    private boolean mExists = false;
-    private boolean mIsBacklog = true;
-    private final Map<Long, Buffer> mBuffers = Collections.synchronizedMap(new TreeMap<Long, Buffer>());
-    private ConsoleBuffer mConsoleBuffer;
+    private volatile boolean mExists = false;
+    private volatile boolean mIsBacklog = true;
 
-    private int mState;
-    private String mName;
+    // Only changed on the model thread, which publishes a copy in mBuffers after every change.
+    private final TreeMap<Long, Buffer> mBuffersById = new TreeMap<>();
+    private volatile ImmutableSortedMap<Long, Buffer> mBuffers = ImmutableSortedMap.of();
+
+    // Buffers by their name in lower case according to mCaseMapping. Only used on the model thread.
+    private final Map<String, Buffer> mBuffersByName = new HashMap<>();
+    private volatile CaseMapping mCaseMapping = CaseMapping.RFC1459;
+    private volatile ConsoleBuffer mConsoleBuffer;
+
+    private volatile int mState;
+    private volatile String mName;
     private long mId;
-    private String mNick;
-    private boolean mSSL;
-    private String mHostName;
-    private String mRealName;
-    private int mPort;
-    private String mPassword;
+    private volatile String mNick;
+    private volatile boolean mSSL;
+    private volatile String mHostName;
+    private volatile String mRealName;
+    private volatile int mPort;
+    private volatile String mPassword;
 
     private String mPendingOpenBuffer;
 
@@ -184,43 +191,42 @@ public class Connection {
         return mConsoleBuffer;
     }
 
+    /**
+     * Returns the buffers as they were after the last change. The list is immutable and shared, so don't copy it.
+     */
     public List<Buffer> getBuffers() {
-        synchronized (mBuffers) {
-            return new ArrayList<Buffer>(mBuffers.values());
-        }
+        return mBuffers.values().asList();
     }
 
     public int getBufferCount() {
-        synchronized (mBuffers) {
-            return mBuffers.size();
-        }
+        return mBuffers.size();
     }
 
     public Buffer getBuffer(long id) {
-        synchronized (mBuffers) {
-            if (mBuffers.containsKey(id))
-                return mBuffers.get(id);
-            else if (mConsoleBuffer != null && mConsoleBuffer.getId() == id)
-                return mConsoleBuffer;
-            return null;
+        Buffer buffer = mBuffers.get(id);
+        if (buffer != null) {
+            return buffer;
+        }
+        ConsoleBuffer consoleBuffer = mConsoleBuffer;
+        if (consoleBuffer != null && consoleBuffer.getId() == id) {
+            return consoleBuffer;
         }
+        return null;
     }
 
     public int getBufferIndex(long bufferId) {
-        synchronized (mBuffers) {
-            return getBuffers().indexOf(getBuffer(bufferId));
-        }
+        return mBuffers.keySet().asList().indexOf(bufferId);
     }
 
+    /**
+     * Only call this on the model thread.
+     */
     public Buffer findBuffer(String name) {
-        synchronized (mBuffers) {
-            for (Buffer buffer : mBuffers.values()) {
-                if (buffer.getName().equalsIgnoreCase(name)) {
-                    return buffer;
-                }
-            }
-            return null;
-        }
+        return mBuffersByName.get(mCaseMapping.toLowerCase(name));
+    }
+
+    public CaseMapping getCaseMapping() {
+        return mCaseMapping;
     }
 
     public boolean isSSL() {
@@ -247,19 +253,27 @@ public class Connection {
         return mState;
     }
 
-    public void join(String channelName, TapchatService.PostCallback callback) {
-        ChannelBuffer channel = (ChannelBuffer) findBuffer(channelName);
-        if (channel != null && channel.isJoined()) {
-            startBufferActivity(channel);
-            if (callback != null) {
-                callback.run(null, null);
-            }
-            return;
-        }
+    public void join(final String channelName, final TapchatService.PostCallback callback) {
+        mService.runOnModelThread(new Runnable() {
+            @Override public void run() {
+                ChannelBuffer channel = (ChannelBuffer) findBuffer(channelName);
+                if (channel != null && channel.isJoined()) {
+                    startBufferActivity(channel);
+                    if (callback != null) {
+                        mService.runOnMainThread(new Runnable() {
+                            @Override public void run() {
+                                callback.run(null, null);
+                            }
+                        });
+                    }
+                    return;
+                }
 
-        JoinMessage message = new JoinMessage();
-        message.channel = channelName;
-        post(message, callback);
+                JoinMessage message = new JoinMessage();
+                message.channel = channelName;
+                post(message, callback);
+            }
+        });
     }
 
     public void part(String channelName, TapchatService.PostCallback callback) {
@@ -282,14 +296,18 @@ public class Connection {
         post(message, null);
     }
 
-    public void openBuffer(String nick) {
-        Buffer buffer = findBuffer(nick);
-        if (buffer == null) {
-            say(nick, null, null);
-        } else {
-            buffer.unarchive();
-            startBufferActivity(buffer);
-        }
+    public void openBuffer(final String nick) {
+        mService.runOnModelThread(new Runnable() {
+            @Override public void run() {
+                Buffer buffer = findBuffer(nick);
+                if (buffer == null) {
+                    say(nick, null, null);
+                } else {
+                    buffer.unarchive();
+                    startBufferActivity(buffer);
+                }
+            }
+        });
     }
 
     public void reconnect() {
@@ -326,17 +344,12 @@ public class Connection {
         return mService;
     }
 
-    public synchronized void processMessage(Message message) throws Exception {
-        String type = message.type;
-
-        if (mMessageHandlers.containsKey(type)) {
-            mMessageHandlers.get(type).handleMessage(message);
-        }
-
+    public void processMessage(Message message) throws Exception {
+        MESSAGE_HANDLERS.handle(this, message);
 
         boolean isBacklogMessage = message.is_backlog;
-        if ((!isBacklogMessage) && (!mIsBacklog) && mInitializedMessageHandlers.containsKey(type)) {
-            mInitializedMessageHandlers.get(type).handleMessage(message);
+        if ((!isBacklogMessage) && (!mIsBacklog)) {
+            INITIALIZED_MESSAGE_HANDLERS.handle(this, message);
         }
 
         if (message.bid != null && !message.type.equals(MakeBufferMessage.TYPE)) {
@@ -389,127 +402,134 @@ public class Connection {
         return String.format("Connection{id=%s, name=%s}", getId(), getName());
     }
 
-    private Map<String, MessageHandler> mMessageHandlers = ImmutableMap.<String, MessageHandler>builder()
-        .put(EndOfBacklogMessage.TYPE, new MessageHandler<EndOfBacklogMessage>() {
+    private static final MessageHandlerTable<Connection> MESSAGE_HANDLERS = MessageHandlerTable.<Connection>builder()
+        .put(IsupportParamsMessage.TYPE, new MessageHandlerTable.Handler<Connection, IsupportParamsMessage>() {
+            @Override public void handleMessage(Connection connection, IsupportParamsMessage message) throws Exception {
+                Object caseMapping = (message.params != null) ? message.params.get("CASEMAPPING") : null;
+                connection.setCaseMapping(CaseMapping.forName((caseMapping != null) ? caseMapping.toString() : null));
+            }
+        })
+        .put(EndOfBacklogMessage.TYPE, new MessageHandlerTable.Handler<Connection, EndOfBacklogMessage>() {
             @Override
-            public void handleMessage(EndOfBacklogMessage message) throws Exception {
-                mIsBacklog = false;
-                mService.updateLoadingProgress();
-
-                synchronized (mBuffers) {
-                    for (Buffer buffer : mBuffers.values()) {
-                        if (!buffer.exists()) {
-                            removeBuffer(buffer);
-                        }
+            public void handleMessage(Connection connection, EndOfBacklogMessage message) throws Exception {
+                connection.mIsBacklog = false;
+                connection.mService.updateLoadingProgress();
+
+                for (Buffer buffer : connection.getBuffers()) {
+                    if (!buffer.exists()) {
+                        connection.removeBuffer(buffer);
                     }
                 }
             }
         })
-        .put(MakeBufferMessage.TYPE, new MessageHandler<MakeBufferMessage>() {
-            @Override public void handleMessage(MakeBufferMessage message) throws Exception {
+        .put(MakeBufferMessage.TYPE, new MessageHandlerTable.Handler<Connection, MakeBufferMessage>() {
+            @Override public void handleMessage(Connection connection, MakeBufferMessage message) throws Exception {
                 long bid = message.bid;
 
-                Buffer buffer = getBuffer(bid);
+                Buffer buffer = connection.getBuffer(bid);
 
                 if (buffer != null) {
+                    connection.unindexBuffer(buffer);
                     buffer.reload(message);
+                    connection.indexBuffer(buffer);
                     return;
                 }
 
                 String bufferType = message.buffer_type;
                 switch (bufferType) {
                     case "channel":
-                        buffer = new ChannelBuffer(Connection.this, message);
+                        buffer = new ChannelBuffer(connection, message);
                         break;
                     case "conversation":
-                        buffer = new ConversationBuffer(Connection.this, message);
+                        buffer = new ConversationBuffer(connection, message);
                         break;
                     case "console":
-                        buffer = new ConsoleBuffer(Connection.this, message);
-                        mConsoleBuffer = (ConsoleBuffer) buffer;
+                        buffer = new ConsoleBuffer(connection, message);
+                        connection.mConsoleBuffer = (ConsoleBuffer) buffer;
                         return;
                     default:
                         throw new Exception("Unknown buffer type: " + bufferType);
                 }
 
-                synchronized (mBuffers) {
-                    mBuffers.put(bid, buffer);
-                }
+                connection.mBuffersById.put(bid, buffer);
+                connection.mBuffers = ImmutableSortedMap.copyOfSorted(connection.mBuffersById);
+                connection.indexBuffer(buffer);
 
                 final Buffer theBuffer = buffer;
-                mService.postToBus(new BufferAddedEvent(theBuffer));
+                connection.mService.postToBus(new BufferAddedEvent(theBuffer));
 
-                if (mPendingOpenBuffer != null && mPendingOpenBuffer.equals(buffer.getName())) {
-                    startBufferActivity(buffer);
-                    mPendingOpenBuffer = null;
+                String pendingOpenBuffer = connection.mPendingOpenBuffer;
+                if (pendingOpenBuffer != null && connection.getCaseMapping().equals(pendingOpenBuffer, buffer.getName())) {
+                    connection.startBufferActivity(buffer);
+                    connection.mPendingOpenBuffer = null;
                 }
             }
         })
         .build();
 
-    private Map<String, MessageHandler> mInitializedMessageHandlers = new ImmutableMap.Builder<String, MessageHandler>()
-        .put(ServerDetailsChangedMessage.TYPE, new MessageHandler<ServerDetailsChangedMessage>() {
+    private static final MessageHandlerTable<Connection> INITIALIZED_MESSAGE_HANDLERS = MessageHandlerTable.<Connection>builder()
+        .put(ServerDetailsChangedMessage.TYPE, new MessageHandlerTable.Handler<Connection, ServerDetailsChangedMessage>() {
             @Override
-            public void handleMessage(ServerDetailsChangedMessage message) throws Exception {
-                updateDetails(message);
+            public void handleMessage(Connection connection, ServerDetailsChangedMessage message) throws Exception {
+                connection.updateDetails(message);
             }
         })
-        .put(YouNickchangeMessage.TYPE, new MessageHandler<YouNickchangeMessage>() {
-            @Override public void handleMessage(YouNickchangeMessage message) throws Exception {
-                mNick = message.newnick;
-                notifyChanged();
+        .put(YouNickchangeMessage.TYPE, new MessageHandlerTable.Handler<Connection, YouNickchangeMessage>() {
+            @Override public void handleMessage(Connection connection, YouNickchangeMessage message) throws Exception {
+                connection.mNick = message.newnick;
+                connection.notifyChanged();
             }
         })
-        .put(ConnectingMessage.TYPE, new MessageHandler<ConnectingMessage>() {
-            @Override public void handleMessage(ConnectingMessage message) throws Exception {
-                mNick = message.nick;
-                mState = STATE_CONNECTING;
-                notifyChanged();
+        .put(ConnectingMessage.TYPE, new MessageHandlerTable.Handler<Connection, ConnectingMessage>() {
+            @Override public void handleMessage(Connection connection, ConnectingMessage message) throws Exception {
+                connection.mNick = message.nick;
+                connection.mState = STATE_CONNECTING;
+                connection.notifyChanged();
             }
         })
-        .put(ConnectingRetryMessage.TYPE, new MessageHandler<ConnectingRetryMessage>() {
-            @Override public void handleMessage(ConnectingRetryMessage message) throws Exception {
-                mState = STATE_RETRYING;
-                notifyChanged();
+        .put(ConnectingRetryMessage.TYPE, new MessageHandlerTable.Handler<Connection, ConnectingRetryMessage>() {
+            @Override public void handleMessage(Connection connection, ConnectingRetryMessage message) throws Exception {
+                connection.mState = STATE_RETRYING;
+                connection.notifyChanged();
             }
         })
-        .put(WaitingToRetryMessage.TYPE, new MessageHandler<WaitingToRetryMessage>() {
-            @Override public void handleMessage(WaitingToRetryMessage message) throws Exception {
-                mState = STATE_RETRYING;
-                notifyChanged();
+        .put(WaitingToRetryMessage.TYPE, new MessageHandlerTable.Handler<Connection, WaitingToRetryMessage>() {
+            @Override public void handleMessage(Connection connection, WaitingToRetryMessage message) throws Exception {
+                connection.mState = STATE_RETRYING;
+                connection.notifyChanged();
             }
         })
-        .put(ConnectingCancelledMessage.TYPE, new MessageHandler<ConnectingCancelledMessage>() {
-            @Override public void handleMessage(ConnectingCancelledMessage message) throws Exception {
-                mState = STATE_DISCONNECTED;
-                notifyChanged();
+        .put(ConnectingCancelledMessage.TYPE, new MessageHandlerTable.Handler<Connection, ConnectingCancelledMessage>() {
+            @Override public void handleMessage(Connection connection, ConnectingCancelledMessage message) throws Exception {
+                connection.mState = STATE_DISCONNECTED;
+                connection.notifyChanged();
             }
         })
-        .put(ConnectingFailedMessage.TYPE, new MessageHandler<ConnectingFailedMessage>() {
-            @Override public void handleMessage(ConnectingFailedMessage message) throws Exception {
-                mState = STATE_DISCONNECTED;
-                notifyChanged();
+        .put(ConnectingFailedMessage.TYPE, new MessageHandlerTable.Handler<Connection, ConnectingFailedMessage>() {
+            @Override public void handleMessage(Connection connection, ConnectingFailedMessage message) throws Exception {
+                connection.mState = STATE_DISCONNECTED;
+                connection.notifyChanged();
             }
         })
-        .put(ConnectedMessage.TYPE, new MessageHandler<ConnectedMessage>() {
-            @Override public void handleMessage(ConnectedMessage message) throws Exception {
+        .put(ConnectedMessage.TYPE, new MessageHandlerTable.Handler<Connection, ConnectedMessage>() {
+            @Override public void handleMessage(Connection connection, ConnectedMessage message) throws Exception {
                 // nop, just means the socket is established, wait for connecting_finished
             }
         })
-        .put(ConnectingFinishedMessage.TYPE, new MessageHandler<ConnectingFinishedMessage>() {
-            @Override public void handleMessage(ConnectingFinishedMessage message) throws Exception {
-                mState = STATE_CONNECTED;
-                notifyChanged();
+        .put(ConnectingFinishedMessage.TYPE, new MessageHandlerTable.Handler<Connection, ConnectingFinishedMessage>() {
+            @Override public void handleMessage(Connection connection, ConnectingFinishedMessage message) throws Exception {
+                connection.mState = STATE_CONNECTED;
+                connection.notifyChanged();
             }
         })
-        .put(SocketClosedMessage.TYPE, new MessageHandler<SocketClosedMessage>() {
-            @Override public void handleMessage(SocketClosedMessage message) throws Exception {
-                mState = STATE_DISCONNECTED;
-                notifyChanged();
+        .put(SocketClosedMessage.TYPE, new MessageHandlerTable.Handler<Connection, SocketClosedMessage>() {
+            @Override public void handleMessage(Connection connection, SocketClosedMessage message) throws Exception {
+                connection.mState = STATE_DISCONNECTED;
+                connection.notifyChanged();
             }
         })
-        .put(InvalidCertMessage.TYPE, new MessageHandler<InvalidCertMessage>() {
-            @Override public void handleMessage(InvalidCertMessage message) throws Exception {
+        .put(InvalidCertMessage.TYPE, new MessageHandlerTable.Handler<Connection, InvalidCertMessage>() {
+            @Override public void handleMessage(Connection connection, InvalidCertMessage message) throws Exception {
                 Context appContext = TapchatApp.get();
 
                 Intent intent = new Intent(TapchatApp.ACTION_INVALID_CERT);
@@ -520,25 +540,25 @@ public class Connection {
                 appContext.sendBroadcast(intent, null);
             }
         })
-        .put(DeleteBufferMessage.TYPE, new MessageHandler<DeleteBufferMessage>() {
-            @Override public void handleMessage(DeleteBufferMessage message) throws Exception {
-                Buffer buffer = getBuffer(message.bid);
-                removeBuffer(buffer);
+        .put(DeleteBufferMessage.TYPE, new MessageHandlerTable.Handler<Connection, DeleteBufferMessage>() {
+            @Override public void handleMessage(Connection connection, DeleteBufferMessage message) throws Exception {
+                Buffer buffer = connection.getBuffer(message.bid);
+                connection.removeBuffer(buffer);
             }
         })
-        .put(BufferArchivedMessage.TYPE, new MessageHandler<BufferArchivedMessage>() {
-            @Override public void handleMessage(BufferArchivedMessage message) throws Exception {
-                Buffer buffer = getBuffer(message.bid);
+        .put(BufferArchivedMessage.TYPE, new MessageHandlerTable.Handler<Connection, BufferArchivedMessage>() {
+            @Override public void handleMessage(Connection connection, BufferArchivedMessage message) throws Exception {
+                Buffer buffer = connection.getBuffer(message.bid);
                 buffer.setArchived(true);
-                mService.postToBus(new BufferChangedEvent(buffer));
+                connection.mService.postToBus(new BufferChangedEvent(buffer));
             }
         })
-        .put(BufferUnarchivedMessage.TYPE, new MessageHandler<BufferUnarchivedMessage>() {
-            @Override public void handleMessage(BufferUnarchivedMessage message) throws Exception {
+        .put(BufferUnarchivedMessage.TYPE, new MessageHandlerTable.Handler<Connection, BufferUnarchivedMessage>() {
+            @Override public void handleMessage(Connection connection, BufferUnarchivedMessage message) throws Exception {
                 long bid = message.bid;
-                Buffer buffer = getBuffer(bid);
+                Buffer buffer = connection.getBuffer(bid);
                 buffer.setArchived(false);
-                mService.postToBus(new BufferChangedEvent(buffer));
+                connection.mService.postToBus(new BufferChangedEvent(buffer));
             }
         })
         .build();
@@ -546,13 +566,41 @@ public class Connection {
     private void removeBuffer(Buffer buffer) {
         buffer.notifyRemoved();
 
-        synchronized (mBuffers) {
-            mBuffers.remove(buffer.getId());
-        }
+        mBuffersById.remove(buffer.getId());
+        mBuffers = ImmutableSortedMap.copyOfSorted(mBuffersById);
+        unindexBuffer(buffer);
+        mService.getEventStore().deleteBuffer(mId, buffer.getId());
+        mService.getSearchIndex().deleteBuffer(mId, buffer.getId());
 
         mService.postToBus(new BufferRemovedEvent(buffer));
     }
 
+    private void indexBuffer(Buffer buffer) {
+        if (buffer.getName() != null) {
+            mBuffersByName.put(mCaseMapping.toLowerCase(buffer.getName()), buffer);
+        }
+    }
+
+    private void unindexBuffer(Buffer buffer) {
+        if (buffer.getName() != null) {
+            String key = mCaseMapping.toLowerCase(buffer.getName());
+            if (mBuffersByName.get(key) == buffer) {
+                mBuffersByName.remove(key);
+            }
+        }
+    }
+
+    private void setCaseMapping(CaseMapping caseMapping) {
+        if (caseMapping == mCaseMapping) {
+            return;
+        }
+        mCaseMapping = caseMapping;
+        mBuffersByName.clear();
+        for (Buffer buffer : mBuffersById.values()) {
+            indexBuffer(buffer);
+        }
+    }
+
     private void updateDetails(ServerDetailsChangedMessage message) throws JSONException {
         mExists   = true;
         mName     = message.name;
@@ -580,10 +628,8 @@ public class Connection {
     public void serviceDisconnected() {
         mExists = false;
 
-        synchronized (mBuffers) {
-            for (Buffer buffer : mBuffers.values()) {
-                buffer.serviceDisconnected();
-            }
+        for (Buffer buffer : mBuffersById.values()) {
+            buffer.serviceDisconnected();
         }
     }
 
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2014 Eric Butler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tapchatapp.android.client.model;
+
+/**
+ * Remembers which eids a buffer has already processed, in constant space.
+ *
+ * Eids are timestamps in microseconds, so they are far apart and only the most recent ones are kept, sorted, in a
+ * ring. Messages mostly arrive in order, which makes adding one an append. One that is older than everything kept is
+ * treated as already seen once the ring is full.
+ */
+class EidWindow {
+
+    static final int CAPACITY = 128;
+
+    private final long[] mEids = new long[CAPACITY];
+    private int mStart;
+    private int mSize;
+
+    /**
+     * Records the eid. Returns false if it was seen before.
+     */
+    boolean add(long eid) {
+        int position;
+        if (mSize == 0 || eid > get(mSize - 1)) {
+            position = mSize;
+        } else {
+            position = search(eid);
+            if (position >= 0) {
+                return false;
+            }
+            position = ~position;
+        }
+
+        if (mSize == CAPACITY) {
+            if (position == 0) {
+                return false;
+            }
+            // Forget the oldest.
+            mStart = (mStart + 1) % CAPACITY;
+            mSize--;
+            position--;
+        }
+
+        for (int i = mSize; i > position; i--) {
+            mEids[index(i)] = mEids[index(i - 1)];
+        }
+        mEids[index(position)] = eid;
+        mSize++;
+        return true;
+    }
+
+    private long get(int position) {
+        return mEids[index(position)];
+    }
+
+    private int index(int position) {
+        return (mStart + position) % CAPACITY;
+    }
+
+    /**
+     * Same contract as Arrays.binarySearch(), over the positions in the ring.
+     */
+    private int search(long eid) {
+        int low = 0;
+        int high = mSize - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long value = get(mid);
+            if (value < eid) {
+                low = mid + 1;
+            } else if (value > eid) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return ~low;
+    }
+}
@@ -0,0 +1,464 @@
+/*
+ * Copyright (C) 2014 Eric Butler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tapchatapp.android.client.model;
+
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableList;
+import com.tapchatapp.android.client.message.BufferEventMessage;
+import com.tapchatapp.android.client.message.MessageType;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Ring of the most recent messages in a buffer, stored a column per field instead of as message objects.
+ * Eids and times are primitive arrays, nicks and hostmasks come from StringPool, the text is kept as received, and
+ * the few fields specific to a message's type are packed by its MessageCodec. Runs of mergeable messages are kept
+ * as ranges of rows, marked by the row they start at. Adding drops the oldest row once the log has reached its
+ * maximum size, and BacklogBudget trims it further when memory is short.
+ *
+ * BufferEvents are only built from the rows when asked for. The last list built is held weakly and its events are
+ * reused for groups that haven't changed, so nothing is built twice while the UI holds on to it, and nothing is kept
+ * once it lets go.
+ *
+ * The generation changes whenever the log changes, including when a message is merged into the last group, so readers
+ * can tell whether what they copied earlier is still current. Only the model thread adds messages.
+ */
+class EventLog {
+    private static final byte GROUP_START = 1;
+    private static final byte HIGHLIGHT   = 1 << 1;
+    private static final byte SELF        = 1 << 2;
+
+    private static final long NO_TIME = Long.MIN_VALUE;
+
+    private static final int MIN_CAPACITY = 16;
+
+    private final long mConnectionId;
+    private final long mBufferId;
+    private final int mMaxSize;
+
+    // The columns start small and grow up to mMaxSize rows, and shrink again when the log is trimmed.
+    private long[]         mEids;
+    private long[]         mTimes;
+    private byte[]         mFlags;
+    private MessageType[]  mTypes;
+    private MessageCodec[] mCodecs;
+    private String[]       mNicks;
+    private String[]       mFroms;
+    private Object[]       mTexts;
+    private Object[][]     mExtras;
+
+    // Seqs number rows in the order they were added. prepend() numbers them again, and starts a new epoch.
+    private long mNextSeq;
+    private int mEpoch;
+    private long mGroupSeq;
+    private int mSize;
+    private volatile long mGeneration;
+    // The group last asked for by getEvent(), covering the rows from mCachedSeq on, so that asking again after a
+    // message was merged into it only has to build the new rows.
+    private BufferEvent mCachedEvent;
+    private long mCachedSeq;
+
+    private volatile Snapshot mSnapshot = new Snapshot(-1, null);
+
+    /**
+     * The generation starts at the given one, so that a log replacing another one carries on from where it left off.
+     */
+    EventLog(int maxSize, long connectionId, long bufferId, long generation) {
+        mConnectionId = connectionId;
+        mBufferId     = bufferId;
+        mMaxSize      = maxSize;
+        mGeneration   = generation;
+
+        allocate(Math.min(MIN_CAPACITY, maxSize));
+    }
+
+    /**
+     * Appends the message, merging it into the last group if both are mergeable and from the same day. The log doesn't
+     * keep the message itself.
+     */
+    synchronized void add(BufferEventMessage message) {
+        MessageType type = message.getMessageType();
+        long time = (message.time != null) ? message.time : NO_TIME;
+
+        byte flags = shouldMerge(type, message.eid, time) ? 0 : GROUP_START;
+        if (message.highlight) {
+            flags |= HIGHLIGHT;
+        }
+        if (message.self) {
+            flags |= SELF;
+        }
+
+        MessageCodec codec = MessageCodec.get(message.getClass());
+        putRow(message.eid, time, flags, type, codec, StringPool.intern(message.nick),
+               StringPool.intern(message.from), message.msg, codec.encodeExtras(message));
+
+        mGeneration++;
+    }
+
+    /**
+     * Drops the oldest messages so that at most count are left, and gives back the memory they used.
+     */
+    synchronized void trimTo(int count) {
+        if (count >= mSize) {
+            return;
+        }
+        mSize = count;
+        resize(Math.max(count, Math.min(MIN_CAPACITY, mMaxSize)));
+        mCachedEvent = null;
+        mGeneration++;
+    }
+
+    /**
+     * Puts back messages older than the oldest one in the log, for example ones trimmed earlier and read back from the
+     * EventStore. They have to be in eid order; any that aren't older than what the log has are skipped. Doesn't grow
+     * the log past its maximum size, so the oldest of them may be left out.
+     */
+    synchronized void prepend(List<BufferEventMessage> messages) {
+        long firstEid = (mSize > 0) ? mEids[row(getFirstSeq())] : Long.MAX_VALUE;
+        int end = 0;
+        while (end < messages.size() && messages.get(end).eid < firstEid) {
+            end++;
+        }
+        int start = Math.max(0, end - (mMaxSize - mSize));
+        if (start == end) {
+            return;
+        }
+
+        EventLog newer = new EventLog(mMaxSize, mConnectionId, mBufferId, 0);
+        newer.copyFrom(this, getFirstSeq(), mNextSeq);
+
+        mNextSeq     = 0;
+        mGroupSeq    = 0;
+        mSize        = 0;
+        mCachedEvent = null;
+        mEpoch++;
+        allocate(Math.min(mMaxSize, Math.max(MIN_CAPACITY, (end - start) + newer.mSize)));
+
+        for (BufferEventMessage message : messages.subList(start, end)) {
+            add(message);
+        }
+        copyFrom(newer, 0, newer.mNextSeq);
+    }
+
+    /**
+     * Returns how many messages the log holds. Only the model thread may ask, since only it changes the log.
+     */
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * Returns the eid of the oldest message, or 0 if the log is empty. Model thread only, like size().
+     */
+    long getFirstEid() {
+        return (mSize > 0) ? mEids[row(getFirstSeq())] : 0;
+    }
+
+    long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Builds the newest group, or returns null if the log is empty.
+     */
+    synchronized BufferEvent getLast() {
+        if (mSize == 0) {
+            return null;
+        }
+        return getEvent(mEpoch, mGroupSeq, mNextSeq);
+    }
+
+    /**
+     * Builds the newest group that starts with a message of the given type, or returns null if there is none. Nothing
+     * else is built.
+     */
+    synchronized BufferEvent getLastGroup(MessageType type) {
+        long firstSeq = getFirstSeq();
+        long endSeq = mNextSeq;
+        for (long seq = mNextSeq - 1; seq >= firstSeq; seq--) {
+            int row = row(seq);
+            if (seq == firstSeq || (mFlags[row] & GROUP_START) != 0) {
+                if (mTypes[row] == type) {
+                    return (endSeq == mNextSeq) ? getEvent(mEpoch, seq, endSeq) : buildEvent(seq, endSeq);
+                }
+                endSeq = seq;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Passes the newest count messages, oldest first, to the visitor straight from the columns.
+     */
+    synchronized void visitNewest(int count, Buffer.EventVisitor visitor) throws IOException {
+        for (long seq = Math.max(getFirstSeq(), mNextSeq - count); seq < mNextSeq; seq++) {
+            int row = row(seq);
+            visitor.visit(mTypes[row].getName(), mEids[row], (mTimes[row] != NO_TIME) ? mTimes[row] : null,
+                          (mFlags[row] & HIGHLIGHT) != 0, (mFlags[row] & SELF) != 0, mNicks[row], mFroms[row],
+                          mTexts[row], mExtras[row]);
+        }
+    }
+
+    /**
+     * Returns a supplier for the newest group as it is now, which only builds it when first asked. Messages merged into
+     * the group later aren't included. Messages that were evicted by then are left out, and if the log was renumbered
+     * by prepend() the newest group at that point is returned instead.
+     */
+    synchronized Supplier<BufferEvent> getLastSupplier() {
+        final int epoch = mEpoch;
+        final long startSeq = mGroupSeq;
+        final long endSeq = mNextSeq;
+        return Suppliers.memoize(new Supplier<BufferEvent>() {
+            @Override public BufferEvent get() {
+                synchronized (EventLog.this) {
+                    return (epoch == mEpoch) ? getEvent(epoch, startSeq, endSeq) : getLast();
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the events, oldest first, as an immutable list that is shared by every caller until the log changes.
+     */
+    List<BufferEvent> getSnapshot() {
+        Snapshot snapshot = mSnapshot;
+        List<BufferEvent> previous = snapshot.mEvents.get();
+        if (previous != null && snapshot.mGeneration == mGeneration) {
+            return previous;
+        }
+
+        synchronized (this) {
+            ImmutableList.Builder<BufferEvent> events = ImmutableList.builder();
+            int index = 0;
+            long firstSeq = getFirstSeq();
+            long start = firstSeq;
+            for (long seq = firstSeq + 1; seq <= mNextSeq; seq++) {
+                if (seq < mNextSeq && (mFlags[row(seq)] & GROUP_START) == 0) {
+                    continue;
+                }
+                int size = (int) (seq - start);
+                long eid = mEids[row(start)];
+
+                // Both lists are in eid order, so walk the old one alongside to find events that are still the same.
+                while (previous != null && index < previous.size() &&
+                        previous.get(index).getFirstItem().getEid() < eid) {
+                    index++;
+                }
+                BufferEvent event = null;
+                if (previous != null && index < previous.size()) {
+                    event = previous.get(index);
+                    if (event.getFirstItem().getEid() != eid || event.getItems().size() != size) {
+                        event = null;
+                    }
+                }
+                events.add((event != null) ? event : buildEvent(start, seq));
+                start = seq;
+            }
+
+            List<BufferEvent> result = events.build();
+            mSnapshot = new Snapshot(mGeneration, result);
+            return result;
+        }
+    }
+
+    // Whether a message belongs in the same group as the newest one.
+    private boolean shouldMerge(MessageType type, long eid, long time) {
+        if (mSize == 0 || !type.is(MessageType.MERGEABLE)) {
+            return false;
+        }
+        int groupRow = row(Math.max(mGroupSeq, getFirstSeq()));
+        return mTypes[groupRow].is(MessageType.MERGEABLE) &&
+               BufferEventItem.isSameDay(getDate(groupRow), getDate(eid, time));
+    }
+
+    private void putRow(long eid, long time, byte flags, MessageType type, MessageCodec codec, String nick,
+                        String from, Object text, Object[] extras) {
+        if (mSize == mEids.length && mSize < mMaxSize) {
+            resize(Math.min(mMaxSize, mSize * 2));
+        }
+
+        long seq = mNextSeq++;
+        int row = row(seq);
+        if (mSize < mEids.length) {
+            mSize++;
+        }
+        if ((flags & GROUP_START) != 0) {
+            mGroupSeq = seq;
+        }
+
+        mEids[row]   = eid;
+        mTimes[row]  = time;
+        mFlags[row]  = flags;
+        mTypes[row]  = type;
+        mCodecs[row] = codec;
+        mNicks[row]  = nick;
+        mFroms[row]  = from;
+        mTexts[row]  = text;
+        mExtras[row] = extras;
+    }
+
+    // Appends the rows of another log, which has to hold only newer messages. Rows keep their group, except that the
+    // first one starts a new group unless it would have been merged into the newest one here anyway.
+    private void copyFrom(EventLog other, long startSeq, long endSeq) {
+        for (long seq = startSeq; seq < endSeq; seq++) {
+            int row = other.row(seq);
+            byte flags = other.mFlags[row];
+            if (seq == startSeq) {
+                boolean merge = shouldMerge(other.mTypes[row], other.mEids[row], other.mTimes[row]);
+                flags = (byte) (merge ? (flags & ~GROUP_START) : (flags | GROUP_START));
+            }
+            putRow(other.mEids[row], other.mTimes[row], flags, other.mTypes[row], other.mCodecs[row],
+                   other.mNicks[row], other.mFroms[row], other.mTexts[row], other.mExtras[row]);
+        }
+        mGeneration++;
+    }
+
+    // Moves the newest mSize rows into columns of the given size, keeping each row at its seq.
+    private void resize(int capacity) {
+        long[]         eids   = mEids;
+        long[]         times  = mTimes;
+        byte[]         flags  = mFlags;
+        MessageType[]  types  = mTypes;
+        MessageCodec[] codecs = mCodecs;
+        String[]       nicks  = mNicks;
+        String[]       froms  = mFroms;
+        Object[]       texts  = mTexts;
+        Object[][]     extras = mExtras;
+
+        allocate(capacity);
+        for (long seq = getFirstSeq(); seq < mNextSeq; seq++) {
+            int from = (int) (seq % eids.length);
+            int to = row(seq);
+            mEids[to]   = eids[from];
+            mTimes[to]  = times[from];
+            mFlags[to]  = flags[from];
+            mTypes[to]  = types[from];
+            mCodecs[to] = codecs[from];
+            mNicks[to]  = nicks[from];
+            mFroms[to]  = froms[from];
+            mTexts[to]  = texts[from];
+            mExtras[to] = extras[from];
+        }
+    }
+
+    private void allocate(int capacity) {
+        mEids   = new long[capacity];
+        mTimes  = new long[capacity];
+        mFlags  = new byte[capacity];
+        mTypes  = new MessageType[capacity];
+        mCodecs = new MessageCodec[capacity];
+        mNicks  = new String[capacity];
+        mFroms  = new String[capacity];
+        mTexts  = new Object[capacity];
+        mExtras = new Object[capacity][];
+    }
+
+    // Builds the rows from startSeq to endSeq as one event, reusing what it can of the cached one. Returns null if they
+    // were all evicted.
+    private BufferEvent getEvent(int epoch, long startSeq, long endSeq) {
+        startSeq = Math.max(startSeq, getFirstSeq());
+        if (epoch != mEpoch || startSeq >= endSeq) {
+            return null;
+        }
+
+        BufferEvent cached = mCachedEvent;
+        long cachedEndSeq = (cached != null) ? mCachedSeq + cached.getItems().size() : 0;
+        if (cached == null || startSeq < mCachedSeq || startSeq >= cachedEndSeq) {
+            cached = buildEvent(startSeq, endSeq);
+        } else if (startSeq == mCachedSeq && endSeq == cachedEndSeq) {
+            return cached;
+        } else {
+            List<BufferEventItem> items = cached.getItems();
+            int from = (int) (startSeq - mCachedSeq);
+            int to = (int) (Math.min(endSeq, cachedEndSeq) - mCachedSeq);
+            if (endSeq <= cachedEndSeq) {
+                // An older, shorter version of the cached group.
+                return new BufferEvent(ImmutableList.copyOf(items.subList(from, to)));
+            }
+            ImmutableList.Builder<BufferEventItem> builder = ImmutableList.builder();
+            builder.addAll(items.subList(from, to));
+            for (long seq = cachedEndSeq; seq < endSeq; seq++) {
+                builder.add(new BufferEventItem<>(buildMessage(row(seq))));
+            }
+            cached = new BufferEvent(builder.build());
+        }
+
+        mCachedEvent = cached;
+        mCachedSeq = startSeq;
+        return cached;
+    }
+
+    private BufferEvent buildEvent(long startSeq, long endSeq) {
+        ImmutableList.Builder<BufferEventItem> items = ImmutableList.builder();
+        for (long seq = startSeq; seq < endSeq; seq++) {
+            items.add(new BufferEventItem<>(buildMessage(row(seq))));
+        }
+        return new BufferEvent(items.build());
+    }
+
+    private BufferEventMessage buildMessage(int row) {
+        BufferEventMessage message = mCodecs[row].newMessage(mExtras[row]);
+        message.setType(mTypes[row].getName());
+        message.eid       = mEids[row];
+        message.time      = (mTimes[row] != NO_TIME) ? mTimes[row] : null;
+        message.highlight = (mFlags[row] & HIGHLIGHT) != 0;
+        message.self      = (mFlags[row] & SELF) != 0;
+        message.nick      = mNicks[row];
+        message.from      = mFroms[row];
+        message.msg       = mTexts[row];
+        message.cid       = mConnectionId;
+        message.bid       = mBufferId;
+        return message;
+    }
+
+    private long getFirstSeq() {
+        return mNextSeq - mSize;
+    }
+
+    private int row(long seq) {
+        return (int) (seq % mEids.length);
+    }
+
+    private Date getDate(int row) {
+        return getDate(mEids[row], mTimes[row]);
+    }
+
+    // Same as BufferEventMessage.getDate().
+    private static Date getDate(long eid, long time) {
+        if (time != NO_TIME) {
+            return new Date(time * 1000);
+        } else if (eid > 0) {
+            return new Date(eid / 1000);
+        } else {
+            return null;
+        }
+    }
+
+    private static class Snapshot {
+        private final long mGeneration;
+        private final WeakReference<List<BufferEvent>> mEvents;
+
+        Snapshot(long generation, List<BufferEvent> events) {
+            mGeneration = generation;
+            mEvents     = new WeakReference<>(events);
+        }
+    }
+}
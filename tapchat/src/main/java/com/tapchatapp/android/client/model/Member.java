@@ -16,26 +16,142 @@
 
 package com.tapchatapp.android.client.model;
 
-public class Member {
-    private String mNick;
+/**
+ * A channel member. Immutable: a mode, away or nick change replaces the member in its channel's MemberList.
+ */
+public final class Member {
+    public static final int OWNER  = 1;
+    public static final int ADMIN  = 1 << 1;
+    public static final int OP     = 1 << 2;
+    public static final int HALFOP = 1 << 3;
+    public static final int VOICE  = 1 << 4;
+    public static final int AWAY   = 1 << 5;
+
+    private static final int MODE_MASK = OWNER | ADMIN | OP | HALFOP | VOICE;
+
+    private final String mNick;
+    private final int mFlags;
 
     public Member(String nick) {
-        mNick = nick;
+        this(nick, 0);
+    }
+
+    Member(String nick, int flags) {
+        mNick  = nick;
+        mFlags = flags;
     }
 
     public String getNick() {
         return mNick;
     }
 
+    public int getFlags() {
+        return mFlags;
+    }
+
     public boolean isOp() {
-        return false; // FIXME
+        return (mFlags & (OWNER | ADMIN | OP)) != 0;
+    }
+
+    public boolean isHalfOp() {
+        return (mFlags & HALFOP) != 0;
     }
 
     public boolean isVoiced() {
-        return false; // FIXME
+        return (mFlags & VOICE) != 0;
+    }
+
+    public boolean isAway() {
+        return (mFlags & AWAY) != 0;
+    }
+
+    Member withNick(String nick) {
+        return new Member(nick, mFlags);
+    }
+
+    Member withFlags(int flags) {
+        return new Member(mNick, flags);
+    }
+
+    Member withModes(String modes) {
+        return withFlags((mFlags & ~MODE_MASK) | parseModes(modes));
+    }
+
+    Member withAway(boolean away) {
+        return withFlags(away ? (mFlags | AWAY) : (mFlags & ~AWAY));
+    }
+
+    /**
+     * Turns channel mode letters such as "ov" into flags. Letters that don't give a prefix are ignored.
+     */
+    static int parseModes(String modes) {
+        int flags = 0;
+        if (modes == null) {
+            return flags;
+        }
+        for (int i = 0; i < modes.length(); i++) {
+            flags |= getModeFlag(modes.charAt(i));
+        }
+        return flags;
+    }
+
+    /**
+     * Applies a mode change such as "+o" or "-v+h" to flags.
+     */
+    static int applyModeDiff(int flags, String diff) {
+        boolean add = true;
+        for (int i = 0; i < diff.length(); i++) {
+            char c = diff.charAt(i);
+            if (c == '+' || c == '-') {
+                add = (c == '+');
+            } else if (add) {
+                flags |= getModeFlag(c);
+            } else {
+                flags &= ~getModeFlag(c);
+            }
+        }
+        return flags;
+    }
+
+    static String formatModes(int flags) {
+        StringBuilder modes = new StringBuilder(5);
+        if ((flags & OWNER) != 0) {
+            modes.append('q');
+        }
+        if ((flags & ADMIN) != 0) {
+            modes.append('a');
+        }
+        if ((flags & OP) != 0) {
+            modes.append('o');
+        }
+        if ((flags & HALFOP) != 0) {
+            modes.append('h');
+        }
+        if ((flags & VOICE) != 0) {
+            modes.append('v');
+        }
+        return modes.toString();
+    }
+
+    private static int getModeFlag(char mode) {
+        switch (mode) {
+            case 'q':
+                return OWNER;
+            case 'a':
+                return ADMIN;
+            case 'o':
+                return OP;
+            case 'h':
+                return HALFOP;
+            case 'v':
+                return VOICE;
+            default:
+                return 0;
+        }
     }
 
-    void setNick(String newNick) {
-        mNick = newNick;
+    @Override
+    public String toString() {
+        return String.format("Member{nick=%s, flags=%s}", mNick, mFlags);
     }
 }
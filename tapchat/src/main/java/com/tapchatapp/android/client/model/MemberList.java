@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2014 Eric Butler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tapchatapp.android.client.model;
+
+import com.google.common.collect.ImmutableList;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The members of a channel, keyed by nick folded with the server's case mapping.
+ *
+ * The list from channel_init is read straight into one of these by the JSON adapter, without going through a list
+ * of intermediate objects, and the channel then takes it over as is.
+ *
+ * Only the model thread changes the map, under the lock, and publish() then bumps the version. Other threads get an
+ * immutable copy, which is only made when they ask for it after a change, so a busy channel with many members costs
+ * nothing per join or part beyond the map update itself.
+ */
+public class MemberList {
+    private final Map<String, Member> mMembers;
+    private CaseMapping mCaseMapping = CaseMapping.RFC1459;
+    private volatile int mSize;
+    private volatile int mVersion;
+    private volatile Snapshot mSnapshot = new Snapshot(0, ImmutableList.<Member>of());
+
+    public MemberList() {
+        this(16);
+    }
+
+    private MemberList(int capacity) {
+        mMembers = new HashMap<>(capacity);
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Returns the members as of the last publish(), in no particular order.
+     */
+    public List<Member> getSnapshot() {
+        Snapshot snapshot = mSnapshot;
+        if (snapshot.mVersion == mVersion) {
+            return snapshot.mMembers;
+        }
+        synchronized (this) {
+            snapshot = new Snapshot(mVersion, ImmutableList.copyOf(mMembers.values()));
+            mSnapshot = snapshot;
+            return snapshot.mMembers;
+        }
+    }
+
+    /**
+     * Same as get() != null, but safe to call from any thread.
+     */
+    public synchronized boolean contains(String nick) {
+        return mMembers.containsKey(mCaseMapping.toLowerCase(nick));
+    }
+
+    Member get(String nick) {
+        return mMembers.get(mCaseMapping.toLowerCase(nick));
+    }
+
+    /**
+     * Adds the member, or replaces the one with the same nick. Returns the member that was replaced.
+     */
+    synchronized Member put(Member member) {
+        return mMembers.put(mCaseMapping.toLowerCase(member.getNick()), member);
+    }
+
+    synchronized Member remove(String nick) {
+        return mMembers.remove(mCaseMapping.toLowerCase(nick));
+    }
+
+    /**
+     * Makes the changes since the last call visible to other threads.
+     */
+    void publish() {
+        mSize = mMembers.size();
+        mVersion++;
+    }
+
+    /**
+     * Rekeys every member if the mapping differs from the one the keys were folded with.
+     */
+    synchronized void setCaseMapping(CaseMapping caseMapping) {
+        if (caseMapping == mCaseMapping) {
+            return;
+        }
+        mCaseMapping = caseMapping;
+        List<Member> members = new ArrayList<>(mMembers.values());
+        mMembers.clear();
+        for (Member member : members) {
+            mMembers.put(caseMapping.toLowerCase(member.getNick()), member);
+        }
+    }
+
+    private static class Snapshot {
+        private final int mVersion;
+        private final List<Member> mMembers;
+
+        Snapshot(int version, List<Member> members) {
+            mVersion = version;
+            mMembers = members;
+        }
+    }
+
+    public static class JsonAdapter extends TypeAdapter<MemberList> {
+        @Override public MemberList read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+
+            MemberList members = new MemberList(64);
+            in.beginArray();
+            while (in.hasNext()) {
+                String nick = null;
+                int flags = 0;
+
+                in.beginObject();
+                while (in.hasNext()) {
+                    String name = in.nextName();
+                    if (in.peek() == JsonToken.NULL) {
+                        in.nextNull();
+                    } else if (name.equals("nick")) {
+                        nick = in.nextString();
+                    } else if (name.equals("mode")) {
+                        flags |= Member.parseModes(in.nextString());
+                    } else if (name.equals("away") && in.peek() == JsonToken.BOOLEAN) {
+                        flags |= in.nextBoolean() ? Member.AWAY : 0;
+                    } else {
+                        in.skipValue();
+                    }
+                }
+                in.endObject();
+
+                if (nick != null) {
+                    members.put(new Member(nick, flags));
+                }
+            }
+            in.endArray();
+            members.publish();
+            return members;
+        }
+
+        @Override public void write(JsonWriter out, MemberList members) throws IOException {
+            if (members == null) {
+                out.nullValue();
+                return;
+            }
+
+            out.beginArray();
+            for (Member member : members.getSnapshot()) {
+                out.beginObject();
+                out.name("nick").value(member.getNick());
+                out.name("mode").value(Member.formatModes(member.getFlags()));
+                out.name("away").value(member.isAway());
+                out.endObject();
+            }
+            out.endArray();
+        }
+    }
+}
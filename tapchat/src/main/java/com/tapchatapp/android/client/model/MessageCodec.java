@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2014 Eric Butler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tapchatapp.android.client.model;
+
+import com.tapchatapp.android.client.message.BufferEventMessage;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Splits a message into what EventLog keeps in its own columns and the few fields only its type has, and puts a
+ * message back together from those. Fields of BufferEventMessage and Message that EventLog doesn't keep, like the
+ * session, are left out. ModelSnapshot uses the same split to write events field by field.
+ */
+public final class MessageCodec {
+    private static final ConcurrentHashMap<Class<?>, MessageCodec> CODECS = new ConcurrentHashMap<>();
+
+    private final Constructor<? extends BufferEventMessage> mConstructor;
+    private final Field[] mFields;
+
+    private MessageCodec(Class<? extends BufferEventMessage> klass) {
+        try {
+            mConstructor = klass.getDeclaredConstructor();
+            mConstructor.setAccessible(true);
+        } catch (NoSuchMethodException ex) {
+            throw new RuntimeException(ex);
+        }
+
+        List<Field> fields = new ArrayList<>();
+        for (Class<?> c = klass; c != BufferEventMessage.class; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                int modifiers = field.getModifiers();
+                if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || field.isSynthetic()) {
+                    continue;
+                }
+                field.setAccessible(true);
+                fields.add(field);
+            }
+        }
+        mFields = fields.toArray(new Field[fields.size()]);
+    }
+
+    public static MessageCodec get(Class<? extends BufferEventMessage> klass) {
+        MessageCodec codec = CODECS.get(klass);
+        if (codec == null) {
+            codec = new MessageCodec(klass);
+            MessageCodec existing = CODECS.putIfAbsent(klass, codec);
+            if (existing != null) {
+                codec = existing;
+            }
+        }
+        return codec;
+    }
+
+    /**
+     * Returns the values of the fields specific to the message's type, with strings pooled, or null if there are
+     * none or all of them are null.
+     */
+    public Object[] encodeExtras(BufferEventMessage message) {
+        Object[] extras = null;
+        try {
+            for (int i = 0; i < mFields.length; i++) {
+                Object value = mFields[i].get(message);
+                if (value == null) {
+                    continue;
+                }
+                if (extras == null) {
+                    extras = new Object[mFields.length];
+                }
+                extras[i] = (value instanceof String) ? StringPool.intern((String) value) : value;
+            }
+        } catch (IllegalAccessException ex) {
+            throw new AssertionError(ex);
+        }
+        return extras;
+    }
+
+    public int getExtraCount() {
+        return mFields.length;
+    }
+
+    public Type getExtraType(int index) {
+        return mFields[index].getGenericType();
+    }
+
+    public BufferEventMessage newMessage(Object[] extras) {
+        BufferEventMessage message;
+        try {
+            message = mConstructor.newInstance();
+        } catch (Exception ex) {
+            throw new RuntimeException(ex);
+        }
+        if (extras != null) {
+            try {
+                for (int i = 0; i < mFields.length; i++) {
+                    if (extras[i] != null) {
+                        mFields[i].set(message, extras[i]);
+                    }
+                }
+            } catch (IllegalAccessException ex) {
+                throw new AssertionError(ex);
+            }
+        }
+        return message;
+    }
+}
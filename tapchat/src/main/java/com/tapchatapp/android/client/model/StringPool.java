@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2014 Eric Butler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tapchatapp.android.client.model;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+/**
+ * Process-wide pool for strings that repeat across many events, like nicks, hostmasks and channel names. Holds them
+ * weakly, so a string is dropped once no event uses it anymore.
+ */
+final class StringPool {
+    private static final Interner<String> INTERNER = Interners.newWeakInterner();
+
+    private StringPool() { }
+
+    static String intern(String value) {
+        return (value != null) ? INTERNER.intern(value) : null;
+    }
+}